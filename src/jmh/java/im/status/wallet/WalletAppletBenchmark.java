@@ -0,0 +1,238 @@
+package im.status.wallet;
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import javacard.framework.AID;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.ResponseAPDU;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the execution time of the applet commands on jCardSim, including the host side of the Secure Channel. The
+ * absolute numbers say little about real cards, where the same commands are orders of magnitude slower, but changes
+ * in the relative numbers point at regressions in the applet code. Each benchmark reports both the throughput and the
+ * distribution of the latency. Run with ./gradlew jmh.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WalletAppletBenchmark {
+  private static final String PIN = "000000";
+  private static final byte[] PAIRING_SECRET = new byte[SecureChannel.SC_SECRET_LENGTH];
+  private static final byte[] HASH = new byte[32];
+  private static final byte[] BIP44_PATH = new byte[] {
+      (byte) 0x80, 0x00, 0x00, 0x2C, (byte) 0x80, 0x00, 0x00, 0x3C, (byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+      0x00, 0x00, 0x00, 0x00
+  };
+  private static final byte[] CHILD_PATH = new byte[] { 0x00, 0x00, 0x00, 0x01 };
+
+  /**
+   * A freshly installed and initialized applet, paired with the host. The Secure Channel is left closed.
+   */
+  @State(Scope.Thread)
+  public static class Card {
+    CardSimulator simulator;
+    WalletAppletCommandSet cmdSet;
+    SecureChannelSession session;
+    KeyPair keyPair;
+    byte[] cardKey;
+
+    @Setup(Level.Trial)
+    public void install() throws Exception {
+      Security.addProvider(new BouncyCastleProvider());
+
+      simulator = new CardSimulator();
+      AID aid = AIDUtil.create(WalletAppletCommandSet.APPLET_AID);
+      byte[] params = new byte[WalletAppletCommandSet.APPLET_AID_BYTES.length + 3];
+      params[0] = (byte) WalletAppletCommandSet.APPLET_AID_BYTES.length;
+      System.arraycopy(WalletAppletCommandSet.APPLET_AID_BYTES, 0, params, 1, params[0]);
+      simulator.installApplet(aid, WalletApplet.class, params, (short) 0, (byte) params.length);
+
+      CardChannel channel = CardTerminalSimulator.terminal(simulator).connect("*").getBasicChannel();
+      cmdSet = new WalletAppletCommandSet(channel);
+      session = new SecureChannelSession(select());
+      cmdSet.setSecureChannel(session);
+      check(cmdSet.init(PIN, "123456789012", PAIRING_SECRET));
+
+      cardKey = select();
+      session.generateSecret(cardKey);
+      cmdSet.autoPair(PAIRING_SECRET);
+
+      KeyPairGenerator g = KeyPairGenerator.getInstance("ECDH", "BC");
+      g.initialize(ECNamedCurveTable.getParameterSpec("secp256k1"));
+      keyPair = g.generateKeyPair();
+    }
+
+    /**
+     * Selects the applet and returns the public key of the Secure Channel.
+     *
+     * @return the public key
+     * @throws CardException communication error
+     */
+    byte[] select() throws CardException {
+      byte[] data = check(cmdSet.select()).getData();
+
+      if (data[0] == WalletApplet.TLV_PUB_KEY) {
+        return Arrays.copyOfRange(data, 2, data.length);
+      }
+
+      return Arrays.copyOfRange(data, 22, 22 + data[21]);
+    }
+
+    /**
+     * Selects the applet and opens a new Secure Channel session.
+     *
+     * @throws CardException communication error
+     */
+    void open() throws CardException {
+      cardKey = select();
+      session.generateSecret(cardKey);
+      cmdSet.autoOpenSecureChannel();
+    }
+
+    /**
+     * Selects the applet and resumes the Secure Channel session. A new EC-DH secret is only computed when the card has
+     * rotated its key, since it is only needed when the card refuses the resumption and a full session is opened.
+     *
+     * @throws CardException communication error
+     */
+    void resume() throws CardException {
+      byte[] key = select();
+
+      if (!Arrays.equals(key, cardKey)) {
+        cardKey = key;
+        session.generateSecret(cardKey);
+      }
+
+      cmdSet.autoResumeSecureChannel();
+    }
+  }
+
+  /**
+   * An applet with an open Secure Channel, a verified PIN and an extended key loaded.
+   */
+  @State(Scope.Thread)
+  public static class Session {
+    WalletAppletCommandSet cmdSet;
+    KeyPair keyPair;
+
+    @Setup(Level.Trial)
+    public void open(Card card) throws Exception {
+      card.open();
+      cmdSet = card.cmdSet;
+      keyPair = card.keyPair;
+      check(cmdSet.verifyPIN(PIN));
+      check(cmdSet.loadKey(keyPair, false, new byte[WalletApplet.CHAIN_CODE_SIZE]));
+      check(cmdSet.deriveKey(BIP44_PATH, WalletApplet.DERIVE_P1_SOURCE_MASTER));
+    }
+  }
+
+  /**
+   * A Session where the current key is reset to m/44'/60'/0'/0/0 before each invocation, so that deriving from the
+   * current key never exceeds the maximum depth.
+   */
+  @State(Scope.Thread)
+  public static class Bip44Session {
+    WalletAppletCommandSet cmdSet;
+
+    @Setup(Level.Trial)
+    public void open(Session session) {
+      cmdSet = session.cmdSet;
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() throws CardException {
+      check(cmdSet.deriveKey(BIP44_PATH, WalletApplet.DERIVE_P1_SOURCE_MASTER));
+    }
+  }
+
+  @Benchmark
+  public byte[] select(Card card) throws CardException {
+    return card.select();
+  }
+
+  @Benchmark
+  public void openSecureChannel(Card card) throws CardException {
+    card.open();
+  }
+
+  /**
+   * Resumes the session. Since a ticket can only be used for SC_RESUME_MAX sessions, this includes a full OPEN SECURE
+   * CHANNEL every SC_RESUME_MAX + 1 invocations, as it would happen in practice.
+   */
+  @Benchmark
+  public void resumeSecureChannel(Card card) throws CardException {
+    card.resume();
+  }
+
+  @Benchmark
+  public ResponseAPDU verifyPIN(Session session) throws CardException {
+    return check(session.cmdSet.verifyPIN(PIN));
+  }
+
+  @Benchmark
+  public ResponseAPDU loadKey(Session session) throws CardException {
+    return check(session.cmdSet.loadKey(session.keyPair, false, new byte[WalletApplet.CHAIN_CODE_SIZE]));
+  }
+
+  @Benchmark
+  public ResponseAPDU deriveKeyFromMaster(Session session) throws CardException {
+    return check(session.cmdSet.deriveKey(BIP44_PATH, WalletApplet.DERIVE_P1_SOURCE_MASTER));
+  }
+
+  @Benchmark
+  public ResponseAPDU deriveKeyFromParent(Session session) throws CardException {
+    return check(session.cmdSet.deriveKey(CHILD_PATH, WalletApplet.DERIVE_P1_SOURCE_PARENT));
+  }
+
+  @Benchmark
+  public ResponseAPDU deriveKeyFromCurrent(Bip44Session session) throws CardException {
+    return check(session.cmdSet.deriveKey(CHILD_PATH, WalletApplet.DERIVE_P1_SOURCE_CURRENT));
+  }
+
+  @Benchmark
+  public ResponseAPDU generateMnemonic(Session session) throws CardException {
+    return check(session.cmdSet.generateMnemonic(WalletApplet.GENERATE_MNEMONIC_P1_CS_MAX));
+  }
+
+  @Benchmark
+  public ResponseAPDU sign(Session session) throws CardException {
+    return check(session.cmdSet.sign(HASH));
+  }
+
+  @Benchmark
+  public ResponseAPDU signWithPath(Session session) throws CardException {
+    return check(session.cmdSet.signWithPath(HASH, BIP44_PATH, WalletApplet.DERIVE_P1_SOURCE_MASTER));
+  }
+
+  @Benchmark
+  public ResponseAPDU exportPublicKey(Session session) throws CardException {
+    return check(session.cmdSet.exportKey(WalletApplet.EXPORT_KEY_P1_ANY, true));
+  }
+
+  /**
+   * Fails the benchmark if the command did not succeed, since timing an error would be meaningless.
+   *
+   * @param response the card response
+   * @return the card response
+   */
+  private static ResponseAPDU check(ResponseAPDU response) {
+    if (response.getSW() != 0x9000) {
+      throw new IllegalStateException("Unexpected SW " + Integer.toHexString(response.getSW()));
+    }
+
+    return response;
+  }
+}
@@ -0,0 +1,200 @@
+package im.status.wallet;
+
+import javacard.framework.ISO7816;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Performance counters, reported by GET STATUS. Each counter is an unsigned 32-bit big endian number, wrapping around
+ * on overflow. Two sets are kept: the counters since the applet was selected, which live in transient memory only, and
+ * the counters since installation. Writing to EEPROM on every increment would be slow and would wear the memory, so
+ * the increments to the latter are accumulated in transient memory and added to the persistent counters once every
+ * FLUSH_INTERVAL commands, with a single atomic write. Up to FLUSH_INTERVAL commands worth of increments can thus be
+ * lost if the card is reset, which is acceptable for statistics.
+ */
+public class Counters {
+  static final byte CMD_SELECT = 0;
+  static final byte CMD_OPEN_SECURE_CHANNEL = 1;
+  static final byte CMD_MUTUALLY_AUTHENTICATE = 2;
+  static final byte CMD_PAIR = 3;
+  static final byte CMD_UNPAIR = 4;
+  static final byte CMD_PREPARE_NEXT_KEY = 5;
+  static final byte CMD_GET_STATUS = 6;
+  static final byte CMD_VERIFY_PIN = 7;
+  static final byte CMD_CHANGE_PIN = 8;
+  static final byte CMD_UNBLOCK_PIN = 9;
+  static final byte CMD_LOAD_KEY = 10;
+  static final byte CMD_DERIVE_KEY = 11;
+  static final byte CMD_GENERATE_MNEMONIC = 12;
+  static final byte CMD_REMOVE_KEY = 13;
+  static final byte CMD_GENERATE_KEY = 14;
+  static final byte CMD_SIGN = 15;
+  static final byte CMD_SET_PINLESS_PATH = 16;
+  static final byte CMD_EXPORT_KEY = 17;
+  static final byte CMD_GET_RESPONSE = 18;
+  static final byte CMD_OTHER = 19;
+
+  static final byte SIGNATURES = 20;
+  static final byte CKD_STEPS = 21;
+  static final byte POINT_MULTIPLICATIONS = 22;
+  static final byte SC_HANDSHAKES = 23;
+  static final byte KEY_ROTATIONS = 24;
+  static final byte TRANSACTIONS = 25;
+  static final byte SC_BYTES_IN = 26;
+  static final byte SC_BYTES_OUT = 27;
+  static final byte KEY_GENERATIONS = 28;
+
+  static final byte COUNT = 29;
+  static final short SIZE = COUNT * 4;
+  static final short FLUSH_INTERVAL = 64;
+
+  /*
+   * The INS of each command counter, in the same order. SELECT and GET RESPONSE are told apart from the other commands
+   * by the caller, since their INS is not unique.
+   */
+  private static final byte[] COMMAND_INS = {
+      ISO7816.INS_SELECT, SecureChannel.INS_OPEN_SECURE_CHANNEL, SecureChannel.INS_MUTUALLY_AUTHENTICATE,
+      SecureChannel.INS_PAIR, SecureChannel.INS_UNPAIR, SecureChannel.INS_PREPARE_NEXT_KEY, WalletApplet.INS_GET_STATUS,
+      WalletApplet.INS_VERIFY_PIN, WalletApplet.INS_CHANGE_PIN, WalletApplet.INS_UNBLOCK_PIN, WalletApplet.INS_LOAD_KEY,
+      WalletApplet.INS_DERIVE_KEY, WalletApplet.INS_GENERATE_MNEMONIC, WalletApplet.INS_REMOVE_KEY,
+      WalletApplet.INS_GENERATE_KEY, WalletApplet.INS_SIGN, WalletApplet.INS_SET_PINLESS_PATH,
+      WalletApplet.INS_EXPORT_KEY
+  };
+
+  private byte[] session;
+  private byte[] pending;
+  private short[] pendingCommands;
+  private byte[] totals;
+
+  /**
+   * Allocates the counters. Must be invoked during the applet installation exactly 1 time.
+   */
+  Counters() {
+    session = JCSystem.makeTransientByteArray(SIZE, JCSystem.CLEAR_ON_DESELECT);
+    pending = JCSystem.makeTransientByteArray(SIZE, JCSystem.CLEAR_ON_RESET);
+    pendingCommands = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
+    totals = new byte[SIZE];
+  }
+
+  /**
+   * Counts a command, flushing the accumulated increments to the persistent counters every FLUSH_INTERVAL commands.
+   *
+   * @param ins the INS of the command
+   * @param getResponse whether the command is GET RESPONSE
+   */
+  void countCommand(byte ins, boolean getResponse) {
+    byte counter = CMD_OTHER;
+
+    if (getResponse) {
+      counter = CMD_GET_RESPONSE;
+    } else {
+      for (byte i = 0; i < (byte) COMMAND_INS.length; i++) {
+        if (COMMAND_INS[i] == ins) {
+          counter = i;
+          break;
+        }
+      }
+    }
+
+    increment(counter);
+
+    if (++pendingCommands[0] >= FLUSH_INTERVAL) {
+      flush();
+    }
+  }
+
+  /**
+   * Increments the given counter by 1.
+   *
+   * @param counter the counter
+   */
+  void increment(byte counter) {
+    add(counter, (short) 1);
+  }
+
+  /**
+   * Adds the given value to the given counter.
+   *
+   * @param counter the counter
+   * @param value the value to add, interpreted as unsigned
+   */
+  void add(byte counter, short value) {
+    short off = (short) (counter << 2);
+    addShort(session, off, value);
+    addShort(pending, off, value);
+  }
+
+  /**
+   * Adds the accumulated increments to the persistent counters. The new values are computed in transient memory and
+   * written with a single atomic copy, so that a tear cannot leave a counter partially written.
+   */
+  void flush() {
+    for (short off = 0; off < SIZE; off += 4) {
+      addCounter(pending, off, totals, off);
+    }
+
+    Util.arrayCopy(pending, (short) 0, totals, (short) 0, SIZE);
+    Util.arrayFillNonAtomic(pending, (short) 0, SIZE, (byte) 0);
+    pendingCommands[0] = 0;
+  }
+
+  /**
+   * Copies the counters since selection to the given buffer.
+   *
+   * @param out the output buffer
+   * @param off the offset in the output buffer
+   * @return the length of the data written
+   */
+  short copySession(byte[] out, short off) {
+    Util.arrayCopyNonAtomic(session, (short) 0, out, off, SIZE);
+    return SIZE;
+  }
+
+  /**
+   * Copies the counters since installation to the given buffer, including the increments not yet flushed.
+   *
+   * @param out the output buffer
+   * @param off the offset in the output buffer
+   * @return the length of the data written
+   */
+  short copyTotals(byte[] out, short off) {
+    Util.arrayCopyNonAtomic(pending, (short) 0, out, off, SIZE);
+
+    for (short i = 0; i < SIZE; i += 4) {
+      addCounter(out, (short) (off + i), totals, i);
+    }
+
+    return SIZE;
+  }
+
+  /**
+   * Adds an unsigned 16-bit value to the 32-bit counter at the given offset.
+   *
+   * @param buf the buffer containing the counter
+   * @param off the offset of the counter
+   * @param value the value to add
+   */
+  private static void addShort(byte[] buf, short off, short value) {
+    short low = (short) (Util.getShort(buf, (short) (off + 2)) + value);
+    boolean carry = (short) (low ^ Short.MIN_VALUE) < (short) (value ^ Short.MIN_VALUE);
+    Util.setShort(buf, (short) (off + 2), low);
+
+    if (carry) {
+      Util.setShort(buf, off, (short) (Util.getShort(buf, off) + 1));
+    }
+  }
+
+  /**
+   * Adds the 32-bit counter at the given offset of src to the one at the given offset of dst.
+   *
+   * @param dst the buffer containing the counter to update
+   * @param dstOff the offset of the counter to update
+   * @param src the buffer containing the counter to add
+   * @param srcOff the offset of the counter to add
+   */
+  private static void addCounter(byte[] dst, short dstOff, byte[] src, short srcOff) {
+    short high = (short) (Util.getShort(dst, dstOff) + Util.getShort(src, srcOff));
+    Util.setShort(dst, dstOff, high);
+    addShort(dst, dstOff, Util.getShort(src, (short) (srcOff + 2)));
+  }
+}
@@ -57,26 +57,29 @@ public class Crypto {
   /**
    * Derives a private key according to the algorithm defined in BIP32. The BIP32 specifications define some checks
    * to be performed on the derived keys. In the very unlikely event that these checks fail this key is not considered
-   * to be valid so the derived key is discarded and this method returns false.
+   * to be valid so the derived key is discarded and this method returns false. The parent public key is only read for
+   * non-hardened derivation, so it does not need to be valid when deriving a hardened child.
    *
    * @param i the buffer containing the key path element (a 32-bit big endian integer)
    * @param iOff the offset in the buffer
    * @param privateKey the parent private key
-   * @param publicKey the parent public key
+   * @param pub the buffer containing the parent public key, either as an uncompressed or compressed point
+   * @param pubOff the offset in the public key buffer
    * @param chain the chain code
    * @param chainOff the offset in the chain code buffer
    * @return true if successful, false otherwise
    */
-  boolean bip32CKDPriv(byte[] i, short iOff, ECPrivateKey privateKey, ECPublicKey publicKey, byte[] chain, short chainOff) {
+  boolean bip32CKDPriv(byte[] i, short iOff, ECPrivateKey privateKey, byte[] pub, short pubOff, byte[] chain, short chainOff) {
     short off = 0;
 
     if ((i[iOff] & (byte) 0x80) == (byte) 0x80) {
       tmp[off++] = 0;
       off += privateKey.getS(tmp, off);
+    } else if (pub[pubOff] == (byte) 0x04) {
+      tmp[0] = ((pub[(short) (pubOff + 64)] & 1) != 0 ? (byte) 0x03 : (byte) 0x02);
+      off = Util.arrayCopyNonAtomic(pub, (short) (pubOff + 1), tmp, (short) 1, KEY_SECRET_SIZE);
     } else {
-      off = (short) (publicKey.getW(tmp, (short) 0) - 1);
-      tmp[0] = ((tmp[off] & 1) != 0 ? (byte) 0x03 : (byte) 0x02);
-      off = (short) ((short) (off / 2) + 1);
+      off = Util.arrayCopyNonAtomic(pub, pubOff, tmp, (short) 0, (short) (KEY_SECRET_SIZE + 1));
     }
 
     off = Util.arrayCopyNonAtomic(i, iOff, tmp, off, (short) 4);
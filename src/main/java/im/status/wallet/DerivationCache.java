@@ -0,0 +1,178 @@
+package im.status.wallet;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.ECPrivateKey;
+
+/**
+ * A small cache of BIP32 nodes, indexed by their key path from the master key. Each node contains the private key, the
+ * chain code and the public key, so that deriving any descendant can start from it without repeating the derivation
+ * of its ancestors. The cache lives in transient memory and is thus cleared every time the applet is deselected. When
+ * the cache is full, the least recently used entry is evicted.
+ *
+ * Since the nodes are only meaningful for the master key they have been derived from, the cache must be cleared every
+ * time the master key changes.
+ *
+ * The number of entries is chosen at installation, since each one takes 171 bytes of RAM. With no entries the cache is
+ * disabled: nothing is stored and nothing is ever found.
+ */
+public class DerivationCache {
+  static final byte DEFAULT_ENTRY_COUNT = 3;
+  static final byte MAX_ENTRY_COUNT = 8;
+  static final short NOT_FOUND = -1;
+
+  private static final short OFF_PATH_LEN = 0;
+  private static final short OFF_AGE = 1;
+  private static final short OFF_PATH = 2;
+  private static final short OFF_PRIV = OFF_PATH + (WalletApplet.KEY_PATH_MAX_DEPTH * 4);
+  private static final short OFF_CHAIN = OFF_PRIV + WalletApplet.CHAIN_CODE_SIZE;
+  private static final short OFF_PUB = OFF_CHAIN + WalletApplet.CHAIN_CODE_SIZE;
+  private static final short ENTRY_SIZE = OFF_PUB + WalletApplet.EC_PUB_KEY_SIZE;
+
+  private static final byte MAX_AGE = 0x7F;
+
+  private byte[] entries;
+
+  /**
+   * Allocates the cache. Must be invoked during the applet installation exactly 1 time.
+   *
+   * @param entryCount the number of entries, between 0 and MAX_ENTRY_COUNT
+   */
+  DerivationCache(byte entryCount) {
+    if (entryCount > 0) {
+      entries = JCSystem.makeTransientByteArray((short) (ENTRY_SIZE * entryCount), JCSystem.CLEAR_ON_DESELECT);
+    }
+  }
+
+  /**
+   * Returns whether the cache has any entry.
+   *
+   * @return false if the cache is disabled
+   */
+  boolean isEnabled() {
+    return entries != null;
+  }
+
+  /**
+   * Finds the entry with the longest key path which is a prefix of the given key path. Only entries with a key path
+   * longer than minLen and not longer than maxLen are considered. The returned entry becomes the most recently used
+   * one.
+   *
+   * @param path the buffer containing the key path
+   * @param pathOff the offset of the key path
+   * @param minLen the length which the key path of the entry must exceed
+   * @param maxLen the maximum length of the key path of the entry
+   * @return the entry or NOT_FOUND
+   */
+  short find(byte[] path, short pathOff, short minLen, short maxLen) {
+    short found = NOT_FOUND;
+
+    if (entries == null) {
+      return found;
+    }
+
+    for (short e = 0; e < (short) entries.length; e += ENTRY_SIZE) {
+      short len = entries[(short) (e + OFF_PATH_LEN)];
+
+      if ((len > minLen) && (len <= maxLen) && (Util.arrayCompare(entries, (short) (e + OFF_PATH), path, pathOff, len) == 0)) {
+        found = e;
+        minLen = len;
+      }
+    }
+
+    if (found != NOT_FOUND) {
+      touch(found);
+    }
+
+    return found;
+  }
+
+  /**
+   * Loads the given entry. The private key is set in the given key object, which must have its curve parameters
+   * already set, and the chain code and public key are copied to the given buffers.
+   *
+   * @param entry the entry, as returned by the find method
+   * @param privateKey the destination private key
+   * @param chain the destination buffer for the chain code
+   * @param chainOff the offset in the chain code buffer
+   * @param pub the destination buffer for the public key
+   * @param pubOff the offset in the public key buffer
+   * @return the length of the key path of the entry
+   */
+  short load(short entry, ECPrivateKey privateKey, byte[] chain, short chainOff, byte[] pub, short pubOff) {
+    privateKey.setS(entries, (short) (entry + OFF_PRIV), WalletApplet.CHAIN_CODE_SIZE);
+    Util.arrayCopyNonAtomic(entries, (short) (entry + OFF_CHAIN), chain, chainOff, WalletApplet.CHAIN_CODE_SIZE);
+    Util.arrayCopyNonAtomic(entries, (short) (entry + OFF_PUB), pub, pubOff, WalletApplet.EC_PUB_KEY_SIZE);
+
+    return entries[(short) (entry + OFF_PATH_LEN)];
+  }
+
+  /**
+   * Stores a node in the cache. If a node with the same key path is already cached it just becomes the most recently
+   * used entry, otherwise it replaces an empty entry or, if none is available, the least recently used one.
+   *
+   * @param path the buffer containing the key path
+   * @param pathOff the offset of the key path
+   * @param pathLen the length of the key path, must not be 0
+   * @param privateKey the private key
+   * @param chain the buffer containing the chain code
+   * @param chainOff the offset of the chain code
+   * @param pub the buffer containing the public key, in uncompressed format
+   * @param pubOff the offset of the public key
+   * @return the entry of the node, which can be passed to the load method until another node is stored, or NOT_FOUND
+   *         if the cache is disabled
+   */
+  short store(byte[] path, short pathOff, short pathLen, ECPrivateKey privateKey, byte[] chain, short chainOff, byte[] pub, short pubOff) {
+    if (entries == null) {
+      return NOT_FOUND;
+    }
+
+    short victim = 0;
+
+    for (short e = 0; e < (short) entries.length; e += ENTRY_SIZE) {
+      short len = entries[(short) (e + OFF_PATH_LEN)];
+
+      if ((len == pathLen) && (Util.arrayCompare(entries, (short) (e + OFF_PATH), path, pathOff, len) == 0)) {
+        touch(e);
+        return e;
+      }
+
+      if ((entries[(short) (victim + OFF_PATH_LEN)] != 0) && ((len == 0) || (entries[(short) (e + OFF_AGE)] > entries[(short) (victim + OFF_AGE)]))) {
+        victim = e;
+      }
+    }
+
+    entries[(short) (victim + OFF_PATH_LEN)] = (byte) pathLen;
+    Util.arrayCopyNonAtomic(path, pathOff, entries, (short) (victim + OFF_PATH), pathLen);
+    privateKey.getS(entries, (short) (victim + OFF_PRIV));
+    Util.arrayCopyNonAtomic(chain, chainOff, entries, (short) (victim + OFF_CHAIN), WalletApplet.CHAIN_CODE_SIZE);
+    Util.arrayCopyNonAtomic(pub, pubOff, entries, (short) (victim + OFF_PUB), WalletApplet.EC_PUB_KEY_SIZE);
+    touch(victim);
+
+    return victim;
+  }
+
+  /**
+   * Removes all entries from the cache.
+   */
+  void clear() {
+    if (entries != null) {
+      Util.arrayFillNonAtomic(entries, (short) 0, (short) entries.length, (byte) 0);
+    }
+  }
+
+  /**
+   * Makes the given entry the most recently used one, by resetting its age and aging all other entries.
+   *
+   * @param entry the entry
+   */
+  private void touch(short entry) {
+    for (short e = 0; e < (short) entries.length; e += ENTRY_SIZE) {
+      if (entries[(short) (e + OFF_AGE)] < MAX_AGE) {
+        entries[(short) (e + OFF_AGE)]++;
+      }
+    }
+
+    entries[(short) (entry + OFF_AGE)] = 0;
+  }
+}
@@ -1,5 +1,6 @@
 package im.status.wallet;
 
+import javacard.framework.Util;
 import javacard.security.ECKey;
 import javacard.security.ECPrivateKey;
 import javacard.security.KeyAgreement;
@@ -51,12 +52,14 @@ public class SECP256k1 {
 
   private KeyAgreement ecPointMultiplier;
   private Crypto crypto;
+  private Counters counters;
 
   /**
    * Allocates objects needed by this class. Must be invoked during the applet installation exactly 1 time.
    */
-  SECP256k1(Crypto crypto) {
+  SECP256k1(Crypto crypto, Counters counters) {
     this.crypto = crypto;
+    this.counters = counters;
     ecPointMultiplier = KeyAgreement.getInstance(ALG_EC_SVDP_DH_PLAIN_XY, false);
   }
 
@@ -87,6 +90,22 @@ public class SECP256k1 {
     return multiplyPoint(privateKey, SECP256K1_G, (short) 0, (short) SECP256K1_G.length, pubOut, pubOff);
   }
 
+  /**
+   * Converts an uncompressed public key to the compressed format. The output buffer can be the same as the input one,
+   * also at the same offset.
+   *
+   * @param pub the buffer containing the uncompressed public key
+   * @param pubOff the offset of the public key
+   * @param out the output buffer
+   * @param outOff the offset in the output buffer
+   * @return the length of the compressed public key
+   */
+  short compressPublicKey(byte[] pub, short pubOff, byte[] out, short outOff) {
+    out[outOff] = ((pub[(short) (pubOff + 64)] & 1) != 0 ? (byte) 0x03 : (byte) 0x02);
+    Util.arrayCopyNonAtomic(pub, (short) (pubOff + 1), out, (short) (outOff + 1), (short) 32);
+    return 33;
+  }
+
   /**
    * Multiplies a scalar in the form of a private key by the given point. Internally uses a special version of EC-DH
    * supported since JavaCard 3.0.5 which outputs both X and Y in their uncompressed form.
@@ -101,6 +120,7 @@ public class SECP256k1 {
    */
   short multiplyPoint(ECPrivateKey privateKey, byte[] point, short pointOff, short pointLen, byte[] out, short outOff) {
     ecPointMultiplier.init(privateKey);
+    counters.increment(Counters.POINT_MULTIPLICATIONS);
     return ecPointMultiplier.generateSecret(point, pointOff, pointLen, out, outOff);
   }
 }
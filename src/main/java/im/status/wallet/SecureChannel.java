@@ -14,48 +14,134 @@ public class SecureChannel {
   public static final short SC_BLOCK_SIZE = 16;
   public static final short SC_OUT_OFFSET = ISO7816.OFFSET_CDATA + (SC_BLOCK_SIZE * 2);
   public static final short SC_COUNTER_MAX = 100;
+  public static final byte SC_RESUME_MAX = 10;
+  public static final byte PAIRING_MAX_CLIENT_COUNT = 127;
 
   public static final byte INS_OPEN_SECURE_CHANNEL = 0x10;
   public static final byte INS_MUTUALLY_AUTHENTICATE = 0x11;
   public static final byte INS_PAIR = 0x12;
   public static final byte INS_UNPAIR = 0x13;
+  public static final byte INS_PREPARE_NEXT_KEY = 0x14;
+
+  public static final byte OPEN_SECURE_CHANNEL_P2_FULL = 0x00;
+  public static final byte OPEN_SECURE_CHANNEL_P2_RESUME = 0x01;
+  public static final byte OPEN_SECURE_CHANNEL_P2_IMPLICIT_AUTH = 0x02;
+  public static final byte OPEN_SECURE_CHANNEL_P2_TICKET = 0x04;
 
   public static final byte PAIR_P1_FIRST_STEP = 0x00;
   public static final byte PAIR_P1_LAST_STEP = 0x01;
 
   public static final short MAX_MAC_APDU_SIZE = (short) 256;
+  public static final short SC_MAX_PLAIN_LENGTH = (short) 223;
+
+  public static final byte CLA_CHAINING = 0x10;
+  public static final short SC_CHAIN_BUFFER_SIZE = (short) 1024;
+
+  private static final byte CHAIN_NONE = 0;
+  private static final byte CHAIN_RECEIVING = 1;
+  private static final byte CHAIN_COMPLETE = 2;
+  private static final byte CHAIN_RESPONDING = 3;
+
+  private static final byte CHAIN_OFF_STATE = 0;
+  private static final byte CHAIN_OFF_LENGTH = 1;
+  private static final byte CHAIN_OFF_REMAINING = 2;
+
+  private static final short TICKET_LENGTH = SC_SECRET_LENGTH + 1;
+  private static final byte TICKET_OFF_INDEX = 0;
+  private static final byte TICKET_OFF_ACTION = 1;
+  private static final byte TICKET_OFF_COUNTER = 2;
+  private static final byte TICKET_OFF_SECRET = 3;
+
+  private static final byte TICKET_ACTION_NONE = 0;
+  private static final byte TICKET_ACTION_STORE = 1;
+  private static final byte TICKET_ACTION_RESUME = 2;
 
   private AESKey scEncKey;
   private AESKey scMacKey;
-  private Cipher scCipher;
-  private Cipher scMacCipher;
+  private Cipher scEncCipher;
+  private Cipher scDecCipher;
   private Signature scMac;
   private KeyPair scKeypair;
+
+  /*
+   * The key pair which will replace scKeypair at the next rotation. It is generated in advance by PREPARE NEXT KEY, so
+   * that the rotation itself, which happens during SELECT, is just a swap. If the client never sends PREPARE NEXT KEY,
+   * the key pair is generated during the rotation as a fallback.
+   */
+  private KeyPair nextKeypair;
+  private boolean nextKeypairStale;
+  private short scCounterMax = SC_COUNTER_MAX;
   private byte[] secret;
   private byte[] pairingSecret;
 
+  /*
+   * The cipher and MAC objects are initialized only once per session, with a zero IV, since on most cards the key
+   * schedule takes a significant share of the time needed to process a short APDU. The rolling IV stored at the
+   * beginning of the secret buffer is XORed in software with the first block, and the ISO/IEC 9797-1 Method 2 padding
+   * is applied in software as well. The block buffer holds the last padded block or a computed MAC.
+   */
+  private byte[] blockBuffer;
+
+  /*
+   * A command received through command chaining is assembled in the chain buffer, formatted as an extended length APDU.
+   * The same buffer is then used to process the command and to hold the response until it has been completely sent with
+   * GET RESPONSE. The chain status holds the state, the number of bytes received (or the offset of the next response
+   * byte to send) and the number of response bytes still to send. Since the chain buffer takes a large part of the RAM
+   * of most cards, it is only allocated if command chaining is enabled at installation, otherwise it is null.
+   */
+  private byte[] chainBuffer;
+  private short[] chainStatus;
+
   private short scCounter;
 
+  /*
+   * The resumption tickets are stored like the pairing keys, one 33-bytes element for each pairing slot. The first byte
+   * is the number of resumptions still allowed, 0 if the ticket is not valid, and the following 32 bytes are the ticket
+   * secret. The ticket of a session is prepared in transient memory during OPEN SECURE CHANNEL, prefixed by the pairing
+   * index and by the action to perform once the client is authenticated: storing a new ticket if the client requested
+   * one, or only decrementing the counter of the stored ticket when resuming.
+   */
+  private byte[] resumptionTickets;
+  private byte[] pendingTicket;
+
   /*
    * To avoid overhead, the pairing keys are stored in a plain byte array as sequences of 33-bytes elements. The first
    * byte is 0 if the slot is free and 1 if used. The following 32 bytes are the actual key data.
    */
   private byte[] pairingKeys;
 
+  /*
+   * One bit for each pairing slot, set if the slot is used, with slot 0 being the most significant bit of the first
+   * byte. This allows finding a free slot by skipping 8 used slots at a time, instead of reading the first byte of each
+   * pairing key.
+   */
+  private byte[] usedSlots;
+
   private short preassignedPairingOffset = -1;
+  private byte pairingLimit;
   private byte remainingSlots;
   private boolean mutuallyAuthenticated = false;
+  private boolean implicitAuthentication = false;
 
   private Crypto crypto;
+  private Counters counters;
 
   /**
    * Instantiates a Secure Channel. All memory allocations (except pairing secret) needed for the secure channel are
    * performed here. The keypair used for the EC-DH algorithm is also generated here.
+   *
+   * @param pairingLimit the number of pairing slots
+   * @param commandChaining whether command chaining is supported, which requires SC_CHAIN_BUFFER_SIZE bytes of RAM
+   * @param crypto the Crypto instance
+   * @param secp256k1 the SECP256k1 instance
+   * @param counters the performance counters
    */
-  public SecureChannel(byte pairingLimit, Crypto crypto, SECP256k1 secp256k1) {
+  public SecureChannel(byte pairingLimit, boolean commandChaining, Crypto crypto, SECP256k1 secp256k1, Counters counters) {
     this.crypto = crypto;
+    this.counters = counters;
 
-    scCipher = Cipher.getInstance(Cipher.ALG_AES_CBC_ISO9797_M2,false);
+    scEncCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+    scDecCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
 
     scMac = Signature.getInstance(Signature.ALG_AES_MAC_128_NOPAD, false);
 
@@ -67,8 +153,23 @@ public class SecureChannel {
     secp256k1.setCurveParameters((ECKey) scKeypair.getPublic());
     scKeypair.genKeyPair();
 
+    nextKeypair = new KeyPair(KeyPair.ALG_EC_FP, SC_KEY_LENGTH);
+    secp256k1.setCurveParameters((ECKey) nextKeypair.getPrivate());
+    secp256k1.setCurveParameters((ECKey) nextKeypair.getPublic());
+    nextKeypairStale = true;
+
     secret = JCSystem.makeTransientByteArray((short)(SC_SECRET_LENGTH * 2), JCSystem.CLEAR_ON_DESELECT);
+    blockBuffer = JCSystem.makeTransientByteArray(SC_BLOCK_SIZE, JCSystem.CLEAR_ON_DESELECT);
+    if (commandChaining) {
+      chainBuffer = JCSystem.makeTransientByteArray(SC_CHAIN_BUFFER_SIZE, JCSystem.CLEAR_ON_DESELECT);
+    }
+
+    chainStatus = JCSystem.makeTransientShortArray((short) 3, JCSystem.CLEAR_ON_DESELECT);
+    pendingTicket = JCSystem.makeTransientByteArray((short)(TICKET_LENGTH + 2), JCSystem.CLEAR_ON_DESELECT);
     pairingKeys = new byte[(short)(PAIRING_KEY_LENGTH * pairingLimit)];
+    resumptionTickets = new byte[(short)(TICKET_LENGTH * pairingLimit)];
+    usedSlots = new byte[(short)((short)(pairingLimit + 7) >> 3)];
+    this.pairingLimit = pairingLimit;
     remainingSlots = pairingLimit;
 
   }
@@ -106,24 +207,35 @@ public class SecureChannel {
     }
 
     scEncKey.setKey(secret, (short) 0);
-    scCipher.init(scEncKey, Cipher.MODE_DECRYPT, apduBuffer, off, SC_BLOCK_SIZE);
+    scDecCipher.init(scEncKey, Cipher.MODE_DECRYPT, apduBuffer, off, SC_BLOCK_SIZE);
     off = (short)(off + SC_BLOCK_SIZE);
 
-    apduBuffer[ISO7816.OFFSET_LC] = (byte) scCipher.doFinal(apduBuffer, off, (short)((short)(apduBuffer[ISO7816.OFFSET_LC] & 0xff) - off + ISO7816.OFFSET_CDATA), apduBuffer, ISO7816.OFFSET_CDATA);
+    short len = scDecCipher.doFinal(apduBuffer, off, (short)((short)(apduBuffer[ISO7816.OFFSET_LC] & 0xff) - off + ISO7816.OFFSET_CDATA), apduBuffer, ISO7816.OFFSET_CDATA);
+    apduBuffer[ISO7816.OFFSET_LC] = (byte) unpad(apduBuffer, ISO7816.OFFSET_CDATA, len);
   }
 
   /**
-   * Processes the OPEN SECURE CHANNEL command.
+   * Processes the OPEN SECURE CHANNEL command. If P2 has the OPEN_SECURE_CHANNEL_P2_TICKET bit set, a resumption ticket
+   * is stored in the pairing slot once the client is authenticated. With P2 = OPEN_SECURE_CHANNEL_P2_RESUME the EC-DH
+   * step is skipped and the ticket of the pairing slot is used as the shared secret instead. The ticket is left
+   * untouched until the client is authenticated, then its counter is decremented, so that only SC_RESUME_MAX sessions
+   * can be resumed from it and a session which is never established does not consume it.
+   *
+   * If P2 has the OPEN_SECURE_CHANNEL_P2_IMPLICIT_AUTH bit set, MUTUALLY AUTHENTICATE can be skipped: the first command
+   * whose MAC is verified authenticates the client and opens the secure channel.
    *
    * @param apdu the JCRE-owned APDU object.
    */
   public void openSecureChannel(APDU apdu) {
     preassignedPairingOffset = -1;
     mutuallyAuthenticated = false;
+    implicitAuthentication = false;
+    pendingTicket[TICKET_OFF_ACTION] = TICKET_ACTION_NONE;
 
     byte[] apduBuffer = apdu.getBuffer();
 
     short pairingKeyOff = checkPairingIndexAndGetOffset(apduBuffer[ISO7816.OFFSET_P1]);
+    short ticketOff = (short) (apduBuffer[ISO7816.OFFSET_P1] * TICKET_LENGTH);
 
     if (pairingKeys[pairingKeyOff] != 1) {
       ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
@@ -131,24 +243,63 @@ public class SecureChannel {
       pairingKeyOff++;
     }
 
-    crypto.ecdh.init(scKeypair.getPrivate());
+    byte p2 = apduBuffer[ISO7816.OFFSET_P2];
+
+    if ((p2 & ~(OPEN_SECURE_CHANNEL_P2_RESUME | OPEN_SECURE_CHANNEL_P2_IMPLICIT_AUTH | OPEN_SECURE_CHANNEL_P2_TICKET)) != 0) {
+      ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+    }
+
+    // A resumed session keeps the ticket it descends from
+    if (((p2 & OPEN_SECURE_CHANNEL_P2_RESUME) != 0) && ((p2 & OPEN_SECURE_CHANNEL_P2_TICKET) != 0)) {
+      ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+    }
+
     short len;
+    byte ticketAction;
 
-    try {
-      len = crypto.ecdh.generateSecret(apduBuffer, ISO7816.OFFSET_CDATA, apduBuffer[ISO7816.OFFSET_LC], secret, (short) 0);
-    } catch(Exception e) {
-      ISOException.throwIt(ISO7816.SW_WRONG_DATA);
-      return;
+    if ((p2 & OPEN_SECURE_CHANNEL_P2_RESUME) == 0) {
+      crypto.ecdh.init(scKeypair.getPrivate());
+
+      try {
+        counters.increment(Counters.POINT_MULTIPLICATIONS);
+        len = crypto.ecdh.generateSecret(apduBuffer, ISO7816.OFFSET_CDATA, apduBuffer[ISO7816.OFFSET_LC], secret, (short) 0);
+      } catch(Exception e) {
+        ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        return;
+      }
+
+      pendingTicket[TICKET_OFF_COUNTER] = SC_RESUME_MAX;
+      ticketAction = ((p2 & OPEN_SECURE_CHANNEL_P2_TICKET) != 0) ? TICKET_ACTION_STORE : TICKET_ACTION_NONE;
+    } else {
+      if (resumptionTickets[ticketOff] == 0) {
+        ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+      }
+
+      pendingTicket[TICKET_OFF_COUNTER] = (byte) (resumptionTickets[ticketOff] - 1);
+      len = Util.arrayCopyNonAtomic(resumptionTickets, (short) (ticketOff + 1), secret, (short) 0, SC_SECRET_LENGTH);
+      ticketAction = TICKET_ACTION_RESUME;
     }
 
+    counters.increment(Counters.SC_HANDSHAKES);
+    pendingTicket[TICKET_OFF_INDEX] = apduBuffer[ISO7816.OFFSET_P1];
     crypto.random.generateData(apduBuffer, (short) 0, (short) (SC_SECRET_LENGTH + SC_BLOCK_SIZE));
     crypto.sha512.update(secret, (short) 0, len);
     crypto.sha512.update(pairingKeys, pairingKeyOff, SC_SECRET_LENGTH);
     crypto.sha512.doFinal(apduBuffer, (short) 0, SC_SECRET_LENGTH, secret, (short) 0);
+
+    if (ticketAction == TICKET_ACTION_STORE) {
+      crypto.sha256.doFinal(secret, (short) 0, (short) secret.length, pendingTicket, TICKET_OFF_SECRET);
+    }
+
     scEncKey.setKey(secret, (short) 0);
     scMacKey.setKey(secret, SC_SECRET_LENGTH);
+    scEncCipher.init(scEncKey, Cipher.MODE_ENCRYPT);
+    scDecCipher.init(scEncKey, Cipher.MODE_DECRYPT);
+    scMac.init(scMacKey, Signature.MODE_SIGN);
     Util.arrayCopyNonAtomic(apduBuffer, SC_SECRET_LENGTH, secret, (short) 0, SC_BLOCK_SIZE);
     Util.arrayFillNonAtomic(secret, SC_BLOCK_SIZE, (short) (secret.length - SC_BLOCK_SIZE), (byte) 0);
+    implicitAuthentication = (p2 & OPEN_SECURE_CHANNEL_P2_IMPLICIT_AUTH) != 0;
+    pendingTicket[TICKET_OFF_ACTION] = ticketAction;
     apdu.setOutgoingAndSend((short) 0, (short) (SC_SECRET_LENGTH + SC_BLOCK_SIZE));
   }
 
@@ -164,6 +315,7 @@ public class SecureChannel {
 
     boolean oldMutuallyAuthenticated = mutuallyAuthenticated;
     mutuallyAuthenticated = true;
+    implicitAuthentication = false;
 
     byte[] apduBuffer = apdu.getBuffer();
     short len = preprocessAPDU(apduBuffer);
@@ -177,6 +329,8 @@ public class SecureChannel {
       ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
     }
 
+    storeTicket();
+
     crypto.random.generateData(apduBuffer, SC_OUT_OFFSET, SC_SECRET_LENGTH);
     respond(apdu, len, ISO7816.SW_NO_ERROR);
   }
@@ -222,17 +376,14 @@ public class SecureChannel {
   private short pairStep1(byte[] apduBuffer) {
     preassignedPairingOffset = -1;
 
-    for (short i = 0; i < (short) pairingKeys.length; i += PAIRING_KEY_LENGTH) {
-      if (pairingKeys[i] == 0) {
-        preassignedPairingOffset = i;
-        break;
-      }
-    }
+    byte idx = (remainingSlots == 0) ? -1 : findFreeSlot();
 
-    if (preassignedPairingOffset == -1) {
+    if (idx < 0) {
       ISOException.throwIt(ISO7816.SW_FILE_FULL);
     }
 
+    preassignedPairingOffset = (short) (idx * PAIRING_KEY_LENGTH);
+
     crypto.sha256.update(pairingSecret, (short) 0, SC_SECRET_LENGTH);
     crypto.sha256.doFinal(apduBuffer, ISO7816.OFFSET_CDATA, SC_SECRET_LENGTH, apduBuffer, (short) 0);
     crypto.random.generateData(secret, (short) 0, SC_SECRET_LENGTH);
@@ -246,6 +397,10 @@ public class SecureChannel {
    * challenge, authenticating it. It then proceeds to generate the pairing key and returns to the client the data
    * necessary to further establish a secure channel session.
    *
+   * The pairing key is written while the slot is still marked as free, then the slot is marked as used in the pairing
+   * keys, in the bitmap and in the number of remaining slots within a single transaction, so that a tear cannot leave
+   * them out of step.
+   *
    * @param apduBuffer the APDU buffer
    * @return the length of the reply
    */
@@ -261,9 +416,14 @@ public class SecureChannel {
     crypto.random.generateData(apduBuffer, (short) 1, SC_SECRET_LENGTH);
     crypto.sha256.update(pairingSecret, (short) 0, SC_SECRET_LENGTH);
     crypto.sha256.doFinal(apduBuffer, (short) 1, SC_SECRET_LENGTH, pairingKeys, (short) (preassignedPairingOffset + 1));
+    apduBuffer[0] = (byte) (preassignedPairingOffset / PAIRING_KEY_LENGTH);
+
+    JCSystem.beginTransaction();
     pairingKeys[preassignedPairingOffset] = 1;
+    setSlotUsed(apduBuffer[0], true);
     remainingSlots--;
-    apduBuffer[0] = (byte) (preassignedPairingOffset / PAIRING_KEY_LENGTH);
+    JCSystem.commitTransaction();
+    counters.increment(Counters.TRANSACTIONS);
 
     preassignedPairingOffset = -1;
 
@@ -271,101 +431,360 @@ public class SecureChannel {
   }
 
   /**
-   * Processes the UNPAIR command. For security reasons the key is not only marked as free but also zero-ed out. This
-   * method assumes that all security checks have been performed by the calling method.
+   * Processes the UNPAIR command. For security reasons the key is not only marked as free but also zero-ed out, together
+   * with its resumption ticket. This method assumes that all security checks have been performed by the calling method.
+   *
+   * The slot is marked as free in the pairing keys, in the bitmap and in the number of remaining slots, and its ticket
+   * is invalidated, within a single transaction. The key and the ticket secret are zeroed afterwards, once they can no
+   * longer be used.
    *
    * @param apduBuffer the APDU buffer
    */
   public void unpair(byte[] apduBuffer) {
     short off = checkPairingIndexAndGetOffset(apduBuffer[ISO7816.OFFSET_P1]);
+    short ticketOff = (short) (apduBuffer[ISO7816.OFFSET_P1] * TICKET_LENGTH);
+
     if (pairingKeys[off] == 1) {
-      Util.arrayFillNonAtomic(pairingKeys, off, PAIRING_KEY_LENGTH, (byte) 0);
+      JCSystem.beginTransaction();
+      pairingKeys[off] = 0;
+      resumptionTickets[ticketOff] = 0;
+      setSlotUsed(apduBuffer[ISO7816.OFFSET_P1], false);
       remainingSlots++;
+      JCSystem.commitTransaction();
+      counters.increment(Counters.TRANSACTIONS);
+
+      Util.arrayFillNonAtomic(pairingKeys, (short) (off + 1), SC_SECRET_LENGTH, (byte) 0);
+      Util.arrayFillNonAtomic(resumptionTickets, (short) (ticketOff + 1), SC_SECRET_LENGTH, (byte) 0);
     }
   }
 
   /**
    * Decrypts the given APDU buffer. The plaintext is written in-place starting at the ISO7816.OFFSET_CDATA offset. The
-   * MAC and padding are stripped. The LC byte is overwritten with the plaintext length. If the MAC cannot be verified
-   * the secure channel is reset and the SW 0x6982 is thrown.
+   * MAC and padding are stripped. The LC byte is overwritten with the plaintext length, or with 0 if the plaintext is
+   * longer than 255 bytes, so the returned length should be used instead. If the MAC cannot be verified the secure
+   * channel is reset and the SW 0x6982 is thrown.
+   *
+   * Both short and extended length APDUs are supported. Since the data of a secure channel command always contains at
+   * least the MAC, an LC byte set to 0 can only be the first byte of an extended length field. For extended length
+   * APDUs the whole command data must have already been received in the APDU buffer. Commands received through
+   * command chaining are assembled as extended length APDUs, so the buffer returned by getBuffer must be passed.
+   *
+   * If the secure channel has been opened with implicit authentication, the first command whose MAC is verified opens
+   * it, as MUTUALLY AUTHENTICATE would.
    *
    * @param apduBuffer the APDU buffer
    * @return the length of the decrypted
    */
   public short preprocessAPDU(byte[] apduBuffer) {
-    if (!isOpen()) {
+    boolean authenticating = isAuthenticationPending();
+
+    if (!isOpen() && !authenticating) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
     }
 
+    short dataOff = ISO7816.OFFSET_CDATA;
     short apduLen = (short)((short) apduBuffer[ISO7816.OFFSET_LC] & 0xff);
 
-    if (!verifyAESMAC(apduBuffer, apduLen)) {
+    if (apduLen == 0) {
+      dataOff = ISO7816.OFFSET_EXT_CDATA;
+      apduLen = Util.getShort(apduBuffer, (short) (ISO7816.OFFSET_LC + 1));
+    }
+
+    counters.add(Counters.SC_BYTES_IN, apduLen);
+
+    if (!verifyAESMAC(apduBuffer, dataOff, apduLen)) {
       reset();
       ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
     }
 
-    scCipher.init(scEncKey, Cipher.MODE_DECRYPT, secret, (short) 0, SC_BLOCK_SIZE);
-    Util.arrayCopyNonAtomic(apduBuffer, ISO7816.OFFSET_CDATA, secret, (short) 0, SC_BLOCK_SIZE);
-    short len = scCipher.doFinal(apduBuffer, (short)(ISO7816.OFFSET_CDATA + SC_BLOCK_SIZE), (short) (apduLen - SC_BLOCK_SIZE), apduBuffer, ISO7816.OFFSET_CDATA);
+    if (authenticating) {
+      mutuallyAuthenticated = true;
+      implicitAuthentication = false;
+      storeTicket();
+    }
+
+    short len = scDecCipher.doFinal(apduBuffer, (short)(dataOff + SC_BLOCK_SIZE), (short) (apduLen - SC_BLOCK_SIZE), apduBuffer, ISO7816.OFFSET_CDATA);
+    xorBlock(apduBuffer, ISO7816.OFFSET_CDATA, secret, (short) 0);
+    Util.arrayCopyNonAtomic(blockBuffer, (short) 0, secret, (short) 0, SC_BLOCK_SIZE);
+    len = unpad(apduBuffer, ISO7816.OFFSET_CDATA, len);
 
-    apduBuffer[ISO7816.OFFSET_LC] = (byte) len;
+    apduBuffer[ISO7816.OFFSET_LC] = (len > 0xff) ? 0 : (byte) len;
 
     return len;
   }
 
   /**
    * Verifies the AES CBC-MAC, either natively or with a software implementation. Can only be called from the
-   * preprocessAPDU method since it expects the input buffer to be formatted in a particular way.
+   * preprocessAPDU method since it expects the input buffer to be formatted in a particular way. The APDU header, up to
+   * the command data, is padded with zeros to a full block and MACed before the data.
+   *
+   * The MAC object is only initialized for signing, so the MAC is computed in the block buffer and compared with the
+   * received one. The block buffer then holds the IV for the next APDU.
    *
    * @param apduBuffer the APDU buffer
+   * @param dataOff the offset of the command data
    * @param apduLen the data len
    */
-  private boolean verifyAESMAC(byte[] apduBuffer, short apduLen) {
-    scMac.init(scMacKey, Signature.MODE_VERIFY);
-    scMac.update(apduBuffer, (short) 0, ISO7816.OFFSET_CDATA);
-    scMac.update(secret, SC_BLOCK_SIZE, (short) (SC_BLOCK_SIZE - ISO7816.OFFSET_CDATA));
+  private boolean verifyAESMAC(byte[] apduBuffer, short dataOff, short apduLen) {
+    if ((apduLen < (short) (SC_BLOCK_SIZE * 2)) || ((short) (apduLen % SC_BLOCK_SIZE) != 0)) {
+      return false;
+    }
+
+    scMac.update(apduBuffer, (short) 0, dataOff);
+    scMac.update(secret, SC_BLOCK_SIZE, (short) (SC_BLOCK_SIZE - dataOff));
+    scMac.sign(apduBuffer, (short) (dataOff + SC_BLOCK_SIZE), (short) (apduLen - SC_BLOCK_SIZE), blockBuffer, (short) 0);
+
+    return Util.arrayCompare(apduBuffer, dataOff, blockBuffer, (short) 0, SC_BLOCK_SIZE) == 0;
+  }
+
+  /**
+   * Removes the ISO/IEC 9797-1 Method 2 padding from the given plaintext. Throws 0x6A80 if the padding is invalid.
+   *
+   * @param buf the buffer
+   * @param off the offset of the plaintext
+   * @param len the length of the padded plaintext
+   * @return the length of the plaintext
+   */
+  private short unpad(byte[] buf, short off, short len) {
+    while (len > 0) {
+      len--;
+
+      if (buf[(short) (off + len)] == (byte) 0x80) {
+        return len;
+      } else if (buf[(short) (off + len)] != 0) {
+        break;
+      }
+    }
+
+    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+    return 0;
+  }
+
+  /**
+   * XORs the given block with the block at the given offset of the buffer, in place.
+   *
+   * @param buf the buffer
+   * @param off the offset of the block to modify
+   * @param block the buffer containing the other block
+   * @param blockOff the offset of the other block
+   */
+  private static void xorBlock(byte[] buf, short off, byte[] block, short blockOff) {
+    for (short i = 0; i < SC_BLOCK_SIZE; i++) {
+      buf[(short) (off + i)] ^= block[(short) (blockOff + i)];
+    }
+  }
+
+  /**
+   * Returns whether the current command is an extended length APDU. The response to an extended length command can be
+   * longer than 256 bytes and is limited only by the size of the APDU buffer.
+   *
+   * @param apdu the APDU object
+   * @return whether the current command is an extended length APDU
+   */
+  public static boolean isExtendedLength(APDU apdu) {
+    return apdu.getOffsetCdata() == ISO7816.OFFSET_EXT_CDATA;
+  }
+
+  /**
+   * Returns whether the current command is an extended length APDU or has been received through command chaining. The
+   * response to such commands can be longer than SC_MAX_PLAIN_LENGTH, as long as it fits in the buffer returned by
+   * getBuffer.
+   *
+   * @param apdu the APDU object
+   * @return whether the current command allows a long response
+   */
+  public boolean isLongCommand(APDU apdu) {
+    return isExtendedLength(apdu) || (chainStatus[CHAIN_OFF_STATE] == CHAIN_COMPLETE);
+  }
+
+  /**
+   * Returns the buffer containing the current command, which is the chain buffer if the command has been received
+   * through command chaining or the APDU buffer otherwise. The command must be processed and its response prepared in
+   * this buffer.
+   *
+   * @param apdu the APDU object
+   * @return the buffer containing the current command
+   */
+  public byte[] getBuffer(APDU apdu) {
+    return (chainStatus[CHAIN_OFF_STATE] == CHAIN_COMPLETE) ? chainBuffer : apdu.getBuffer();
+  }
+
+  /**
+   * Handles ISO 7816-4 command chaining and the retrieval of long responses. Must be called for each command once its
+   * data has been received and before it is processed.
+   *
+   * The data of all commands in a chain is assembled in the chain buffer and nothing is verified until the last command
+   * is received, so that the MAC and the IV are handled exactly as for a single extended length APDU. Commands with the
+   * chaining bit set in the CLA byte are answered with SW 0x9000 and no data. All commands in a chain must have the same
+   * INS, P1 and P2, otherwise the chain is abandoned and SW 0x6883 is returned. If the chain does not fit in the chain
+   * buffer, SW 0x6700 is returned. Chaining is only possible with an open secure channel and if it has been enabled at
+   * installation, otherwise SW 0x6884 is returned.
+   *
+   * The response to a chained command is sent in blocks of MAX_MAC_APDU_SIZE bytes. As long as there are more bytes, the
+   * SW is 0x61XX and the next block can be retrieved with a GET RESPONSE command without data. Any other command
+   * discards the rest of the response.
+   *
+   * @param apdu the APDU object
+   * @return true if the command has been completely processed, false if it must be processed by the caller using the
+   * buffer returned by getBuffer
+   */
+  public boolean processChaining(APDU apdu) {
+    byte[] apduBuffer = apdu.getBuffer();
+    boolean getResponse = (apduBuffer[ISO7816.OFFSET_CLA] == ISO7816.CLA_ISO7816) && (apduBuffer[ISO7816.OFFSET_INS] == WalletApplet.INS_GET_RESPONSE) && (apdu.getIncomingLength() == 0);
+
+    if (chainStatus[CHAIN_OFF_STATE] == CHAIN_RESPONDING) {
+      if (getResponse) {
+        sendResponseBlock(apdu);
+        return true;
+      }
+
+      chainStatus[CHAIN_OFF_STATE] = CHAIN_NONE;
+    } else if (chainStatus[CHAIN_OFF_STATE] == CHAIN_COMPLETE) {
+      chainStatus[CHAIN_OFF_STATE] = CHAIN_NONE;
+    }
+
+    if (getResponse) {
+      ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+    }
+
+    boolean chained = (apduBuffer[ISO7816.OFFSET_CLA] & CLA_CHAINING) != 0;
+
+    if (chainStatus[CHAIN_OFF_STATE] == CHAIN_NONE) {
+      if (!chained) {
+        return false;
+      }
+
+      if (chainBuffer == null) {
+        ISOException.throwIt(ISO7816.SW_COMMAND_CHAINING_NOT_SUPPORTED);
+      }
+
+      if (!isOpen() && !isAuthenticationPending()) {
+        ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+      }
+
+      Util.arrayCopyNonAtomic(apduBuffer, ISO7816.OFFSET_CLA, chainBuffer, ISO7816.OFFSET_CLA, ISO7816.OFFSET_LC);
+      chainBuffer[ISO7816.OFFSET_CLA] &= ~CLA_CHAINING;
+      chainStatus[CHAIN_OFF_LENGTH] = 0;
+      chainStatus[CHAIN_OFF_STATE] = CHAIN_RECEIVING;
+    } else if (Util.arrayCompare(apduBuffer, ISO7816.OFFSET_INS, chainBuffer, ISO7816.OFFSET_INS, (short) 3) != 0) {
+      chainStatus[CHAIN_OFF_STATE] = CHAIN_NONE;
+      ISOException.throwIt(ISO7816.SW_LAST_COMMAND_EXPECTED);
+    }
+
+    short len = apdu.getIncomingLength();
+
+    if (len > (short) (SC_CHAIN_BUFFER_SIZE - ISO7816.OFFSET_EXT_CDATA - chainStatus[CHAIN_OFF_LENGTH])) {
+      chainStatus[CHAIN_OFF_STATE] = CHAIN_NONE;
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+
+    Util.arrayCopyNonAtomic(apduBuffer, apdu.getOffsetCdata(), chainBuffer, (short) (ISO7816.OFFSET_EXT_CDATA + chainStatus[CHAIN_OFF_LENGTH]), len);
+    chainStatus[CHAIN_OFF_LENGTH] += len;
 
-    return scMac.verify(apduBuffer, (short) (ISO7816.OFFSET_CDATA + SC_BLOCK_SIZE), (short) (apduLen - SC_BLOCK_SIZE), apduBuffer, ISO7816.OFFSET_CDATA, SC_BLOCK_SIZE);
+    if (chained) {
+      return true;
+    }
+
+    chainBuffer[ISO7816.OFFSET_LC] = 0;
+    Util.setShort(chainBuffer, (short) (ISO7816.OFFSET_LC + 1), chainStatus[CHAIN_OFF_LENGTH]);
+    chainStatus[CHAIN_OFF_STATE] = CHAIN_COMPLETE;
+
+    return false;
   }
 
   /**
    * Sends the response to the command. This the given SW is appended to the data automatically. The response data must
    * be placed starting at the SecureChannel.SC_OUT_OFFSET offset, to leave place for the SecureChannel-specific data at
-   * the beginning of the APDU.
+   * the beginning of the buffer returned by getBuffer. If the command was an extended length APDU or has been received
+   * through command chaining, the response can be longer than SC_MAX_PLAIN_LENGTH, as long as it fits in that buffer.
+   * The response to a chained command is sent in blocks, as described in processChaining.
    *
    * @param apdu the APDU object
    * @param len the length of the plaintext
    */
   public void respond(APDU apdu, short len, short sw) {
-    byte[] apduBuffer = apdu.getBuffer();
+    byte[] apduBuffer = getBuffer(apdu);
 
     Util.setShort(apduBuffer, (short) (SC_OUT_OFFSET + len), sw);
     len += 2;
 
-    scCipher.init(scEncKey, Cipher.MODE_ENCRYPT, secret, (short) 0, SC_BLOCK_SIZE);
-    len = scCipher.doFinal(apduBuffer, SC_OUT_OFFSET, len, apduBuffer, (short)(ISO7816.OFFSET_CDATA + SC_BLOCK_SIZE));
+    short fullLen = (short) (len - (short) (len % SC_BLOCK_SIZE));
+    Util.arrayFillNonAtomic(blockBuffer, (short) 0, SC_BLOCK_SIZE, (byte) 0);
+    Util.arrayCopyNonAtomic(apduBuffer, (short) (SC_OUT_OFFSET + fullLen), blockBuffer, (short) 0, (short) (len - fullLen));
+    blockBuffer[(short) (len - fullLen)] = (byte) 0x80;
+
+    if (fullLen == 0) {
+      xorBlock(blockBuffer, (short) 0, secret, (short) 0);
+      len = 0;
+    } else {
+      xorBlock(apduBuffer, SC_OUT_OFFSET, secret, (short) 0);
+      len = scEncCipher.update(apduBuffer, SC_OUT_OFFSET, fullLen, apduBuffer, (short)(ISO7816.OFFSET_CDATA + SC_BLOCK_SIZE));
+    }
 
-    apduBuffer[0] = (byte) (len + SC_BLOCK_SIZE);
+    len += scEncCipher.doFinal(blockBuffer, (short) 0, SC_BLOCK_SIZE, apduBuffer, (short)(ISO7816.OFFSET_CDATA + SC_BLOCK_SIZE + len));
 
-    computeAESMAC(len, apduBuffer);
+    computeAESMAC(len, apduBuffer, isLongCommand(apdu));
 
     Util.arrayCopyNonAtomic(apduBuffer, ISO7816.OFFSET_CDATA, secret, (short) 0, SC_BLOCK_SIZE);
 
     len += SC_BLOCK_SIZE;
-    apdu.setOutgoingAndSend(ISO7816.OFFSET_CDATA, len);
+    counters.add(Counters.SC_BYTES_OUT, len);
+
+    if (apduBuffer == chainBuffer) {
+      chainStatus[CHAIN_OFF_STATE] = CHAIN_RESPONDING;
+      chainStatus[CHAIN_OFF_LENGTH] = ISO7816.OFFSET_CDATA;
+      chainStatus[CHAIN_OFF_REMAINING] = len;
+      sendResponseBlock(apdu);
+    } else {
+      apdu.setOutgoingAndSend(ISO7816.OFFSET_CDATA, len);
+    }
+  }
+
+  /**
+   * Sends the next block of the response to a chained command. If more bytes are left after this block, the SW 0x61XX
+   * is thrown, where XX is the number of bytes left or 0x00 if they are more than 255.
+   *
+   * @param apdu the APDU object
+   */
+  private void sendResponseBlock(APDU apdu) {
+    short len = (chainStatus[CHAIN_OFF_REMAINING] > MAX_MAC_APDU_SIZE) ? MAX_MAC_APDU_SIZE : chainStatus[CHAIN_OFF_REMAINING];
+
+    Util.arrayCopyNonAtomic(chainBuffer, chainStatus[CHAIN_OFF_LENGTH], apdu.getBuffer(), (short) 0, len);
+    chainStatus[CHAIN_OFF_LENGTH] += len;
+    chainStatus[CHAIN_OFF_REMAINING] -= len;
+    apdu.setOutgoingAndSend((short) 0, len);
+
+    len = chainStatus[CHAIN_OFF_REMAINING];
+
+    if (len == 0) {
+      chainStatus[CHAIN_OFF_STATE] = CHAIN_NONE;
+    } else {
+      ISOException.throwIt((short) (ISO7816.SW_BYTES_REMAINING_00 | ((len > 0xff) ? 0 : len)));
+    }
   }
 
   /**
    * Computes the AES CBC-MAC, either natively or with a software implementation. Can only be called from the respond
-   * method since it expects the input buffer to be formatted in a particular way.
+   * method since it expects the input buffer to be formatted in a particular way. The response length, encoded in a
+   * single byte or, for extended length APDUs, as a 0 byte followed by a 16-bit big endian integer, is padded with
+   * zeros to a full block and MACed before the data.
    *
    * @param len the data len
    * @param apduBuffer the APDU buffer
+   * @param extended whether the response length must be encoded as for extended length APDUs
    */
-  private void computeAESMAC(short len, byte[] apduBuffer) {
-    scMac.init(scMacKey, Signature.MODE_SIGN);
-    scMac.update(apduBuffer, (short) 0, (short) 1);
-    scMac.update(secret, SC_BLOCK_SIZE, (short) (SC_BLOCK_SIZE - 1));
+  private void computeAESMAC(short len, byte[] apduBuffer, boolean extended) {
+    short metaLen = 1;
+
+    if (extended) {
+      apduBuffer[0] = 0;
+      metaLen = Util.setShort(apduBuffer, (short) 1, (short) (len + SC_BLOCK_SIZE));
+    } else {
+      apduBuffer[0] = (byte) (len + SC_BLOCK_SIZE);
+    }
+
+    scMac.update(apduBuffer, (short) 0, metaLen);
+    scMac.update(secret, SC_BLOCK_SIZE, (short) (SC_BLOCK_SIZE - metaLen));
     scMac.sign(apduBuffer, (short) (ISO7816.OFFSET_CDATA + SC_BLOCK_SIZE), len, apduBuffer, ISO7816.OFFSET_CDATA);
   }
 
@@ -389,6 +808,38 @@ public class SecureChannel {
     return scEncKey.isInitialized() && scMacKey.isInitialized() && mutuallyAuthenticated;
   }
 
+  /**
+   * Returns whether the secure channel has been opened with implicit authentication and is waiting for the first
+   * command to authenticate the client.
+   *
+   * @return whether authentication is pending
+   */
+  private boolean isAuthenticationPending() {
+    return implicitAuthentication && scEncKey.isInitialized() && scMacKey.isInitialized();
+  }
+
+  /**
+   * Performs the ticket action prepared during OPEN SECURE CHANNEL on the pairing slot of the session: a new ticket is
+   * stored if the client requested one, while resuming only decrements the counter of the ticket, which is a single
+   * byte write. Must be called once the client has been authenticated.
+   */
+  private void storeTicket() {
+    short ticketOff = (short) (pendingTicket[TICKET_OFF_INDEX] * TICKET_LENGTH);
+
+    switch (pendingTicket[TICKET_OFF_ACTION]) {
+      case TICKET_ACTION_STORE:
+        Util.arrayCopy(pendingTicket, TICKET_OFF_COUNTER, resumptionTickets, ticketOff, TICKET_LENGTH);
+        break;
+      case TICKET_ACTION_RESUME:
+        resumptionTickets[ticketOff] = pendingTicket[TICKET_OFF_COUNTER];
+        break;
+      default:
+        break;
+    }
+
+    pendingTicket[TICKET_OFF_ACTION] = TICKET_ACTION_NONE;
+  }
+
   /**
    * Returns the number of still available pairing slots.
    */
@@ -397,17 +848,59 @@ public class SecureChannel {
   }
 
   /**
-   * Called before sending the public key to the client, gives a chance to change keys if needed.
+   * Called before sending the public key to the client, gives a chance to change keys if needed. The key pair is
+   * replaced every scCounterMax + 1 calls with the one prepared by prepareNextKey, which is generated here only if it
+   * has not been prepared.
    */
   public void updateSecureChannelCounter() {
-    if (scCounter < SC_COUNTER_MAX) {
+    if (scCounter < scCounterMax) {
       scCounter++;
-    } else {
-      scKeypair.genKeyPair();
-      scCounter = 0;
+      return;
+    }
+
+    if (nextKeypairStale) {
+      nextKeypair.genKeyPair();
+      counters.increment(Counters.KEY_GENERATIONS);
+    }
+
+    KeyPair oldKeypair = scKeypair;
+
+    JCSystem.beginTransaction();
+    scKeypair = nextKeypair;
+    nextKeypair = oldKeypair;
+    nextKeypairStale = true;
+    scCounter = 0;
+    JCSystem.commitTransaction();
+    counters.increment(Counters.TRANSACTIONS);
+    counters.increment(Counters.KEY_ROTATIONS);
+  }
+
+  /**
+   * Processes the PREPARE NEXT KEY command, generating the key pair to use after the next rotation if needed. This
+   * method assumes that all security checks have been performed by the calling method.
+   */
+  public void prepareNextKey() {
+    if (nextKeypairStale) {
+      nextKeypair.genKeyPair();
+      counters.increment(Counters.KEY_GENERATIONS);
+      nextKeypairStale = false;
     }
   }
 
+  /**
+   * Sets the number of times the public key is sent to clients before the key pair is rotated. Only usable during the
+   * initialization of the applet.
+   *
+   * @param interval the rotation interval, must be positive
+   */
+  public void setKeyRotationInterval(short interval) {
+    if (interval <= 0) {
+      ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+    }
+
+    scCounterMax = interval;
+  }
+
   /**
    * Resets the Secure Channel, invalidating the current session. If no session is opened, this does nothing.
    */
@@ -415,6 +908,8 @@ public class SecureChannel {
     scEncKey.clearKey();
     scMacKey.clearKey();
     mutuallyAuthenticated = false;
+    implicitAuthentication = false;
+    chainStatus[CHAIN_OFF_STATE] = CHAIN_NONE;
   }
 
   /**
@@ -428,7 +923,8 @@ public class SecureChannel {
 
   /**
    * Returns the offset in the pairingKey byte array of the pairing key with the given index. Throws 0x6A86 if the index
-   * is invalid
+   * is invalid. The offset is computed with a single multiplication by a constant, which costs less than reading a
+   * lookup table from EEPROM and does not depend on the number of slots.
    *
    * @param idx the index
    * @return the offset
@@ -436,10 +932,54 @@ public class SecureChannel {
   private short checkPairingIndexAndGetOffset(byte idx) {
     short off = (short) (idx * PAIRING_KEY_LENGTH);
 
-    if (off >= ((short) pairingKeys.length)) {
+    if ((idx < 0) || (off >= ((short) pairingKeys.length))) {
       ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
     }
 
     return off;
   }
+
+  /**
+   * Returns the index of the first free pairing slot, or -1 if all slots are used.
+   *
+   * @return the index of the slot or -1
+   */
+  private byte findFreeSlot() {
+    short i = 0;
+
+    while ((i < (short) usedSlots.length) && (usedSlots[i] == (byte) 0xff)) {
+      i++;
+    }
+
+    if (i == (short) usedSlots.length) {
+      return -1;
+    }
+
+    byte idx = (byte) (i << 3);
+    byte mask = (byte) 0x80;
+
+    while ((mask != 0) && ((usedSlots[i] & mask) != 0)) {
+      mask = (byte) ((mask & 0xff) >> 1);
+      idx++;
+    }
+
+    return (idx < pairingLimit) ? idx : -1;
+  }
+
+  /**
+   * Marks the pairing slot with the given index as used or free.
+   *
+   * @param idx the index of the slot
+   * @param used whether the slot is used
+   */
+  private void setSlotUsed(byte idx, boolean used) {
+    short i = (short) (idx >> 3);
+    byte mask = (byte) (0x80 >> (idx & 7));
+
+    if (used) {
+      usedSlots[i] |= mask;
+    } else {
+      usedSlots[i] &= (byte) ~mask;
+    }
+  }
 }
@@ -2,11 +2,14 @@ package im.status.wallet;
 
 import javacard.framework.*;
 import javacard.security.*;
+import javacardx.apdu.ExtendedLength;
 
 /**
- * The applet's main class. All incoming commands a processed by this class.
+ * The applet's main class. All incoming commands a processed by this class. Extended length APDUs are supported, as
+ * long as the command data fits in the APDU buffer. Command chaining is supported for all commands sent over the
+ * secure channel, see SecureChannel.processChaining.
  */
-public class WalletApplet extends Applet {
+public class WalletApplet extends Applet implements ExtendedLength {
   static final short APPLICATION_VERSION = (short) 0x0200;
 
   static final byte INS_INIT = (byte) 0xFE;
@@ -22,22 +25,30 @@ public class WalletApplet extends Applet {
   static final byte INS_SIGN = (byte) 0xC0;
   static final byte INS_SET_PINLESS_PATH = (byte) 0xC1;
   static final byte INS_EXPORT_KEY = (byte) 0xC2;
+  static final byte INS_GET_RESPONSE = (byte) 0xC0;
 
   static final byte PUK_LENGTH = 12;
   static final byte PUK_MAX_RETRIES = 5;
   static final byte PIN_LENGTH = 6;
+  static final short INIT_MIN_LENGTH = PIN_LENGTH + PUK_LENGTH + SecureChannel.SC_SECRET_LENGTH;
   static final byte PIN_MAX_RETRIES = 3;
   static final byte KEY_PATH_MAX_DEPTH = 10;
-  static final byte PAIRING_MAX_CLIENT_COUNT = 5;
+  static final byte PAIRING_DEFAULT_CLIENT_COUNT = 5;
+  static final byte INSTALL_OPT_COMMAND_CHAINING = 0x01;
   static final byte UID_LENGTH = 16;
 
   static final short EC_KEY_SIZE = 256;
   static final short CHAIN_CODE_SIZE = 32;
+  static final short EC_PUB_KEY_SIZE = 65;
   static final short KEY_UID_LENGTH = 32;
   static final short BIP39_SEED_SIZE = CHAIN_CODE_SIZE * 2;
 
   static final byte GET_STATUS_P1_APPLICATION = 0x00;
   static final byte GET_STATUS_P1_KEY_PATH = 0x01;
+  static final byte GET_STATUS_P1_COUNTERS = 0x02;
+
+  static final byte GET_STATUS_P2_COUNTERS_TOTAL = 0x00;
+  static final byte GET_STATUS_P2_COUNTERS_SESSION = 0x01;
 
   static final byte CHANGE_PIN_P1_USER_PIN = 0x00;
   static final byte CHANGE_PIN_P1_PUK = 0x01;
@@ -50,16 +61,34 @@ public class WalletApplet extends Applet {
   static final byte DERIVE_P1_SOURCE_MASTER = (byte) 0x00;
   static final byte DERIVE_P1_SOURCE_PARENT = (byte) 0x40;
   static final byte DERIVE_P1_SOURCE_CURRENT = (byte) 0x80;
+  static final byte DERIVE_P1_SOURCE_MASK = (byte) 0xC0;
 
   static final byte GENERATE_MNEMONIC_P1_CS_MIN = 4;
   static final byte GENERATE_MNEMONIC_P1_CS_MAX = 8;
   static final byte GENERATE_MNEMONIC_TMP_OFF = SecureChannel.SC_OUT_OFFSET + ((((GENERATE_MNEMONIC_P1_CS_MAX * 32) + GENERATE_MNEMONIC_P1_CS_MAX) / 11) * 2);
 
+  static final byte SIGN_P1_PRECOMPUTED_HASH = 0x00;
+  static final byte SIGN_P1_BATCH = 0x01;
+  static final byte SIGN_P1_DERIVE = 0x02;
+  static final byte SIGN_P1_MODE_MASK = 0x3F;
+
+  static final byte SIGN_P2_PUB_KEY_UNCOMPRESSED = 0x00;
+  static final byte SIGN_P2_PUB_KEY_COMPRESSED = 0x01;
+  static final byte SIGN_P2_PUB_KEY_OMITTED = 0x02;
+
+  static final byte EC_COMPRESSED_PUB_KEY_SIZE = 33;
+
+  static final short SIGN_TEMPLATE_MAX_SIZE = 74;
+
   static final byte EXPORT_KEY_P1_ANY = 0x00;
   static final byte EXPORT_KEY_P1_HIGH = 0x01;
 
   static final byte EXPORT_KEY_P2_PRIVATE_AND_PUBLIC = 0x00;
   static final byte EXPORT_KEY_P2_PUBLIC_ONLY = 0x01;
+  static final byte EXPORT_KEY_P2_EXTENDED_PUBLIC = 0x02;
+  static final byte EXPORT_KEY_P2_PUBLIC_RANGE = 0x03;
+
+  static final short EXPORT_KEY_RANGE_HEADER_SIZE = 5;
 
   static final byte TLV_SIGNATURE_TEMPLATE = (byte) 0xA0;
 
@@ -78,6 +107,12 @@ public class WalletApplet extends Applet {
 
   private static final byte EXPORT_KEY_HIGH_MASK = (byte) 0xc0;
 
+  private static final short PUB_CACHE_OFF_UNCOMPRESSED = 0;
+  private static final short PUB_CACHE_OFF_COMPRESSED = PUB_CACHE_OFF_UNCOMPRESSED + EC_PUB_KEY_SIZE;
+  private static final short PUB_CACHE_SIZE = PUB_CACHE_OFF_COMPRESSED + EC_COMPRESSED_PUB_KEY_SIZE;
+
+  private static final short KEY_NODE_SIZE = (CHAIN_CODE_SIZE * 2) + EC_PUB_KEY_SIZE;
+
   private OwnerPIN pin;
   private OwnerPIN puk;
   private byte[] uid;
@@ -97,6 +132,17 @@ public class WalletApplet extends Applet {
   private ECPrivateKey privateKey;
   private byte[] chainCode;
 
+  /*
+   * The current public key in both uncompressed and compressed format, so that it does not need to be read from the key
+   * object every time it is returned. The cache is valid only if its first byte is 0x04, the prefix of an uncompressed
+   * point.
+   */
+  private byte[] publicKeyCache;
+
+  private ECPrivateKey derivationPrivateKey;
+  private byte[] derivationChainCode;
+  private DerivationCache derivationCache;
+
   private byte[] keyPath;
   private short keyPathLen;
 
@@ -109,6 +155,7 @@ public class WalletApplet extends Applet {
 
   private Crypto crypto;
   private SECP256k1 secp256k1;
+  private Counters counters;
 
   /**
    * Invoked during applet installation. Creates an instance of this class. The installation parameters are passed in
@@ -129,13 +176,21 @@ public class WalletApplet extends Applet {
    * of memory because of other applets allocating memory. The constructor also registers the applet with the JCRE so
    * that it becomes selectable.
    *
+   * The application specific installation parameters can contain a byte with the number of pairing slots, between 1 and
+   * SecureChannel.PAIRING_MAX_CLIENT_COUNT. If absent, PAIRING_DEFAULT_CLIENT_COUNT slots are allocated. It can be
+   * followed by a byte of options: with INSTALL_OPT_COMMAND_CHAINING set, the buffer needed for command chaining is
+   * allocated. Command chaining is disabled by default, since this buffer does not fit in the RAM left to applets by
+   * many cards. The options can be followed by the number of derivation cache entries, between 0, which disables the
+   * cache, and DerivationCache.MAX_ENTRY_COUNT. If absent, DerivationCache.DEFAULT_ENTRY_COUNT entries are allocated.
+   *
    * @param bArray installation parameters buffer
    * @param bOffset offset where the installation parameters begin
    * @param bLength length of the installation parameters
    */
   public WalletApplet(byte[] bArray, short bOffset, byte bLength) {
     crypto = new Crypto();
-    secp256k1 = new SECP256k1(crypto);
+    counters = new Counters();
+    secp256k1 = new SECP256k1(crypto, counters);
 
     uid = new byte[UID_LENGTH];
     crypto.random.generateData(uid, (short) 0, UID_LENGTH);
@@ -149,6 +204,12 @@ public class WalletApplet extends Applet {
     publicKey = (ECPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PUBLIC, EC_KEY_SIZE, false);
     privateKey = (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE, EC_KEY_SIZE, false);
 
+    derivationPrivateKey = buildTransientPrivateKey();
+    derivationChainCode = JCSystem.makeTransientByteArray(CHAIN_CODE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+    short paramsOff = getApplicationParametersOffset(bArray, bOffset);
+    derivationCache = new DerivationCache(getDerivationCacheEntryCount(bArray, paramsOff));
+    publicKeyCache = JCSystem.makeTransientByteArray(PUB_CACHE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+
     masterChainCode = new byte[CHAIN_CODE_SIZE];
     parentChainCode = new byte[CHAIN_CODE_SIZE];
     chainCode = new byte[CHAIN_CODE_SIZE];
@@ -160,11 +221,106 @@ public class WalletApplet extends Applet {
     resetCurveParameters();
 
     signature = Signature.getInstance(Signature.ALG_ECDSA_SHA_256, false);
-    secureChannel = new SecureChannel(PAIRING_MAX_CLIENT_COUNT, crypto, secp256k1);
+    boolean commandChaining = (getInstallOptions(bArray, paramsOff) & INSTALL_OPT_COMMAND_CHAINING) != 0;
+    secureChannel = new SecureChannel(getPairingClientCount(bArray, paramsOff), commandChaining, crypto, secp256k1, counters);
 
     register(bArray, (short) (bOffset + 1), bArray[bOffset]);
   }
 
+  /**
+   * Returns the offset of the application specific parameters in the installation parameters. These are formatted as
+   * three consecutive LV fields: the instance AID, the privileges and the application specific parameters.
+   *
+   * @param bArray installation parameters buffer
+   * @param bOffset offset where the installation parameters begin
+   * @return the offset of the length byte of the application specific parameters
+   */
+  private static short getApplicationParametersOffset(byte[] bArray, short bOffset) {
+    short off = (short) (bOffset + bArray[bOffset] + 1);
+    return (short) (off + bArray[off] + 1);
+  }
+
+  /**
+   * Reads the number of pairing slots from the application specific installation parameters. Throws 0x6A80 if the
+   * number of slots is given but is not valid.
+   *
+   * @param bArray installation parameters buffer
+   * @param off offset of the application specific parameters
+   * @return the number of pairing slots
+   */
+  private byte getPairingClientCount(byte[] bArray, short off) {
+    if (bArray[off] == 0) {
+      return PAIRING_DEFAULT_CLIENT_COUNT;
+    }
+
+    byte count = bArray[(short) (off + 1)];
+
+    if ((count < 1) || (count > SecureChannel.PAIRING_MAX_CLIENT_COUNT)) {
+      ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+    }
+
+    return count;
+  }
+
+  /**
+   * Reads the options byte from the application specific installation parameters. Throws 0x6A80 if unknown options are
+   * set.
+   *
+   * @param bArray installation parameters buffer
+   * @param off offset of the application specific parameters
+   * @return the options, 0 if not given
+   */
+  private byte getInstallOptions(byte[] bArray, short off) {
+    if (bArray[off] < 2) {
+      return 0;
+    }
+
+    byte options = bArray[(short) (off + 2)];
+
+    if ((options & ~INSTALL_OPT_COMMAND_CHAINING) != 0) {
+      ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+    }
+
+    return options;
+  }
+
+  /**
+   * Reads the number of derivation cache entries from the application specific installation parameters. Throws 0x6A80
+   * if the number is larger than DerivationCache.MAX_ENTRY_COUNT.
+   *
+   * @param bArray installation parameters buffer
+   * @param off offset of the application specific parameters
+   * @return the number of entries, DerivationCache.DEFAULT_ENTRY_COUNT if not given
+   */
+  private byte getDerivationCacheEntryCount(byte[] bArray, short off) {
+    if (bArray[off] < 3) {
+      return DerivationCache.DEFAULT_ENTRY_COUNT;
+    }
+
+    byte count = bArray[(short) (off + 3)];
+
+    if ((count < 0) || (count > DerivationCache.MAX_ENTRY_COUNT)) {
+      ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+    }
+
+    return count;
+  }
+
+  /**
+   * Allocates a private key for temporary use. A transient key is used if the card supports it, so that writing to the
+   * key does not wear the EEPROM and is much faster. Otherwise a persistent key is allocated, which works the same way
+   * but without the performance benefits.
+   *
+   * @return the allocated private key
+   */
+  private ECPrivateKey buildTransientPrivateKey() {
+    try {
+      return (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE_TRANSIENT_DESELECT, EC_KEY_SIZE, false);
+    } catch (CryptoException e) {
+      return (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE, EC_KEY_SIZE, false);
+    }
+  }
+
   /**
    * This method is called on every incoming APDU. This method is just a dispatcher which invokes the correct method
    * depending on the INS of the APDU.
@@ -179,14 +335,20 @@ public class WalletApplet extends Applet {
       return;
     }
 
+    byte[] apduBuffer = apdu.getBuffer();
+    counters.countCommand(apduBuffer[ISO7816.OFFSET_INS], isGetResponse(apduBuffer));
+
     // Since selection can happen not only by a SELECT command, we check for that separately.
     if (selectingApplet()) {
       selectApplet(apdu);
       return;
     }
 
-    apdu.setIncomingAndReceive();
-    byte[] apduBuffer = apdu.getBuffer();
+    receiveData(apdu);
+
+    if (secureChannel.processChaining(apdu)) {
+      return;
+    }
 
     try {
       switch (apduBuffer[ISO7816.OFFSET_INS]) {
@@ -202,6 +364,9 @@ public class WalletApplet extends Applet {
         case SecureChannel.INS_UNPAIR:
           unpair(apdu);
           break;
+        case SecureChannel.INS_PREPARE_NEXT_KEY:
+          prepareNextKey(apdu);
+          break;
         case INS_GET_STATUS:
           getStatus(apdu);
           break;
@@ -255,6 +420,39 @@ public class WalletApplet extends Applet {
     }
   }
 
+  /**
+   * Receives the whole command data in the APDU buffer. For short APDUs this is done by a single call to
+   * setIncomingAndReceive, while the data of extended length APDUs might need to be received in several steps. If the
+   * data does not fit in the APDU buffer, SW 0x6700 is returned.
+   *
+   * @param apdu the JCRE-owned APDU object.
+   */
+  private void receiveData(APDU apdu) {
+    short received = apdu.setIncomingAndReceive();
+    short dataOff = apdu.getOffsetCdata();
+    short dataLen = apdu.getIncomingLength();
+
+    if (dataLen > (short) (apduBufferLength(apdu.getBuffer()) - dataOff)) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+
+    while (received < dataLen) {
+      received += apdu.receiveBytes((short) (dataOff + received));
+    }
+  }
+
+  /**
+   * Returns the usable length of the APDU buffer. Some implementations allocate a buffer larger than 32767 bytes for
+   * extended length APDUs, in which case only the part addressable with a short offset is used.
+   *
+   * @param apduBuffer the APDU buffer
+   * @return the usable length of the APDU buffer
+   */
+  private static short apduBufferLength(byte[] apduBuffer) {
+    short len = (short) apduBuffer.length;
+    return (len < 0) ? Short.MAX_VALUE : len;
+  }
+
   /**
    * Processes the init command, this is invoked only if the applet has not yet been personalized with secrets.
    *
@@ -271,10 +469,16 @@ public class WalletApplet extends Applet {
     } else if (apduBuffer[ISO7816.OFFSET_INS] == INS_INIT) {
       secureChannel.oneShotDecrypt(apduBuffer);
 
-      if ((apduBuffer[ISO7816.OFFSET_LC] != (byte)(PIN_LENGTH + PUK_LENGTH + SecureChannel.SC_SECRET_LENGTH)) || !allDigits(apduBuffer, ISO7816.OFFSET_CDATA, (short)(PIN_LENGTH + PUK_LENGTH))) {
+      short len = (short) (apduBuffer[ISO7816.OFFSET_LC] & 0xff);
+
+      if (((len != INIT_MIN_LENGTH) && (len != (short) (INIT_MIN_LENGTH + 2))) || !allDigits(apduBuffer, ISO7816.OFFSET_CDATA, (short)(PIN_LENGTH + PUK_LENGTH))) {
         ISOException.throwIt(ISO7816.SW_WRONG_DATA);
       }
 
+      if (len != INIT_MIN_LENGTH) {
+        secureChannel.setKeyRotationInterval(Util.getShort(apduBuffer, (short) (ISO7816.OFFSET_CDATA + INIT_MIN_LENGTH)));
+      }
+
       JCSystem.beginTransaction();
       secureChannel.initSecureChannel(apduBuffer, (short)(ISO7816.OFFSET_CDATA + PIN_LENGTH + PUK_LENGTH));
 
@@ -301,7 +505,7 @@ public class WalletApplet extends Applet {
    * @param apdu the JCRE-owned APDU object.
    */
   private void unpair(APDU apdu) {
-    byte[] apduBuffer = apdu.getBuffer();
+    byte[] apduBuffer = secureChannel.getBuffer(apdu);
     secureChannel.preprocessAPDU(apduBuffer);
 
     if (pin.isValidated()) {
@@ -311,6 +515,17 @@ public class WalletApplet extends Applet {
     }
   }
 
+  /**
+   * Processes the PREPARE NEXT KEY command. Requires an open secure channel but does not check if the PIN has been
+   * verified, since the command only affects the key pair used for EC-DH.
+   *
+   * @param apdu the JCRE-owned APDU object.
+   */
+  private void prepareNextKey(APDU apdu) {
+    secureChannel.preprocessAPDU(secureChannel.getBuffer(apdu));
+    secureChannel.prepareNextKey();
+  }
+
   /**
    * Invoked on applet (re-)selection. Aborts any in-progress signing session and sets PIN and PUK to not verified.
    * Responds with a SECP256k1 public key which the client must use to establish a secure channel.
@@ -359,7 +574,7 @@ public class WalletApplet extends Applet {
    * @param apdu the JCRE-owned APDU object.
    */
   private void getStatus(APDU apdu) {
-    byte[] apduBuffer = apdu.getBuffer();
+    byte[] apduBuffer = secureChannel.getBuffer(apdu);
     secureChannel.preprocessAPDU(apduBuffer);
 
     short len;
@@ -368,6 +583,10 @@ public class WalletApplet extends Applet {
       len = getApplicationStatus(apduBuffer, SecureChannel.SC_OUT_OFFSET);
     } else if (apduBuffer[ISO7816.OFFSET_P1] == GET_STATUS_P1_KEY_PATH) {
       len = getKeyStatus(apduBuffer, SecureChannel.SC_OUT_OFFSET);
+    } else if ((apduBuffer[ISO7816.OFFSET_P1] == GET_STATUS_P1_COUNTERS) && (apduBuffer[ISO7816.OFFSET_P2] == GET_STATUS_P2_COUNTERS_TOTAL)) {
+      len = counters.copyTotals(apduBuffer, SecureChannel.SC_OUT_OFFSET);
+    } else if ((apduBuffer[ISO7816.OFFSET_P1] == GET_STATUS_P1_COUNTERS) && (apduBuffer[ISO7816.OFFSET_P2] == GET_STATUS_P2_COUNTERS_SESSION)) {
+      len = counters.copySession(apduBuffer, SecureChannel.SC_OUT_OFFSET);
     } else {
       ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
       return;
@@ -417,17 +636,20 @@ public class WalletApplet extends Applet {
   }
 
   /**
-   * Processes the VERIFY PIN command. Requires a secure channel to be already open. If a PIN longer or shorter than 6
-   * digits is provided, the method will still proceed with its verification and will decrease the remaining tries
-   * counter.
+   * Processes the VERIFY PIN command. Requires a secure channel to be already open. A PIN longer or shorter than 6
+   * digits is rejected with 0x6A80 without being verified, so the remaining tries counter is not decreased.
    *
    * @param apdu the JCRE-owned APDU object.
    */
   private void verifyPIN(APDU apdu) {
-    byte[] apduBuffer = apdu.getBuffer();
-    byte len = (byte) secureChannel.preprocessAPDU(apduBuffer);
+    byte[] apduBuffer = secureChannel.getBuffer(apdu);
+    short len = secureChannel.preprocessAPDU(apduBuffer);
 
-    if (!pin.check(apduBuffer, ISO7816.OFFSET_CDATA, len)) {
+    if (len != PIN_LENGTH) {
+      ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+    }
+
+    if (!pin.check(apduBuffer, ISO7816.OFFSET_CDATA, PIN_LENGTH)) {
       ISOException.throwIt((short)((short) 0x63c0 | (short) pin.getTriesRemaining()));
     }
   }
@@ -439,8 +661,8 @@ public class WalletApplet extends Applet {
    * @param apdu the JCRE-owned APDU object.
    */
   private void changePIN(APDU apdu) {
-    byte[] apduBuffer = apdu.getBuffer();
-    byte len = (byte) secureChannel.preprocessAPDU(apduBuffer);
+    byte[] apduBuffer = secureChannel.getBuffer(apdu);
+    short len = secureChannel.preprocessAPDU(apduBuffer);
 
     if (!pin.isValidated()) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
@@ -467,13 +689,13 @@ public class WalletApplet extends Applet {
    * @param apduBuffer the APDU buffer
    * @param len the data length
    */
-  private void changeUserPIN(byte[] apduBuffer, byte len) {
+  private void changeUserPIN(byte[] apduBuffer, short len) {
     if (!(len == PIN_LENGTH && allDigits(apduBuffer, ISO7816.OFFSET_CDATA, len))) {
       ISOException.throwIt(ISO7816.SW_WRONG_DATA);
     }
 
-    pin.update(apduBuffer, ISO7816.OFFSET_CDATA, len);
-    pin.check(apduBuffer, ISO7816.OFFSET_CDATA, len);
+    pin.update(apduBuffer, ISO7816.OFFSET_CDATA, PIN_LENGTH);
+    pin.check(apduBuffer, ISO7816.OFFSET_CDATA, PIN_LENGTH);
   }
 
   /**
@@ -481,12 +703,12 @@ public class WalletApplet extends Applet {
    * @param apduBuffer the APDU buffer
    * @param len the data length
    */
-  private void changePUK(byte[] apduBuffer, byte len) {
+  private void changePUK(byte[] apduBuffer, short len) {
     if (!(len == PUK_LENGTH && allDigits(apduBuffer, ISO7816.OFFSET_CDATA, len))) {
       ISOException.throwIt(ISO7816.SW_WRONG_DATA);
     }
 
-    puk.update(apduBuffer, ISO7816.OFFSET_CDATA, len);
+    puk.update(apduBuffer, ISO7816.OFFSET_CDATA, PUK_LENGTH);
   }
 
   /**
@@ -494,7 +716,7 @@ public class WalletApplet extends Applet {
    * @param apduBuffer the APDU buffer
    * @param len the data length
    */
-  private void changePairingSecret(byte[] apduBuffer, byte len) {
+  private void changePairingSecret(byte[] apduBuffer, short len) {
     if (len != SecureChannel.SC_SECRET_LENGTH) {
       ISOException.throwIt(ISO7816.SW_WRONG_DATA);
     }
@@ -511,8 +733,8 @@ public class WalletApplet extends Applet {
    * @param apdu the JCRE-owned APDU object.
    */
   private void unblockPIN(APDU apdu) {
-    byte[] apduBuffer = apdu.getBuffer();
-    byte len = (byte) secureChannel.preprocessAPDU(apduBuffer);
+    byte[] apduBuffer = secureChannel.getBuffer(apdu);
+    short len = secureChannel.preprocessAPDU(apduBuffer);
 
     if (pin.getTriesRemaining() != 0) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
@@ -542,7 +764,7 @@ public class WalletApplet extends Applet {
    * @param apdu the JCRE-owned APDU object.
    */
   private void loadKey(APDU apdu) {
-    byte[] apduBuffer = apdu.getBuffer();
+    byte[] apduBuffer = secureChannel.getBuffer(apdu);
     secureChannel.preprocessAPDU(apduBuffer);
 
     if (!pin.isValidated()) {
@@ -550,6 +772,8 @@ public class WalletApplet extends Applet {
     }
 
     boolean newExtended = false;
+    derivationCache.clear();
+    publicKeyCache[PUB_CACHE_OFF_UNCOMPRESSED] = 0;
 
     switch (apduBuffer[ISO7816.OFFSET_P1])  {
       case LOAD_KEY_P1_EXT_EC:
@@ -648,6 +872,7 @@ public class WalletApplet extends Applet {
 
     resetKeyStatus(false);
     JCSystem.commitTransaction();
+    counters.increment(Counters.TRANSACTIONS);
   }
 
   /**
@@ -680,6 +905,7 @@ public class WalletApplet extends Applet {
 
     resetKeyStatus(false);
     JCSystem.commitTransaction();
+    counters.increment(Counters.TRANSACTIONS);
   }
 
   /**
@@ -696,9 +922,15 @@ public class WalletApplet extends Applet {
    * key which correctly verifies the signature is the real one and must be uploaded (as an uncompressed point) through
    * this command again. At this point the current key path is updated and the derived key can be used for signing.
    *
-   * In all cases transactions are used to make sure that the current key is always complete (private, chain and public
-   * components are coherent) and the key path matches the actual status of the card. This makes recovery from a sudden
-   * power loss easy.
+   * Derivation is performed in the transient derivation key set, so intermediate keys never touch the EEPROM and
+   * their public keys are only calculated when needed, that is for non-hardened derivation. Only the resulting key,
+   * its parent and the key path are written to persistent memory, in a single transaction. This makes sure that the
+   * current key is always complete (private, chain and public components are coherent) and the key path matches the
+   * actual status of the card, even in case of sudden power loss. If derivation fails, the current key is not changed.
+   *
+   * The source given in P1 only defines the key path the data is relative to. Derivation itself always starts from the
+   * deepest known ancestor of the requested key, including the nodes kept in the derivation cache, so that for example
+   * deriving sibling keys one after the other only takes a single derivation step each.
    *
    * When the reset flag is set and the data is empty, the assisted key derivation flag is ignored, since in this case
    * no derivation is done and the master key becomes the current key.
@@ -706,7 +938,7 @@ public class WalletApplet extends Applet {
    * @param apdu the JCRE-owned APDU object.
    */
   private void deriveKey(APDU apdu) {
-    byte[] apduBuffer = apdu.getBuffer();
+    byte[] apduBuffer = secureChannel.getBuffer(apdu);
     short len = secureChannel.preprocessAPDU(apduBuffer);
 
     if (!((pin.isValidated() || (pinlessPathLen > 0)) && isExtended)) {
@@ -720,34 +952,49 @@ public class WalletApplet extends Applet {
       ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
     }
 
-    if (((short) (len % 4) != 0) || ((short)(len + (isReset ? 0 : keyPathLen)) > keyPath.length)) {
+    short prefixLen = isReset ? 0 : (fromParent ? (short) (keyPathLen - 4) : keyPathLen);
+
+    if (((short) (len % 4) != 0) || ((short)(len + prefixLen) > keyPath.length)) {
       ISOException.throwIt(ISO7816.SW_WRONG_DATA);
     }
 
-    short chainEnd = (short) (ISO7816.OFFSET_CDATA + len);
+    if (len == 0) {
+      if (isReset || fromParent) {
+        resetKeys(fromParent, apduBuffer, ISO7816.OFFSET_CDATA);
+      }
 
-    if (isReset || fromParent) {
-      resetKeys(fromParent, apduBuffer, chainEnd);
+      return;
     }
 
-    for (short i = ISO7816.OFFSET_CDATA; i < chainEnd; i += 4) {
-      JCSystem.beginTransaction();
+    Util.arrayCopyNonAtomic(apduBuffer, ISO7816.OFFSET_CDATA, apduBuffer, (short) (ISO7816.OFFSET_CDATA + prefixLen), len);
+    Util.arrayCopyNonAtomic(keyPath, (short) 0, apduBuffer, ISO7816.OFFSET_CDATA, prefixLen);
+    len += prefixLen;
 
-      copyKeys(privateKey, publicKey, chainCode, parentPrivateKey, parentPublicKey, parentChainCode, apduBuffer, chainEnd);
+    short parentOff = (short) (ISO7816.OFFSET_CDATA + len);
+    short parentPubOff = (short) (parentOff + (CHAIN_CODE_SIZE * 2));
+    short pubOff = (short) (parentPubOff + EC_PUB_KEY_SIZE);
 
-      if (!crypto.bip32CKDPriv(apduBuffer, i, privateKey, publicKey, chainCode, (short) 0)) {
-        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-      }
+    deriveTransient(apduBuffer, ISO7816.OFFSET_CDATA, len, apduBuffer, parentOff, pubOff);
+
+    JCSystem.beginTransaction();
 
-      Util.arrayCopy(apduBuffer, i, keyPath, keyPathLen, (short) 4);
+    parentPrivateKey.setS(apduBuffer, parentOff, CHAIN_CODE_SIZE);
+    Util.arrayCopy(apduBuffer, (short) (parentOff + CHAIN_CODE_SIZE), parentChainCode, (short) 0, CHAIN_CODE_SIZE);
+    parentPublicKey.setW(apduBuffer, parentPubOff, EC_PUB_KEY_SIZE);
 
-      short pubLen = secp256k1.derivePublicKey(privateKey, apduBuffer, chainEnd);
-      publicKey.setW(apduBuffer, chainEnd, pubLen);
-      keyPathLen += 4;
-      parentValid = true;
+    short privLen = derivationPrivateKey.getS(apduBuffer, parentOff);
+    privateKey.setS(apduBuffer, parentOff, privLen);
+    Util.arrayCopy(derivationChainCode, (short) 0, chainCode, (short) 0, CHAIN_CODE_SIZE);
+    publicKey.setW(apduBuffer, pubOff, EC_PUB_KEY_SIZE);
 
-      JCSystem.commitTransaction();
-    }
+    Util.arrayCopy(apduBuffer, ISO7816.OFFSET_CDATA, keyPath, (short) 0, len);
+    keyPathLen = len;
+    parentValid = true;
+
+    JCSystem.commitTransaction();
+    counters.increment(Counters.TRANSACTIONS);
+
+    cachePublicKey(apduBuffer, pubOff);
   }
 
   /**
@@ -767,6 +1014,9 @@ public class WalletApplet extends Applet {
     copyKeys(srcPrivKey, srcPubKey, srcChainCode, privateKey, publicKey, chainCode, buffer, offset);
     resetKeyStatus(toParent);
     JCSystem.commitTransaction();
+    counters.increment(Counters.TRANSACTIONS);
+
+    publicKeyCache[PUB_CACHE_OFF_UNCOMPRESSED] = 0;
   }
 
   /**
@@ -790,6 +1040,39 @@ public class WalletApplet extends Applet {
     dstPublic.setW(buffer, pubOff, pubLen);
   }
 
+  /**
+   * Stores the given uncompressed public key, which must be the current one, in the public key cache. Must be called
+   * every time the current key changes, or the cache must be invalidated by clearing its first byte.
+   *
+   * @param pub the buffer containing the uncompressed public key
+   * @param pubOff the offset of the public key
+   */
+  private void cachePublicKey(byte[] pub, short pubOff) {
+    Util.arrayCopyNonAtomic(pub, pubOff, publicKeyCache, PUB_CACHE_OFF_UNCOMPRESSED, EC_PUB_KEY_SIZE);
+    secp256k1.compressPublicKey(publicKeyCache, PUB_CACHE_OFF_UNCOMPRESSED, publicKeyCache, PUB_CACHE_OFF_COMPRESSED);
+  }
+
+  /**
+   * Copies the current public key in the given buffer. The key is taken from the public key cache, which is filled
+   * first if needed.
+   *
+   * @param buffer the destination buffer
+   * @param off the offset in the destination buffer
+   * @param compressed whether the compressed or uncompressed format must be used
+   * @return the length of the public key
+   */
+  private short getCurrentPublicKey(byte[] buffer, short off, boolean compressed) {
+    if (publicKeyCache[PUB_CACHE_OFF_UNCOMPRESSED] != 0x04) {
+      publicKey.getW(publicKeyCache, PUB_CACHE_OFF_UNCOMPRESSED);
+      secp256k1.compressPublicKey(publicKeyCache, PUB_CACHE_OFF_UNCOMPRESSED, publicKeyCache, PUB_CACHE_OFF_COMPRESSED);
+    }
+
+    short len = compressed ? EC_COMPRESSED_PUB_KEY_SIZE : EC_PUB_KEY_SIZE;
+    Util.arrayCopyNonAtomic(publicKeyCache, (compressed ? PUB_CACHE_OFF_COMPRESSED : PUB_CACHE_OFF_UNCOMPRESSED), buffer, off, len);
+
+    return len;
+  }
+
   /**
    * Generates a mnemonic phrase according to the BIP39 specifications. Requires an open secure channel. Since embedding
    * the strings in the applet would be unreasonable, the data returned is actually a sequence of 16-bit big-endian
@@ -804,7 +1087,7 @@ public class WalletApplet extends Applet {
    * @param apdu the JCRE-owned APDU object.
    */
   private void generateMnemonic(APDU apdu) {
-    byte[] apduBuffer = apdu.getBuffer();
+    byte[] apduBuffer = secureChannel.getBuffer(apdu);
     secureChannel.preprocessAPDU(apduBuffer);
 
     short csLen = apduBuffer[ISO7816.OFFSET_P1];
@@ -876,7 +1159,7 @@ public class WalletApplet extends Applet {
    * @param apdu the JCRE-owned APDU object.
    */
   private void removeKey(APDU apdu) {
-    byte[] apduBuffer = apdu.getBuffer();
+    byte[] apduBuffer = secureChannel.getBuffer(apdu);
     secureChannel.preprocessAPDU(apduBuffer);
 
     if (!pin.isValidated()) {
@@ -889,10 +1172,13 @@ public class WalletApplet extends Applet {
     isExtended = false;
     privateKey.clearKey();
     publicKey.clearKey();
+    publicKeyCache[PUB_CACHE_OFF_UNCOMPRESSED] = 0;
     masterPrivate.clearKey();
     masterPublic.clearKey();
     parentPrivateKey.clearKey();
     parentPublicKey.clearKey();
+    derivationPrivateKey.clearKey();
+    derivationCache.clear();
     resetCurveParameters();
     Util.arrayFillNonAtomic(chainCode, (short) 0, (short) chainCode.length, (byte) 0);
     Util.arrayFillNonAtomic(parentChainCode, (short) 0, (short) parentChainCode.length, (byte) 0);
@@ -909,7 +1195,7 @@ public class WalletApplet extends Applet {
    * @param apdu the JCRE-owned APDU object.
    */
   private void generateKey(APDU apdu) {
-    byte[] apduBuffer = apdu.getBuffer();
+    byte[] apduBuffer = secureChannel.getBuffer(apdu);
     secureChannel.preprocessAPDU(apduBuffer);
 
     if (!pin.isValidated()) {
@@ -918,6 +1204,8 @@ public class WalletApplet extends Applet {
 
     apduBuffer[ISO7816.OFFSET_LC] = BIP39_SEED_SIZE;
     crypto.random.generateData(apduBuffer, ISO7816.OFFSET_CDATA, BIP39_SEED_SIZE);
+    derivationCache.clear();
+    publicKeyCache[PUB_CACHE_OFF_UNCOMPRESSED] = 0;
 
     loadSeed(apduBuffer);
     generateKeyUIDAndRespond(apdu, apduBuffer);
@@ -934,36 +1222,346 @@ public class WalletApplet extends Applet {
    * and the signature itself. The client should use this to calculate 'v' and format the signature according to the
    * format required for the transaction to be correctly inserted in the blockchain.
    *
+   * With P1 set to SIGN_P1_BATCH several hashes can be signed with a single command, see the signBatch method. With
+   * P1 set to SIGN_P1_DERIVE the hash is signed with a key derived on the fly, see the signDerived method.
+   *
    * @param apdu the JCRE-owned APDU object.
    */
   private void sign(APDU apdu) {
-    byte[] apduBuffer = apdu.getBuffer();
+    byte[] apduBuffer = secureChannel.getBuffer(apdu);
     short len = secureChannel.preprocessAPDU(apduBuffer);
+    byte p1 = apduBuffer[ISO7816.OFFSET_P1];
+    byte pubFormat = apduBuffer[ISO7816.OFFSET_P2];
 
-    if (!((pin.isValidated() || isPinless()) && privateKey.isInitialized())) {
-      ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+    if ((pubFormat < SIGN_P2_PUB_KEY_UNCOMPRESSED) || (pubFormat > SIGN_P2_PUB_KEY_OMITTED)) {
+      ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+    }
+
+    if ((byte) (p1 & SIGN_P1_MODE_MASK) == SIGN_P1_DERIVE) {
+      len = signDerived(apduBuffer, len, (byte) (p1 & DERIVE_P1_SOURCE_MASK), pubFormat);
+    } else {
+      if (!((pin.isValidated() || isPinless()) && privateKey.isInitialized())) {
+        ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+      }
+
+      switch (p1) {
+        case SIGN_P1_PRECOMPUTED_HASH:
+          if (len != MessageDigest.LENGTH_SHA_256) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+          }
+
+          if (pubFormat != SIGN_P2_PUB_KEY_OMITTED) {
+            getCurrentPublicKey(apduBuffer, (short) (SecureChannel.SC_OUT_OFFSET + 5), false);
+          }
+
+          len = signHash(apduBuffer, privateKey, pubFormat);
+          break;
+        case SIGN_P1_BATCH:
+          len = signBatch(apduBuffer, len, secureChannel.isLongCommand(apdu), pubFormat);
+          break;
+        default:
+          ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+          return;
+      }
+    }
+
+    secureChannel.respond(apdu, len, ISO7816.SW_NO_ERROR);
+  }
+
+  /**
+   * Derives a key and signs a precomputed hash with it. Called internally by the sign method. The data is the 32-byte
+   * hash followed by a key path formatted as for DERIVE KEY. The derivation source is selected by bits 7-6 of P1,
+   * with the same encoding used by DERIVE KEY. The key is derived in the transient derivation key set, so the current
+   * key, the key path and everything else stored in persistent memory is left untouched. The PIN is not required if
+   * the full path of the derived key is the PIN-less path.
+   *
+   * @param apduBuffer the APDU buffer
+   * @param len the data length
+   * @param source the derivation source
+   * @param pubFormat the format of the public key in the response, as given in P2
+   * @return the length of the response data
+   */
+  private short signDerived(byte[] apduBuffer, short len, byte source, byte pubFormat) {
+    ECPrivateKey srcPrivate;
+    ECPublicKey srcPublic;
+    byte[] srcChain;
+    short prefixLen;
+
+    switch (source) {
+      case DERIVE_P1_SOURCE_MASTER:
+        srcPrivate = masterPrivate;
+        srcPublic = masterPublic;
+        srcChain = masterChainCode;
+        prefixLen = 0;
+        break;
+      case DERIVE_P1_SOURCE_PARENT:
+        if (!parentValid) {
+          ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+        }
+
+        srcPrivate = parentPrivateKey;
+        srcPublic = parentPublicKey;
+        srcChain = parentChainCode;
+        prefixLen = (short) (keyPathLen - 4);
+        break;
+      case DERIVE_P1_SOURCE_CURRENT:
+        srcPrivate = privateKey;
+        srcPublic = publicKey;
+        srcChain = chainCode;
+        prefixLen = keyPathLen;
+        break;
+      default:
+        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        return 0;
     }
 
-    if (len != MessageDigest.LENGTH_SHA_256) {
+    short dataOff = (short) (ISO7816.OFFSET_CDATA + MessageDigest.LENGTH_SHA_256);
+    short dataLen = (short) (len - MessageDigest.LENGTH_SHA_256);
+
+    if ((dataLen < 0) || ((short) (dataLen % 4) != 0) || ((short) (prefixLen + dataLen) > keyPath.length)) {
       ISOException.throwIt(ISO7816.SW_WRONG_DATA);
     }
 
-    signature.init(privateKey, Signature.MODE_SIGN);
+    short pubOff = (short) (SecureChannel.SC_OUT_OFFSET + 5);
+    short pathOff = (short) (pubOff + EC_PUB_KEY_SIZE);
+    Util.arrayCopyNonAtomic(keyPath, (short) 0, apduBuffer, pathOff, prefixLen);
+    short pathLen = (short) (Util.arrayCopyNonAtomic(apduBuffer, dataOff, apduBuffer, (short) (pathOff + prefixLen), dataLen) - pathOff);
+
+    if (!((pin.isValidated() || isPinless(apduBuffer, pathOff, pathLen)) && isExtended)) {
+      ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+    }
+
+    deriveTransient(apduBuffer, pathOff, pathLen, apduBuffer, (short) -1, pubOff);
+
+    return signHash(apduBuffer, derivationPrivateKey, pubFormat);
+  }
+
+  /**
+   * Derives the key with the given key path, relative to the master key, in the transient derivation key set. The
+   * public key of the derived key is written in the buffer at pubOff. Persistent memory is never written by this
+   * method.
+   *
+   * Derivation starts from the deepest known ancestor of the requested key, which is chosen among the master key, the
+   * parent key, the current key and the nodes in the derivation cache. This way, deriving several keys sharing a
+   * common prefix, such as the sibling addresses of an account, only takes a single derivation step each time. The
+   * parent of the requested key is stored in the derivation cache when its public key is known, which is always the
+   * case when the last step is a non-hardened derivation. Public keys of the intermediate keys are otherwise only
+   * calculated when needed.
+   *
+   * If parentOff is not negative, the private key, chain code and public key of the parent of the requested key are
+   * written in the buffer at parentOff, in this order. In this case the key path must not be empty and at least one
+   * derivation step is always performed.
+   *
+   * @param path the buffer containing the key path, as a sequence of 32-bit big endian integers
+   * @param pathOff the offset of the key path
+   * @param pathLen the length of the key path
+   * @param buffer a buffer which can be overwritten (currently the APDU buffer)
+   * @param parentOff the offset where the parent key must be written, or a negative value if not needed
+   * @param pubOff the offset where the public key must be written. The buffer is free from this point on
+   */
+  private void deriveTransient(byte[] path, short pathOff, short pathLen, byte[] buffer, short parentOff, short pubOff) {
+    short maxStart = (parentOff < 0) ? pathLen : (short) (pathLen - 4);
+    ECPrivateKey srcPrivate = masterPrivate;
+    ECPublicKey srcPublic = masterPublic;
+    byte[] srcChain = masterChainCode;
+    short start = 0;
+
+    if (parentValid && isKeyPathPrefix((short) (keyPathLen - 4), path, pathOff, maxStart)) {
+      srcPrivate = parentPrivateKey;
+      srcPublic = parentPublicKey;
+      srcChain = parentChainCode;
+      start = (short) (keyPathLen - 4);
+    }
+
+    if (isKeyPathPrefix(keyPathLen, path, pathOff, maxStart)) {
+      srcPrivate = privateKey;
+      srcPublic = publicKey;
+      srcChain = chainCode;
+      start = keyPathLen;
+    }
+
+    secp256k1.setCurveParameters(derivationPrivateKey);
+    short entry = derivationCache.find(path, pathOff, start, maxStart);
+    boolean pubKnown;
+
+    if (entry != DerivationCache.NOT_FOUND) {
+      start = derivationCache.load(entry, derivationPrivateKey, derivationChainCode, (short) 0, buffer, pubOff);
+      pubKnown = true;
+    } else {
+      short privLen = srcPrivate.getS(buffer, pubOff);
+      derivationPrivateKey.setS(buffer, pubOff, privLen);
+      Util.arrayCopyNonAtomic(srcChain, (short) 0, derivationChainCode, (short) 0, CHAIN_CODE_SIZE);
+      pubKnown = false;
+    }
+
+    short pathEnd = (short) (pathOff + pathLen);
+    short last = (short) (pathEnd - 4);
+
+    for (short i = (short) (pathOff + start); i < pathEnd; i += 4) {
+      if (!pubKnown && (((path[i] & (byte) 0x80) == 0) || ((i == last) && (parentOff >= 0)))) {
+        derivationPublicKey(srcPublic, buffer, pubOff);
+        pubKnown = true;
+      }
+
+      if (i == last) {
+        if (pubKnown && (pathLen > 4)) {
+          derivationCache.store(path, pathOff, (short) (pathLen - 4), derivationPrivateKey, derivationChainCode, (short) 0, buffer, pubOff);
+        }
+
+        if (parentOff >= 0) {
+          derivationPrivateKey.getS(buffer, parentOff);
+          parentOff = Util.arrayCopyNonAtomic(derivationChainCode, (short) 0, buffer, (short) (parentOff + CHAIN_CODE_SIZE), CHAIN_CODE_SIZE);
+          Util.arrayCopyNonAtomic(buffer, pubOff, buffer, parentOff, EC_PUB_KEY_SIZE);
+        }
+      }
+
+      counters.increment(Counters.CKD_STEPS);
+
+      if (!crypto.bip32CKDPriv(path, i, derivationPrivateKey, buffer, pubOff, derivationChainCode, (short) 0)) {
+        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+      }
+
+      srcPublic = null;
+      pubKnown = false;
+    }
+
+    if (!pubKnown) {
+      derivationPublicKey(srcPublic, buffer, pubOff);
+    }
+  }
+
+  /**
+   * Outputs the public key of the key in the transient derivation key set. Called internally by the deriveTransient
+   * method. If the key has been copied from a key pair, its public key is simply read, otherwise it is calculated.
+   *
+   * @param srcPublic the public key of the source key pair, or null if the key has been derived
+   * @param buffer the output buffer
+   * @param offset the offset in the output buffer
+   */
+  private void derivationPublicKey(ECPublicKey srcPublic, byte[] buffer, short offset) {
+    if (srcPublic == publicKey) {
+      getCurrentPublicKey(buffer, offset, false);
+    } else if (srcPublic != null) {
+      srcPublic.getW(buffer, offset);
+    } else {
+      secp256k1.derivePublicKey(derivationPrivateKey, buffer, offset);
+    }
+  }
+
+  /**
+   * Returns whether the first len bytes of the current key path are a prefix of the given key path, which must be at
+   * least len bytes long.
+   *
+   * @param len the length of the prefix
+   * @param path the buffer containing the key path
+   * @param pathOff the offset of the key path
+   * @param pathLen the length of the key path
+   * @return whether the given portion of the current key path is a prefix of the given key path
+   */
+  private boolean isKeyPathPrefix(short len, byte[] path, short pathOff, short pathLen) {
+    return (len <= pathLen) && (Util.arrayCompare(keyPath, (short) 0, path, pathOff, len) == 0);
+  }
+
+  /**
+   * Signs the precomputed hash found at the beginning of the command data. Called internally by the sign method. The
+   * output is a signature template containing the public key, in the requested format, and the signature. Unless the
+   * public key is omitted, the caller must write the uncompressed public key matching the given private key at offset
+   * SC_OUT_OFFSET + 5 before invoking this method.
+   *
+   * @param apduBuffer the APDU buffer
+   * @param key the private key to sign with
+   * @param pubFormat the format of the public key in the response, as given in P2
+   * @return the length of the response data
+   */
+  private short signHash(byte[] apduBuffer, ECPrivateKey key, byte pubFormat) {
+    signature.init(key, Signature.MODE_SIGN);
 
     apduBuffer[SecureChannel.SC_OUT_OFFSET] = TLV_SIGNATURE_TEMPLATE;
-    apduBuffer[(short)(SecureChannel.SC_OUT_OFFSET + 3)] = TLV_PUB_KEY;
-    short outLen = apduBuffer[(short)(SecureChannel.SC_OUT_OFFSET + 4)] = (byte) publicKey.getW(apduBuffer, (short) (SecureChannel.SC_OUT_OFFSET + 5));
+    short outLen = 3;
+
+    if (pubFormat != SIGN_P2_PUB_KEY_OMITTED) {
+      short pubOff = (short) (SecureChannel.SC_OUT_OFFSET + 5);
+      short pubLen = (pubFormat == SIGN_P2_PUB_KEY_COMPRESSED) ? secp256k1.compressPublicKey(apduBuffer, pubOff, apduBuffer, pubOff) : EC_PUB_KEY_SIZE;
+      apduBuffer[(short)(SecureChannel.SC_OUT_OFFSET + 3)] = TLV_PUB_KEY;
+      apduBuffer[(short)(SecureChannel.SC_OUT_OFFSET + 4)] = (byte) pubLen;
+      outLen += (short) (pubLen + 2);
+    }
 
-    outLen += 5;
     short sigOff = (short) (SecureChannel.SC_OUT_OFFSET + outLen);
 
-    outLen += signature.signPreComputedHash(apduBuffer, ISO7816.OFFSET_CDATA, len, apduBuffer, sigOff);
+    counters.increment(Counters.SIGNATURES);
+    outLen += signature.signPreComputedHash(apduBuffer, ISO7816.OFFSET_CDATA, MessageDigest.LENGTH_SHA_256, apduBuffer, sigOff);
     outLen += crypto.fixS(apduBuffer, sigOff);
 
     apduBuffer[(short)(SecureChannel.SC_OUT_OFFSET + 1)] = (byte) 0x81;
     apduBuffer[(short)(SecureChannel.SC_OUT_OFFSET + 2)] = (byte) (outLen - 3);
 
-    secureChannel.respond(apdu, outLen, ISO7816.SW_NO_ERROR);
+    return outLen;
+  }
+
+  /**
+   * Signs a sequence of precomputed hashes. Called internally by the sign method. The data is a concatenation of hashes
+   * of 32 bytes each, as many as fit in a short response together with the public key in the requested format: 2 if
+   * the public key is included, 3 if omitted. The output is the public key, which is emitted only once, followed by
+   * one signature template for each hash, in the same order as the input. The signatures are written right after the space
+   * of the public key TLV, which is in turn written last because it overlaps with the input hashes.
+   *
+   * With extended length APDUs or command chaining the number of hashes is only limited by the size of the buffer. If
+   * the hashes reach the space where the signatures are written, they are first moved at the end of the buffer, so that
+   * the signatures never overwrite the hashes still to be signed.
+   *
+   * @param apduBuffer the APDU buffer
+   * @param len the data length
+   * @param extended whether the command allows a long response
+   * @param pubFormat the format of the public key in the response, as given in P2
+   * @return the length of the response data
+   */
+  private short signBatch(byte[] apduBuffer, short len, boolean extended, byte pubFormat) {
+    short count = (short) (len / MessageDigest.LENGTH_SHA_256);
+    short pubTLVLen = 0;
+
+    if (pubFormat != SIGN_P2_PUB_KEY_OMITTED) {
+      pubTLVLen = (short) (((pubFormat == SIGN_P2_PUB_KEY_COMPRESSED) ? EC_COMPRESSED_PUB_KEY_SIZE : EC_PUB_KEY_SIZE) + 2);
+    }
+
+    short maxCount = (short) ((short) (SecureChannel.SC_MAX_PLAIN_LENGTH - pubTLVLen) / SIGN_TEMPLATE_MAX_SIZE);
+
+    if (extended) {
+      short extendedCount = (short) ((short) (apduBufferLength(apduBuffer) - (SecureChannel.SC_OUT_OFFSET + pubTLVLen + SecureChannel.SC_BLOCK_SIZE)) / (SIGN_TEMPLATE_MAX_SIZE + MessageDigest.LENGTH_SHA_256));
+      maxCount = (extendedCount > maxCount) ? extendedCount : maxCount;
+    }
+
+    if ((count == 0) || (count > maxCount) || ((short) (len % MessageDigest.LENGTH_SHA_256) != 0)) {
+      ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+    }
+
+    short off = (short) (SecureChannel.SC_OUT_OFFSET + pubTLVLen);
+    short hashOff = ISO7816.OFFSET_CDATA;
+
+    if ((short) (hashOff + len) > off) {
+      hashOff = (short) (apduBufferLength(apduBuffer) - len);
+      Util.arrayCopyNonAtomic(apduBuffer, ISO7816.OFFSET_CDATA, apduBuffer, hashOff, len);
+    }
+
+    signature.init(privateKey, Signature.MODE_SIGN);
+
+    for (short i = 0; i < count; i++) {
+      apduBuffer[off] = TLV_SIGNATURE_TEMPLATE;
+      short sigOff = (short) (off + 2);
+      counters.increment(Counters.SIGNATURES);
+      short sigLen = signature.signPreComputedHash(apduBuffer, hashOff, MessageDigest.LENGTH_SHA_256, apduBuffer, sigOff);
+      sigLen += crypto.fixS(apduBuffer, sigOff);
+      apduBuffer[(short) (off + 1)] = (byte) sigLen;
+      off += (short) (sigLen + 2);
+      hashOff += MessageDigest.LENGTH_SHA_256;
+    }
+
+    if (pubTLVLen != 0) {
+      apduBuffer[SecureChannel.SC_OUT_OFFSET] = TLV_PUB_KEY;
+      apduBuffer[(short)(SecureChannel.SC_OUT_OFFSET + 1)] = (byte) getCurrentPublicKey(apduBuffer, (short) (SecureChannel.SC_OUT_OFFSET + 2), (pubFormat == SIGN_P2_PUB_KEY_COMPRESSED));
+    }
+
+    return (short) (off - SecureChannel.SC_OUT_OFFSET);
   }
 
   /**
@@ -975,7 +1573,7 @@ public class WalletApplet extends Applet {
    * @param apdu the JCRE-owned APDU object.
    */
   private void setPinlessPath(APDU apdu) {
-    byte[] apduBuffer = apdu.getBuffer();
+    byte[] apduBuffer = secureChannel.getBuffer(apdu);
     short len = secureChannel.preprocessAPDU(apduBuffer);
 
     if (!pin.isValidated()) {
@@ -990,6 +1588,7 @@ public class WalletApplet extends Applet {
     pinlessPathLen = len;
     Util.arrayCopy(apduBuffer, ISO7816.OFFSET_CDATA, pinlessPath, (short) 0, len);
     JCSystem.commitTransaction();
+    counters.increment(Counters.TRANSACTIONS);
   }
 
   /**
@@ -998,25 +1597,47 @@ public class WalletApplet extends Applet {
    * key path m/1/1 is exportable. The key is exported only if the current key path matches the key path of the key to
    * be exported. The public key of the current path can always be exported with P1=0x00 and P2=0x01.
    *
+   * With P2=0x02 the chain code is exported along with the public key, forming the BIP32 extended public key of the
+   * current key. The client can use it to derive the public keys of all non-hardened descendants of the current key
+   * on its own. Since the extended public key does not allow deriving any private key, it can also be exported with
+   * P1=0x00, but requires the current key to be extended.
+   *
+   * With P2=0x03 the compressed public keys of a range of children of a given key are exported instead, see the
+   * exportKeyRange method.
+   *
    * @param apdu the JCRE-owned APDU object.
    */
   private void exportKey(APDU apdu) {
-    byte[] apduBuffer = apdu.getBuffer();
-    secureChannel.preprocessAPDU(apduBuffer);
+    byte[] apduBuffer = secureChannel.getBuffer(apdu);
+    short len = secureChannel.preprocessAPDU(apduBuffer);
 
     if (!pin.isValidated() || !privateKey.isInitialized()) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
     }
 
     boolean publicOnly;
+    boolean extendedPublic = false;
 
     switch (apduBuffer[ISO7816.OFFSET_P2]) {
       case EXPORT_KEY_P2_PRIVATE_AND_PUBLIC:
         publicOnly = false;
         break;
+      case EXPORT_KEY_P2_EXTENDED_PUBLIC:
+        if (!isExtended) {
+          ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        extendedPublic = true;
       case EXPORT_KEY_P2_PUBLIC_ONLY:
         publicOnly = true;
         break;
+      case EXPORT_KEY_P2_PUBLIC_RANGE:
+        if (apduBuffer[ISO7816.OFFSET_P1] != EXPORT_KEY_P1_ANY) {
+          ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        exportKeyRange(apdu, apduBuffer, len);
+        return;
       default:
         ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
         return;
@@ -1044,10 +1665,16 @@ public class WalletApplet extends Applet {
     off++;
     apduBuffer[off++] = TLV_PUB_KEY;
     off++;
-    short len = publicKey.getW(apduBuffer, off);
+    len = getCurrentPublicKey(apduBuffer, off, false);
     apduBuffer[(short)(off - 1)] = (byte) len;
     off += len;
 
+    if (extendedPublic) {
+      apduBuffer[off++] = TLV_CHAIN_CODE;
+      apduBuffer[off++] = CHAIN_CODE_SIZE;
+      off = Util.arrayCopyNonAtomic(chainCode, (short) 0, apduBuffer, off, CHAIN_CODE_SIZE);
+    }
+
     if (!publicOnly) {
       apduBuffer[off++] = TLV_PRIV_KEY;
       off++;
@@ -1061,6 +1688,121 @@ public class WalletApplet extends Applet {
 
     secureChannel.respond(apdu, len, ISO7816.SW_NO_ERROR);
   }
+  /**
+   * Exports the compressed public keys of a range of children of a given key. Called internally by the exportKey
+   * method. The data is the index of the first child as a 32-bit big endian integer, followed by the number of children
+   * as a single unsigned byte and then by the key path of the parent key, relative to the master key and formatted as
+   * for DERIVE KEY. The current key is not changed.
+   *
+   * The parent key is derived only once and stored in the derivation cache, so that each child then takes a single
+   * derivation step. If the cache is disabled, the parent key is kept at the end of the APDU buffer instead, which leaves
+   * room for fewer keys. The response contains as many public keys as fit in it, which depends on the size of the buffer
+   * returned by SecureChannel.getBuffer for extended length and chained commands. The client requests the remaining
+   * keys with another command starting at the next index. A response longer than 256 bytes to a chained command is sent
+   * with the ISO 7816-4 GET RESPONSE mechanism, as for any other chained command.
+   *
+   * @param apdu the JCRE-owned APDU object
+   * @param apduBuffer the APDU buffer
+   * @param len the data length
+   */
+  private void exportKeyRange(APDU apdu, byte[] apduBuffer, short len) {
+    if (!isExtended) {
+      ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+    }
+
+    short indexOff = ISO7816.OFFSET_CDATA;
+    short count = (short) (apduBuffer[(short) (indexOff + 4)] & 0xff);
+    short pathOff = (short) (indexOff + EXPORT_KEY_RANGE_HEADER_SIZE);
+    short pathLen = (short) (len - EXPORT_KEY_RANGE_HEADER_SIZE);
+
+    if ((pathLen < 0) || ((short) (pathLen % 4) != 0) || ((short) (pathLen + 4) > keyPath.length) || (count == 0)) {
+      ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+    }
+
+    // The whole range must be either hardened or non-hardened
+    if (((apduBuffer[indexOff] & 0x7f) == 0x7f) && (apduBuffer[(short) (indexOff + 1)] == (byte) 0xff) && (apduBuffer[(short) (indexOff + 2)] == (byte) 0xff) && ((short) ((apduBuffer[(short) (indexOff + 3)] & 0xff) + count) > 0x100)) {
+      ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+    }
+
+    // The uncompressed form of the last public key must fit before the parent key, if kept in the buffer. The index
+    // stays before SC_OUT_OFFSET.
+    short nodeOff = apduBufferLength(apduBuffer);
+
+    if ((pathLen != 0) && !derivationCache.isEnabled()) {
+      nodeOff -= KEY_NODE_SIZE;
+    }
+
+    short maxCount = (short) ((short) (nodeOff - (SecureChannel.SC_OUT_OFFSET + EC_PUB_KEY_SIZE)) / EC_COMPRESSED_PUB_KEY_SIZE + 1);
+
+    if (!secureChannel.isLongCommand(apdu) && (maxCount > (short) (SecureChannel.SC_MAX_PLAIN_LENGTH / EC_COMPRESSED_PUB_KEY_SIZE))) {
+      maxCount = (short) (SecureChannel.SC_MAX_PLAIN_LENGTH / EC_COMPRESSED_PUB_KEY_SIZE);
+    }
+
+    if (count > maxCount) {
+      count = maxCount;
+    }
+
+    short off = SecureChannel.SC_OUT_OFFSET;
+    short parent = DerivationCache.NOT_FOUND;
+
+    if (pathLen != 0) {
+      short pubOff = (short) (pathOff + pathLen);
+      deriveTransient(apduBuffer, pathOff, pathLen, apduBuffer, (short) -1, pubOff);
+      parent = derivationCache.store(apduBuffer, pathOff, pathLen, derivationPrivateKey, derivationChainCode, (short) 0, apduBuffer, pubOff);
+
+      if (parent == DerivationCache.NOT_FOUND) {
+        derivationPrivateKey.getS(apduBuffer, nodeOff);
+        Util.arrayCopyNonAtomic(derivationChainCode, (short) 0, apduBuffer, (short) (nodeOff + CHAIN_CODE_SIZE), CHAIN_CODE_SIZE);
+        Util.arrayCopyNonAtomic(apduBuffer, pubOff, apduBuffer, (short) (nodeOff + (CHAIN_CODE_SIZE * 2)), EC_PUB_KEY_SIZE);
+      }
+    } else {
+      secp256k1.setCurveParameters(derivationPrivateKey);
+    }
+
+    for (short i = 0; i < count; i++) {
+      if (parent != DerivationCache.NOT_FOUND) {
+        derivationCache.load(parent, derivationPrivateKey, derivationChainCode, (short) 0, apduBuffer, off);
+      } else if (pathLen != 0) {
+        derivationPrivateKey.setS(apduBuffer, nodeOff, CHAIN_CODE_SIZE);
+        Util.arrayCopyNonAtomic(apduBuffer, (short) (nodeOff + CHAIN_CODE_SIZE), derivationChainCode, (short) 0, CHAIN_CODE_SIZE);
+        Util.arrayCopyNonAtomic(apduBuffer, (short) (nodeOff + (CHAIN_CODE_SIZE * 2)), apduBuffer, off, EC_PUB_KEY_SIZE);
+      } else {
+        derivationPrivateKey.setS(apduBuffer, off, masterPrivate.getS(apduBuffer, off));
+        Util.arrayCopyNonAtomic(masterChainCode, (short) 0, derivationChainCode, (short) 0, CHAIN_CODE_SIZE);
+        masterPublic.getW(apduBuffer, off);
+      }
+
+      counters.increment(Counters.CKD_STEPS);
+
+      if (!crypto.bip32CKDPriv(apduBuffer, indexOff, derivationPrivateKey, apduBuffer, off, derivationChainCode, (short) 0)) {
+        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+      }
+
+      // The uncompressed public key overflows in the space of the next keys, which have not been written yet
+      secp256k1.derivePublicKey(derivationPrivateKey, apduBuffer, off);
+      off += secp256k1.compressPublicKey(apduBuffer, off, apduBuffer, off);
+
+      for (short j = (short) (indexOff + 3); j >= indexOff; j--) {
+        if (++apduBuffer[j] != 0) {
+          break;
+        }
+      }
+    }
+
+    secureChannel.respond(apdu, (short) (off - SecureChannel.SC_OUT_OFFSET), ISO7816.SW_NO_ERROR);
+  }
+
+  /**
+   * Returns whether the given command is GET RESPONSE, which shares its INS byte with SIGN but has an ISO CLA byte. GET
+   * RESPONSE is only handled by SecureChannel.processChaining, this is used to count it separately from SIGN.
+   *
+   * @param apduBuffer the APDU buffer
+   * @return whether the command is GET RESPONSE
+   */
+  private boolean isGetResponse(byte[] apduBuffer) {
+    return (apduBuffer[ISO7816.OFFSET_INS] == INS_GET_RESPONSE) && (apduBuffer[ISO7816.OFFSET_CLA] == ISO7816.CLA_ISO7816);
+  }
+
 
   /**
    * Utility method to verify if all the bytes in the buffer between off (included) and off + len (excluded) are digits.
@@ -1089,7 +1831,19 @@ public class WalletApplet extends Applet {
    * @return whether the current key path is the same as the one defined as PIN-less or not
    */
   private boolean isPinless() {
-    return (pinlessPathLen > 0) && (pinlessPathLen == keyPathLen) && (Util.arrayCompare(keyPath, (short) 0, pinlessPath, (short) 0, keyPathLen) == 0);
+    return isPinless(keyPath, (short) 0, keyPathLen);
+  }
+
+  /**
+   * Returns whether the given key path is the same as the one defined as PIN-less or not.
+   *
+   * @param path the buffer containing the key path
+   * @param pathOff the offset of the key path
+   * @param pathLen the length of the key path
+   * @return whether the given key path is the same as the one defined as PIN-less or not
+   */
+  private boolean isPinless(byte[] path, short pathOff, short pathLen) {
+    return (pinlessPathLen > 0) && (pinlessPathLen == pathLen) && (Util.arrayCompare(path, pathOff, pinlessPath, (short) 0, pathLen) == 0);
   }
 
   /**
@@ -0,0 +1,385 @@
+package im.status.wallet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A compact binary trace of the commands sent to a card, with their responses and timings. Traces are recorded by
+ * passing a Writer to WalletAppletCommandSet.setTrace and can be replayed on jCardSim with TraceReplay, so that the
+ * traffic of a real client can be used to benchmark the applet.
+ *
+ * Commands sent over the Secure Channel are recorded in plaintext, before encryption, together with the unwrapped
+ * response. The session keys are never recorded, so a trace cannot be decrypted and does not need to be. Unless
+ * disabled, the writer also redacts secrets: the data of INIT, PAIR, VERIFY PIN, CHANGE PIN, UNBLOCK PIN and LOAD KEY,
+ * the pairing key material in the response of PAIR and the private data returned by EXPORT KEY and GENERATE MNEMONIC
+ * are replaced by zeroes of the same length.
+ *
+ * The file starts with the magic bytes "APDT" and a version byte. Each record is made of a type byte followed by the
+ * time since the start of the previous record, the duration of the exchange, both in microseconds, the length and
+ * bytes of the command and the length and bytes of the response, including the SW. Numbers are unsigned LEB128
+ * varints.
+ */
+public class ApduTrace {
+  /** A command sent as is, such as SELECT, INIT or PAIR, or a protected command sent when the session is closed. */
+  public static final byte RAW = 0x00;
+  /** A command sent over the Secure Channel, recorded in plaintext. */
+  public static final byte PROTECTED = 0x01;
+
+  static final byte[] MAGIC = { 'A', 'P', 'D', 'T' };
+  static final byte VERSION = 1;
+
+  private ApduTrace() {
+  }
+
+  /**
+   * A command and its response, as read from a trace.
+   */
+  public static class Record {
+    private final byte type;
+    private final long startMicros;
+    private final long durationMicros;
+    private final byte[] command;
+    private final byte[] response;
+
+    Record(byte type, long startMicros, long durationMicros, byte[] command, byte[] response) {
+      this.type = type;
+      this.startMicros = startMicros;
+      this.durationMicros = durationMicros;
+      this.command = command;
+      this.response = response;
+    }
+
+    /**
+     * Returns the type of the record, RAW or PROTECTED.
+     *
+     * @return the type
+     */
+    public byte getType() {
+      return type;
+    }
+
+    /**
+     * Returns when the command was sent, relative to the creation of the writer.
+     *
+     * @return the start time in microseconds
+     */
+    public long getStartMicros() {
+      return startMicros;
+    }
+
+    /**
+     * Returns how long the card took to respond, as measured by the host.
+     *
+     * @return the duration in microseconds
+     */
+    public long getDurationMicros() {
+      return durationMicros;
+    }
+
+    /**
+     * Returns the command APDU, in plaintext for protected commands.
+     *
+     * @return the command APDU
+     */
+    public byte[] getCommand() {
+      return command;
+    }
+
+    /**
+     * Returns the response APDU, unwrapped for protected commands.
+     *
+     * @return the response APDU, including the SW
+     */
+    public byte[] getResponse() {
+      return response;
+    }
+
+    /**
+     * Returns the INS of the command.
+     *
+     * @return the INS
+     */
+    public byte getIns() {
+      return command[1];
+    }
+
+    /**
+     * Returns the data of the command, assuming a short or extended length APDU with data.
+     *
+     * @return the command data, empty if there is none
+     */
+    public byte[] getCommandData() {
+      if (command.length <= 5) {
+        return new byte[0];
+      }
+
+      int len = command[4] & 0xff;
+      int off = 5;
+
+      if ((len == 0) && (command.length > 7)) {
+        len = ((command[5] & 0xff) << 8) | (command[6] & 0xff);
+        off = 7;
+      }
+
+      return Arrays.copyOfRange(command, off, Math.min(command.length, off + len));
+    }
+
+    /**
+     * Returns the data of the response, without the SW.
+     *
+     * @return the response data
+     */
+    public byte[] getResponseData() {
+      return Arrays.copyOf(response, Math.max(0, response.length - 2));
+    }
+
+    /**
+     * Returns the SW of the response.
+     *
+     * @return the SW
+     */
+    public int getSW() {
+      return ((response[response.length - 2] & 0xff) << 8) | (response[response.length - 1] & 0xff);
+    }
+  }
+
+  /**
+   * Writes a trace. The writer is thread-safe, so a single writer can be shared by the command sets of several cards,
+   * but the commands of different cards are then interleaved in the trace.
+   */
+  public static class Writer implements AutoCloseable {
+    private final OutputStream out;
+    private final boolean redact;
+    private final long origin;
+    private long lastStart;
+
+    /**
+     * Creates a writer which redacts secrets.
+     *
+     * @param out the stream to write the trace to
+     * @throws IOException if the header cannot be written
+     */
+    public Writer(OutputStream out) throws IOException {
+      this(out, true);
+    }
+
+    /**
+     * Creates a writer.
+     *
+     * @param out the stream to write the trace to
+     * @param redact whether secrets must be redacted
+     * @throws IOException if the header cannot be written
+     */
+    public Writer(OutputStream out, boolean redact) throws IOException {
+      this.out = new BufferedOutputStream(out);
+      this.redact = redact;
+      this.origin = System.nanoTime();
+      this.out.write(MAGIC);
+      this.out.write(VERSION);
+    }
+
+    /**
+     * Records a command. I/O errors are rethrown unchecked, so that tracing does not change the signature of the
+     * methods sending commands.
+     *
+     * @param type the type of the record, RAW or PROTECTED
+     * @param command the command APDU
+     * @param response the response APDU
+     * @param startNanos the value of System.nanoTime before sending the command
+     * @param endNanos the value of System.nanoTime after receiving the response
+     */
+    public synchronized void record(byte type, byte[] command, byte[] response, long startNanos, long endNanos) {
+      long start = Math.max(0, (startNanos - origin) / 1000);
+
+      if (redact) {
+        command = redactCommand(command);
+        response = redactResponse(command, response);
+      }
+
+      try {
+        out.write(type);
+        writeVarint(Math.max(0, start - lastStart));
+        writeVarint(Math.max(0, (endNanos - startNanos) / 1000));
+        writeVarint(command.length);
+        out.write(command);
+        writeVarint(response.length);
+        out.write(response);
+      } catch (IOException e) {
+        throw new IllegalStateException("Cannot write trace", e);
+      }
+
+      lastStart = Math.max(lastStart, start);
+    }
+
+    /**
+     * Writes the buffered records to the underlying stream.
+     *
+     * @throws IOException if writing fails
+     */
+    public synchronized void flush() throws IOException {
+      out.flush();
+    }
+
+    /**
+     * Flushes and closes the underlying stream.
+     *
+     * @throws IOException if writing fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+      out.close();
+    }
+
+    private void writeVarint(long value) throws IOException {
+      while ((value & ~0x7fL) != 0) {
+        out.write((int) ((value & 0x7f) | 0x80));
+        value >>>= 7;
+      }
+
+      out.write((int) value);
+    }
+  }
+
+  /**
+   * Reads a trace.
+   */
+  public static class Reader implements AutoCloseable {
+    private final DataInputStream in;
+    private long time;
+
+    /**
+     * Creates a reader and checks the header of the trace.
+     *
+     * @param in the stream to read the trace from
+     * @throws IOException if the stream is not a trace of a supported version
+     */
+    public Reader(InputStream in) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(in));
+      byte[] magic = new byte[MAGIC.length];
+      this.in.readFully(magic);
+
+      if (!Arrays.equals(magic, MAGIC) || (this.in.readByte() != VERSION)) {
+        throw new IOException("Not a trace or unsupported version");
+      }
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return the record, or null at the end of the trace
+     * @throws IOException if the trace is truncated or cannot be read
+     */
+    public Record next() throws IOException {
+      int type = in.read();
+
+      if (type == -1) {
+        return null;
+      }
+
+      time += readVarint();
+      long duration = readVarint();
+      byte[] command = new byte[(int) readVarint()];
+      in.readFully(command);
+      byte[] response = new byte[(int) readVarint()];
+      in.readFully(response);
+
+      return new Record((byte) type, time, duration, command, response);
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+
+    private long readVarint() throws IOException {
+      long value = 0;
+
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = in.read();
+
+        if (b == -1) {
+          throw new EOFException("Truncated trace");
+        }
+
+        value |= (long) (b & 0x7f) << shift;
+
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+
+      throw new IOException("Invalid varint");
+    }
+  }
+
+  /**
+   * Returns a copy of the command where the data is zeroed if it contains secrets.
+   *
+   * @param command the command APDU
+   * @return the redacted command APDU
+   */
+  static byte[] redactCommand(byte[] command) {
+    if (command.length <= 5) {
+      return command;
+    }
+
+    switch (command[1]) {
+      case WalletApplet.INS_INIT:
+      case SecureChannel.INS_PAIR:
+      case WalletApplet.INS_VERIFY_PIN:
+      case WalletApplet.INS_CHANGE_PIN:
+      case WalletApplet.INS_UNBLOCK_PIN:
+      case WalletApplet.INS_LOAD_KEY:
+        byte[] redacted = command.clone();
+        int off = ((command[4] == 0) && (command.length > 7)) ? 7 : 5;
+        Arrays.fill(redacted, off, redacted.length, (byte) 0);
+        return redacted;
+      default:
+        return command;
+    }
+  }
+
+  /**
+   * Returns a copy of the response where the data is zeroed if it contains secrets. The pairing index in the response
+   * to the last step of PAIR is kept.
+   *
+   * @param command the command APDU
+   * @param response the response APDU
+   * @return the redacted response APDU
+   */
+  static byte[] redactResponse(byte[] command, byte[] response) {
+    if ((response.length <= 2) || (command.length < 4)) {
+      return response;
+    }
+
+    int from;
+
+    switch (command[1]) {
+      case SecureChannel.INS_PAIR:
+        from = (command[2] == SecureChannel.PAIR_P1_LAST_STEP) ? 1 : 0;
+        break;
+      case WalletApplet.INS_EXPORT_KEY:
+        if (command[3] != WalletApplet.EXPORT_KEY_P2_PRIVATE_AND_PUBLIC) {
+          return response;
+        }
+
+        from = 0;
+        break;
+      case WalletApplet.INS_GENERATE_MNEMONIC:
+        from = 0;
+        break;
+      default:
+        return response;
+    }
+
+    byte[] redacted = response.clone();
+    Arrays.fill(redacted, from, redacted.length - 2, (byte) 0);
+    return redacted;
+  }
+}
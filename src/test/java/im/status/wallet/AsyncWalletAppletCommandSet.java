@@ -0,0 +1,212 @@
+package im.status.wallet;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An asynchronous front end for a WalletAppletCommandSet. Commands are queued and sent to the card one at a time, in
+ * the order they were submitted, by a thread dedicated to the card. Each method returns immediately with a future
+ * completed with the card response, or exceptionally with a CardException, so that the caller can prepare the next
+ * commands (hashing, encoding, recovery id computation) while the card is busy. Dependent commands can be chained with
+ * the methods of CompletableFuture; since the queue is ordered, commands which only depend on the state of the card,
+ * such as a SIGN after a DERIVE KEY, can simply be submitted one after the other.
+ *
+ * The methods taking buffers do not allocate memory for the APDUs. The buffers are read and written by the thread of the
+ * card, so they must not be touched until the future completes.
+ *
+ * The wrapped command set must not be used directly while this instance is open. Use one instance for each card.
+ */
+public class AsyncWalletAppletCommandSet implements AutoCloseable {
+  private final WalletAppletCommandSet cmdSet;
+  private final ExecutorService executor;
+
+  /**
+   * A command to run against the card.
+   *
+   * @param <T> the type of the result
+   */
+  public interface Command<T> {
+    T run(WalletAppletCommandSet cmdSet) throws CardException;
+  }
+
+  /**
+   * Creates the asynchronous command set and starts its thread. The thread is a daemon thread, so that a forgotten
+   * instance does not prevent the JVM from exiting.
+   *
+   * @param cmdSet the command set of the card, with the Secure Channel session already set
+   */
+  public AsyncWalletAppletCommandSet(WalletAppletCommandSet cmdSet) {
+    this.cmdSet = cmdSet;
+    this.executor = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "wallet-applet-io");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Queues an arbitrary command or sequence of commands. The sequence is executed without interleaving with other
+   * queued commands.
+   *
+   * @param command the command
+   * @param <T> the type of the result
+   * @return the future result
+   */
+  public <T> CompletableFuture<T> submit(Command<T> command) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return command.run(cmdSet);
+      } catch (CardException e) {
+        throw new CompletionException(e);
+      }
+    }, executor);
+  }
+
+  /**
+   * Queues a GET STATUS command.
+   *
+   * @param info the P1 of the APDU
+   * @return the future card response
+   */
+  public CompletableFuture<ResponseAPDU> getStatus(byte info) {
+    return submit(c -> c.getStatus(info));
+  }
+
+  /**
+   * Queues a VERIFY PIN command.
+   *
+   * @param pin the PIN
+   * @return the future card response
+   */
+  public CompletableFuture<ResponseAPDU> verifyPIN(String pin) {
+    return submit(c -> c.verifyPIN(pin));
+  }
+
+  /**
+   * Queues a DERIVE KEY command.
+   *
+   * @param data the key path
+   * @param source the source to start derivation
+   * @return the future card response
+   */
+  public CompletableFuture<ResponseAPDU> deriveKey(byte[] data, int source) {
+    return submit(c -> c.deriveKey(data, source));
+  }
+
+  /**
+   * Queues a DERIVE KEY command which reads the key path from a buffer and writes the response to another.
+   *
+   * @param data the key path
+   * @param source the source to start derivation
+   * @param response the buffer receiving the response, including the SW
+   * @return the future length of the response
+   */
+  public CompletableFuture<Integer> deriveKey(ByteBuffer data, int source, ByteBuffer response) {
+    return submit(c -> c.deriveKey(data, source, response));
+  }
+
+  /**
+   * Queues a SIGN command with the current key.
+   *
+   * @param hash the hash to sign
+   * @param pubFormat the format of the public key in the response
+   * @return the future card response
+   */
+  public CompletableFuture<ResponseAPDU> sign(byte[] hash, byte pubFormat) {
+    return submit(c -> c.sign(hash, pubFormat));
+  }
+
+  /**
+   * Queues a SIGN command with the current key which reads the hash from a buffer and writes the response to another.
+   *
+   * @param hash the hash to sign
+   * @param pubFormat the format of the public key in the response
+   * @param response the buffer receiving the response, including the SW
+   * @return the future length of the response
+   */
+  public CompletableFuture<Integer> sign(ByteBuffer hash, byte pubFormat, ByteBuffer response) {
+    return submit(c -> c.sign(hash, pubFormat, response));
+  }
+
+  /**
+   * Queues a SIGN command with a key derived on the fly.
+   *
+   * @param hash the hash to sign
+   * @param path the key path
+   * @param source the source to start derivation
+   * @param pubFormat the format of the public key in the response
+   * @return the future card response
+   */
+  public CompletableFuture<ResponseAPDU> signWithPath(byte[] hash, byte[] path, int source, byte pubFormat) {
+    return submit(c -> c.signWithPath(hash, path, source, pubFormat));
+  }
+
+  /**
+   * Queues a SIGN command with a key derived on the fly which reads the hash and the path from a buffer and writes the
+   * response to another.
+   *
+   * @param data the hash followed by the key path
+   * @param source the source to start derivation
+   * @param pubFormat the format of the public key in the response
+   * @param response the buffer receiving the response, including the SW
+   * @return the future length of the response
+   */
+  public CompletableFuture<Integer> signWithPath(ByteBuffer data, int source, byte pubFormat, ByteBuffer response) {
+    return submit(c -> c.signWithPath(data, source, pubFormat, response));
+  }
+
+  /**
+   * Queues a SIGN command with multiple hashes.
+   *
+   * @param data the concatenated hashes
+   * @param pubFormat the format of the public key in the response
+   * @return the future card response
+   */
+  public CompletableFuture<ResponseAPDU> signBatch(byte[] data, byte pubFormat) {
+    return submit(c -> c.signBatch(data, pubFormat));
+  }
+
+  /**
+   * Queues a SIGN command with multiple hashes which reads the hashes from a buffer and writes the response to another.
+   *
+   * @param data the concatenated hashes
+   * @param pubFormat the format of the public key in the response
+   * @param response the buffer receiving the response, including the SW
+   * @return the future length of the response
+   */
+  public CompletableFuture<Integer> signBatch(ByteBuffer data, byte pubFormat, ByteBuffer response) {
+    return submit(c -> c.signBatch(data, pubFormat, response));
+  }
+
+  /**
+   * Queues an EXPORT KEY command.
+   *
+   * @param keyPathIndex the P1 parameter
+   * @param publicOnly the P2 parameter
+   * @return the future card response
+   */
+  public CompletableFuture<ResponseAPDU> exportKey(byte keyPathIndex, boolean publicOnly) {
+    return submit(c -> c.exportKey(keyPathIndex, publicOnly));
+  }
+
+  /**
+   * Stops accepting commands and waits for the queued ones to complete. If the thread is interrupted while waiting, the
+   * queued commands are left to complete in the background and the interrupt flag is set again.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package im.status.wallet;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Estimates how long commands would take on a real card, from what they did on the simulator. On jCardSim every
+ * operation runs at PC speed, so the relative cost of EC operations, EEPROM writes and communication is completely
+ * different from the one on a card. This model assigns a latency to each of them and adds them up for each command
+ * recorded by a CommandRecorder.
+ *
+ * The latencies are read from a profile, a properties file with one entry for each constant of this class, in
+ * microseconds. Entries which are missing keep the default value. A profile can also give a fixed extra cost to
+ * specific commands, with entries in the form ins.XX where XX is the INS in hex, to account for the operations which
+ * are not modeled. The default values are rough figures for a current card with hardware support for EC and AES but
+ * no native HMAC-SHA512. They are meant for comparing alternatives, such as batching or caching, not for absolute
+ * predictions: a profile measured on the target card should be used for those.
+ */
+public class CardCostModel {
+  /** Fixed cost of each APDU exchange, including the dispatching in the applet. */
+  public static final String APDU = "apdu";
+  /** Transfer time of each byte of the command and response APDUs. */
+  public static final String IO_BYTE = "io_byte";
+  /** EC point multiplication, as done by EC-DH and public key derivation. */
+  public static final String POINT_MULTIPLICATION = "point_multiplication";
+  /** ECDSA signature of a precomputed hash. */
+  public static final String SIGNATURE = "signature";
+  /** HMAC-SHA512 of a BIP32 child key derivation step, when the card supports it natively. */
+  public static final String HMAC_SHA512 = "hmac_sha512";
+  /** HMAC-SHA512 of a BIP32 child key derivation step, when computed in software from SHA-512. */
+  public static final String HMAC_SHA512_SOFTWARE = "hmac_sha512_software";
+  /** Whether HMAC-SHA512 is native on the card, 1 or 0. */
+  public static final String NATIVE_HMAC_SHA512 = "native_hmac_sha512";
+  /** Encryption, decryption or MAC of an AES block of the Secure Channel. */
+  public static final String AES_BLOCK = "aes_block";
+  /** Operations of opening or resuming a Secure Channel session, other than the EC-DH. */
+  public static final String SC_HANDSHAKE = "sc_handshake";
+  /** Generation of an EC key pair. */
+  public static final String KEY_GENERATION = "key_generation";
+  /** Write of a byte of persistent memory. */
+  public static final String NVM_BYTE = "nvm_byte";
+  /** Commit of a transaction. */
+  public static final String TRANSACTION = "transaction";
+  /** Prefix of the fixed extra cost of a command, followed by its INS in hex. */
+  public static final String INS_PREFIX = "ins.";
+
+  private final Properties costs;
+
+  /**
+   * Creates a model with the default values.
+   */
+  public CardCostModel() {
+    costs = new Properties();
+    costs.setProperty(APDU, "3000");
+    costs.setProperty(IO_BYTE, "90");
+    costs.setProperty(POINT_MULTIPLICATION, "70000");
+    costs.setProperty(SIGNATURE, "90000");
+    costs.setProperty(HMAC_SHA512, "4000");
+    costs.setProperty(HMAC_SHA512_SOFTWARE, "25000");
+    costs.setProperty(NATIVE_HMAC_SHA512, "0");
+    costs.setProperty(AES_BLOCK, "60");
+    costs.setProperty(SC_HANDSHAKE, "8000");
+    costs.setProperty(KEY_GENERATION, "150000");
+    costs.setProperty(NVM_BYTE, "40");
+    costs.setProperty(TRANSACTION, "5000");
+  }
+
+  /**
+   * Creates a model with the default values overridden by the given profile.
+   *
+   * @param profile the profile
+   */
+  public CardCostModel(Properties profile) {
+    this();
+    costs.putAll(profile);
+  }
+
+  /**
+   * Creates a model with the default values overridden by the profile read from the given stream.
+   *
+   * @param in the stream, in the format of Properties.load
+   * @return the model
+   * @throws IOException if the profile cannot be read
+   */
+  public static CardCostModel load(InputStream in) throws IOException {
+    Properties profile = new Properties();
+    profile.load(in);
+    return new CardCostModel(profile);
+  }
+
+  /**
+   * Creates a model from the profile file given by the im.status.wallet.test.cost_profile system property, or with the
+   * default values if it is not set.
+   *
+   * @return the model
+   * @throws IOException if the profile cannot be read
+   */
+  public static CardCostModel fromSystemProperty() throws IOException {
+    String file = System.getProperty("im.status.wallet.test.cost_profile");
+
+    if (file == null) {
+      return new CardCostModel();
+    }
+
+    try (InputStream in = new FileInputStream(file)) {
+      return load(in);
+    }
+  }
+
+  /**
+   * Returns the cost of the given entry of the profile.
+   *
+   * @param name the name of the entry
+   * @return the cost in microseconds, 0 if not defined
+   */
+  public double getCost(String name) {
+    return Double.parseDouble(costs.getProperty(name, "0"));
+  }
+
+  /**
+   * Estimates the duration of a command on the card.
+   *
+   * @param e the command
+   * @return the estimated duration in microseconds
+   */
+  public double estimate(CommandRecorder.Entry e) {
+    double hmac = (getCost(NATIVE_HMAC_SHA512) != 0) ? getCost(HMAC_SHA512) : getCost(HMAC_SHA512_SOFTWARE);
+    long aesBlocks = (e.getOperations(Counters.SC_BYTES_IN) + e.getOperations(Counters.SC_BYTES_OUT)) / SecureChannel.SC_BLOCK_SIZE;
+
+    return getCost(APDU)
+        + getCost(IO_BYTE) * (e.getCommandLength() + e.getResponseLength())
+        + getCost(POINT_MULTIPLICATION) * e.getOperations(Counters.POINT_MULTIPLICATIONS)
+        + getCost(SIGNATURE) * e.getOperations(Counters.SIGNATURES)
+        + hmac * e.getOperations(Counters.CKD_STEPS)
+        // Each block is both encrypted or decrypted and MACed
+        + getCost(AES_BLOCK) * aesBlocks * 2
+        + getCost(SC_HANDSHAKE) * e.getOperations(Counters.SC_HANDSHAKES)
+        + getCost(KEY_GENERATION) * e.getOperations(Counters.KEY_GENERATIONS)
+        + getCost(NVM_BYTE) * e.getBytes()
+        + getCost(TRANSACTION) * e.getTransactions()
+        + getCost(String.format("%s%02X", INS_PREFIX, e.getIns()));
+  }
+
+  /**
+   * Estimates the duration of a sequence of commands on the card.
+   *
+   * @param entries the commands
+   * @return the estimated duration in microseconds
+   */
+  public double estimate(List<CommandRecorder.Entry> entries) {
+    double total = 0;
+
+    for (CommandRecorder.Entry e : entries) {
+      total += estimate(e);
+    }
+
+    return total;
+  }
+}
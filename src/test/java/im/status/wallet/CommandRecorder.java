@@ -0,0 +1,724 @@
+package im.status.wallet;
+
+import com.licel.jcardsim.base.SimulatorRuntime;
+import javacard.framework.Applet;
+import javacard.framework.JCSystem;
+import javacard.framework.OwnerPIN;
+import javacard.security.ECPrivateKey;
+import javacard.security.Key;
+import javacard.security.KeyPair;
+import javacard.security.Signature;
+import javacardx.crypto.Cipher;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A jCardSim runtime which measures, for each command, how much persistent memory the installed applets modify, how
+ * many transactions they commit and which cryptographic operations they perform. On real cards EEPROM writes are slow
+ * and wear the memory, so these are the main cost of a command after the cryptographic operations. The operations are
+ * taken from the performance counters of the applet, see the Counters class.
+ *
+ * Before and after each command the object graph of the applets is walked by reflection and all persistent state is
+ * compared: the fields of the applet objects, OwnerPIN, KeyPair and key objects and the content of the persistent
+ * arrays they reference. Arrays are persistent unless created by JCSystem.makeTransient*Array. Objects of other
+ * classes, such as Cipher or Signature, are not walked. Only bytes which actually change are counted, so writing a
+ * value equal to the current one is not detected, and the numbers are a lower bound of what a card writes.
+ *
+ * The Secure Channel cipher and MAC objects of the applets are replaced by wrappers which count the calls to init, since
+ * on cards initializing them is about as slow as the operations themselves and they are meant to be initialized once per
+ * session.
+ *
+ * Use it by passing an instance to the CardSimulator constructor. The recorded commands can be checked against a
+ * budget, so that regressions make the tests fail, or passed to a CardCostModel to estimate their duration on a card.
+ */
+public class CommandRecorder extends SimulatorRuntime {
+  private static final int REFERENCE_SIZE = 2;
+  private static final String BYTE_CONTAINER = "com.licel.jcardsim.crypto.ByteContainer";
+
+  private final List<Entry> entries = new ArrayList<>();
+  private int commits;
+  private int inits;
+  private volatile boolean enabled = true;
+
+  /**
+   * The persistent writes and the operations of a single command.
+   */
+  public static class Entry {
+    private final byte[] header;
+    private final int commandLength;
+    private final int responseLength;
+    private final int bytes;
+    private final int fields;
+    private final int keys;
+    private final int transactions;
+    private final long[] operations;
+    private final int cryptoInits;
+
+    private Entry(byte[] header, int commandLength, int responseLength, int bytes, int fields, int keys, int transactions, long[] operations, int cryptoInits) {
+      this.header = header;
+      this.commandLength = commandLength;
+      this.responseLength = responseLength;
+      this.bytes = bytes;
+      this.fields = fields;
+      this.keys = keys;
+      this.transactions = transactions;
+      this.operations = operations;
+      this.cryptoInits = cryptoInits;
+    }
+
+    /**
+     * Returns the INS of the command.
+     *
+     * @return the INS
+     */
+    public byte getIns() {
+      return header[1];
+    }
+
+    /**
+     * Returns the length of the command APDU.
+     *
+     * @return the length in bytes
+     */
+    public int getCommandLength() {
+      return commandLength;
+    }
+
+    /**
+     * Returns the length of the response APDU, including the SW.
+     *
+     * @return the length in bytes
+     */
+    public int getResponseLength() {
+      return responseLength;
+    }
+
+    /**
+     * Returns the number of persistent bytes modified by the command, including those of keys.
+     *
+     * @return the number of bytes
+     */
+    public int getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Returns the number of distinct fields and arrays modified by the command.
+     *
+     * @return the number of fields and arrays
+     */
+    public int getFields() {
+      return fields;
+    }
+
+    /**
+     * Returns the number of persistent keys modified by the command, which on a card means calls to setS, setW or
+     * genKeyPair.
+     *
+     * @return the number of keys
+     */
+    public int getKeys() {
+      return keys;
+    }
+
+    /**
+     * Returns the number of transactions committed by the command.
+     *
+     * @return the number of transactions
+     */
+    public int getTransactions() {
+      return transactions;
+    }
+
+    /**
+     * Returns how much the given performance counter of the applet increased during the command.
+     *
+     * @param counter the counter, one of the constants of the Counters class
+     * @return the increase
+     */
+    public long getOperations(byte counter) {
+      return operations[counter];
+    }
+
+    /**
+     * Returns the number of times the Secure Channel ciphers and MAC were initialized by the command.
+     *
+     * @return the number of calls to init
+     */
+    public int getCryptoInits() {
+      return cryptoInits;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%02X %02X %02X %02X  in %4d  out %4d  bytes %5d  fields %3d  keys %2d  transactions %2d  ecmul %2d  sign %2d  ckd %2d  inits %d",
+          header[0], header[1], header[2], header[3], commandLength, responseLength, bytes, fields, keys, transactions,
+          operations[Counters.POINT_MULTIPLICATIONS], operations[Counters.SIGNATURES], operations[Counters.CKD_STEPS], cryptoInits);
+    }
+  }
+
+  /*
+   * The value of a field or array at the time of the snapshot, together with the key it belongs to, if any.
+   */
+  private static class Cell {
+    private final Object value;
+    private final int size;
+    private final String key;
+
+    private Cell(Object value, int size, String key) {
+      this.value = value;
+      this.size = size;
+      this.key = key;
+    }
+  }
+
+  @Override
+  public byte[] transmitCommand(byte[] command) {
+    if (!enabled) {
+      return super.transmitCommand(command);
+    }
+
+    wrapSecureChannelCrypto();
+    Map<String, Cell> before = snapshot();
+    long[] operations = readCounters();
+    int startCommits = commits;
+    int startInits = inits;
+    byte[] response = null;
+
+    try {
+      response = super.transmitCommand(command);
+      return response;
+    } finally {
+      record(command, response, before, operations, commits - startCommits, inits - startInits);
+    }
+  }
+
+  @Override
+  public void commitTransaction() {
+    super.commitTransaction();
+    commits++;
+  }
+
+  /**
+   * Returns the commands recorded since creation or since the last call to clear.
+   *
+   * @return the recorded commands, oldest first
+   */
+  public synchronized List<Entry> getEntries() {
+    return Collections.unmodifiableList(new ArrayList<>(entries));
+  }
+
+  /**
+   * Sets whether commands are recorded. Recording walks the state of the applets twice for each command, which makes
+   * commands much slower. It is enabled by default.
+   *
+   * @param enabled whether commands are recorded
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Generates again the Secure Channel key pair of the installed wallet applets while its private key is shorter than
+   * 32 bytes. jCardSim drops the leading zero bytes of generated private keys, which happens about once every 256
+   * keys and makes the Secure Channel fail, while a card always uses the full length. Used after installation and
+   * again after INIT, which generates the key pair again, so that runs on freshly installed applets do not fail at
+   * random.
+   */
+  public void fixShortSecureChannelKeys() {
+    byte[] buf = new byte[SecureChannel.SC_SECRET_LENGTH];
+
+    for (WalletApplet applet : getWalletApplets()) {
+      try {
+        Field f = WalletApplet.class.getDeclaredField("secureChannel");
+        f.setAccessible(true);
+        Object secureChannel = f.get(applet);
+        f = SecureChannel.class.getDeclaredField("scKeypair");
+        f.setAccessible(true);
+        KeyPair keypair = (KeyPair) f.get(secureChannel);
+
+        while (((ECPrivateKey) keypair.getPrivate()).getS(buf, (short) 0) < buf.length) {
+          keypair.genKeyPair();
+        }
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /**
+   * Returns the installed wallet applets, so that their state can be inspected or prepared by tests.
+   *
+   * @return the applets
+   */
+  public List<WalletApplet> getWalletApplets() {
+    List<WalletApplet> list = new ArrayList<>();
+
+    for (ApplicationInstance instance : applets.values()) {
+      if (instance.getApplet() instanceof WalletApplet) {
+        list.add((WalletApplet) instance.getApplet());
+      }
+    }
+
+    return list;
+  }
+
+  /**
+   * Forgets the recorded commands.
+   */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Returns a report of the recorded commands, one per line.
+   *
+   * @return the report
+   */
+  public synchronized String report() {
+    StringBuilder sb = new StringBuilder();
+
+    for (Entry e : entries) {
+      sb.append(e).append('\n');
+    }
+
+    return sb.toString();
+  }
+
+  /**
+   * Checks that all recorded commands with the given INS stayed within the given budget. Throws an AssertionError with
+   * the full report otherwise.
+   *
+   * @param ins the INS of the commands to check
+   * @param maxBytes the maximum number of persistent bytes modified by each command
+   * @param maxKeys the maximum number of persistent keys modified by each command
+   * @param maxTransactions the maximum number of transactions committed by each command
+   */
+  public synchronized void assertWithinBudget(byte ins, int maxBytes, int maxKeys, int maxTransactions) {
+    for (Entry e : entries) {
+      if ((e.getIns() == ins) && ((e.bytes > maxBytes) || (e.keys > maxKeys) || (e.transactions > maxTransactions))) {
+        throw new AssertionError(String.format("Budget exceeded (bytes %d, keys %d, transactions %d) by\n%s\nAll commands:\n%s",
+            maxBytes, maxKeys, maxTransactions, e, report()));
+      }
+    }
+  }
+
+  /**
+   * Compares the current state with the one before the command and records the result.
+   *
+   * @param command the command APDU
+   * @param response the response APDU, or null if the command failed with an exception
+   * @param before the state before the command
+   * @param operations the performance counters before the command
+   * @param transactions the number of transactions committed by the command
+   * @param cryptoInits the number of Secure Channel cipher and MAC initializations made by the command
+   */
+  private synchronized void record(byte[] command, byte[] response, Map<String, Cell> before, long[] operations, int transactions, int cryptoInits) {
+    long[] counters = readCounters();
+
+    for (int i = 0; i < operations.length; i++) {
+      operations[i] = (counters[i] - operations[i]) & 0xffffffffL;
+    }
+
+    Map<String, Cell> after = snapshot();
+    Set<String> keys = new HashSet<>();
+    int bytes = 0;
+    int fields = 0;
+
+    for (Map.Entry<String, Cell> e : after.entrySet()) {
+      Cell a = e.getValue();
+      int changed = diff(before.get(e.getKey()), a);
+
+      if (changed > 0) {
+        bytes += changed;
+        fields++;
+
+        if (a.key != null) {
+          keys.add(a.key);
+        }
+      }
+    }
+
+    byte[] header = new byte[4];
+    System.arraycopy(command, 0, header, 0, Math.min(header.length, command.length));
+    int responseLength = (response == null) ? 0 : response.length;
+    entries.add(new Entry(header, command.length, responseLength, bytes, fields, keys.size(), transactions, operations, cryptoInits));
+  }
+
+  /**
+   * Replaces the Secure Channel cipher and MAC objects of the installed wallet applets by counting wrappers, unless
+   * already done. The objects are created once at installation, so this is done before the first recorded command and
+   * does not count as a persistent write.
+   */
+  private void wrapSecureChannelCrypto() {
+    for (WalletApplet applet : getWalletApplets()) {
+      try {
+        Field f = WalletApplet.class.getDeclaredField("secureChannel");
+        f.setAccessible(true);
+        Object secureChannel = f.get(applet);
+
+        for (Field field : SecureChannel.class.getDeclaredFields()) {
+          field.setAccessible(true);
+          Object value = field.get(secureChannel);
+
+          if ((value instanceof Cipher) && !(value instanceof CountingCipher)) {
+            field.set(secureChannel, new CountingCipher((Cipher) value));
+          } else if ((value instanceof Signature) && !(value instanceof CountingSignature)) {
+            field.set(secureChannel, new CountingSignature((Signature) value));
+          }
+        }
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /**
+   * Reads the performance counters since installation of all installed wallet applets, summed.
+   *
+   * @return the counters
+   */
+  private long[] readCounters() {
+    long[] values = new long[Counters.COUNT];
+    byte[] buf = new byte[Counters.SIZE];
+
+    for (ApplicationInstance instance : applets.values()) {
+      Applet applet = instance.getApplet();
+
+      if (!(applet instanceof WalletApplet)) {
+        continue;
+      }
+
+      try {
+        Field f = WalletApplet.class.getDeclaredField("counters");
+        f.setAccessible(true);
+        ((Counters) f.get(applet)).copyTotals(buf, (short) 0);
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException(e);
+      }
+
+      for (int i = 0; i < values.length; i++) {
+        values[i] += ByteBuffer.wrap(buf, i * 4, 4).getInt() & 0xffffffffL;
+      }
+    }
+
+    return values;
+  }
+
+  /**
+   * Returns the number of bytes which differ between two snapshots of the same field or array.
+   *
+   * @param before the old value, or null if the field was not reachable
+   * @param after the new value
+   * @return the number of bytes changed
+   */
+  private static int diff(Cell before, Cell after) {
+    if (before == null) {
+      return after.size;
+    }
+
+    Object a = after.value;
+    Object b = before.value;
+
+    if (!a.getClass().isArray()) {
+      return a.equals(b) ? 0 : after.size;
+    }
+
+    int len = Array.getLength(a);
+
+    if (!b.getClass().isArray() || (len != Array.getLength(b))) {
+      return after.size;
+    }
+
+    int elementSize = after.size / Math.max(1, len);
+    int changed = 0;
+
+    for (int i = 0; i < len; i++) {
+      if (!Array.get(a, i).equals(Array.get(b, i))) {
+        changed += elementSize;
+      }
+    }
+
+    return changed;
+  }
+
+  /**
+   * Takes a snapshot of the persistent state of all installed applets.
+   *
+   * @return the state, by field path
+   */
+  private Map<String, Cell> snapshot() {
+    Map<String, Cell> out = new HashMap<>();
+    Map<Object, Boolean> visited = new IdentityHashMap<>();
+
+    for (ApplicationInstance instance : applets.values()) {
+      Applet applet = instance.getApplet();
+
+      if (applet != null) {
+        walk(applet, applet.getClass().getSimpleName(), null, out, visited);
+      }
+    }
+
+    return out;
+  }
+
+  /**
+   * Records the fields of the given object and recurses into the objects they reference.
+   *
+   * @param obj the object
+   * @param path the path of the object
+   * @param key the path of the key containing this object, if any
+   * @param out the snapshot
+   * @param visited the objects already walked
+   */
+  private void walk(Object obj, String path, String key, Map<String, Cell> out, Map<Object, Boolean> visited) {
+    if (visited.put(obj, Boolean.TRUE) != null) {
+      return;
+    }
+
+    if ((key == null) && (obj instanceof Key)) {
+      key = path;
+    }
+
+    // Key components are stored by jCardSim in a ByteContainer, whose array is transient for transient keys. The other
+    // fields of the container are simulator bookkeeping, which a card does not necessarily write.
+    boolean container = obj.getClass().getName().equals(BYTE_CONTAINER);
+
+    for (Class<?> c = obj.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+      for (Field f : c.getDeclaredFields()) {
+        if (Modifier.isStatic(f.getModifiers()) || (container && !f.getType().isArray())) {
+          continue;
+        }
+
+        f.setAccessible(true);
+        String fieldPath = path + "." + f.getName();
+        Object value;
+
+        try {
+          value = f.get(obj);
+        } catch (IllegalAccessException e) {
+          throw new IllegalStateException(e);
+        }
+
+        Class<?> type = f.getType();
+
+        if (type.isPrimitive()) {
+          out.put(fieldPath, new Cell(value, primitiveSize(type), key));
+          continue;
+        }
+
+        if (!container) {
+          out.put(fieldPath, new Cell(new Reference(value), REFERENCE_SIZE, key));
+        }
+
+        if (value == null) {
+          continue;
+        }
+
+        if (value.getClass().isArray()) {
+          Class<?> component = value.getClass().getComponentType();
+
+          if (component.isPrimitive() && (getTransientMemory().isTransient(value) == JCSystem.NOT_A_TRANSIENT_OBJECT)) {
+            out.put(fieldPath + "[]", new Cell(copy(value), Array.getLength(value) * primitiveSize(component), key));
+          }
+        } else if (isWalked(value)) {
+          walk(value, fieldPath, key, out, visited);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether the fields of the given object are part of the persistent state to compare.
+   *
+   * @param obj the object
+   * @return true if the object must be walked
+   */
+  private static boolean isWalked(Object obj) {
+    String pkg = obj.getClass().getPackage() == null ? "" : obj.getClass().getPackage().getName();
+
+    if ((obj instanceof Cipher) || (obj instanceof Signature)) {
+      return false;
+    }
+
+    return pkg.equals(WalletApplet.class.getPackage().getName()) || (obj instanceof OwnerPIN) || (obj instanceof KeyPair)
+        || (obj instanceof Key) || obj.getClass().getName().equals(BYTE_CONTAINER);
+  }
+
+  private static Object copy(Object array) {
+    int len = Array.getLength(array);
+    Object copy = Array.newInstance(array.getClass().getComponentType(), len);
+    System.arraycopy(array, 0, copy, 0, len);
+    return copy;
+  }
+
+  private static int primitiveSize(Class<?> type) {
+    if ((type == byte.class) || (type == boolean.class)) {
+      return 1;
+    } else if ((type == short.class) || (type == char.class)) {
+      return 2;
+    } else if ((type == int.class) || (type == float.class)) {
+      return 4;
+    } else {
+      return 8;
+    }
+  }
+
+  /*
+   * A cipher which counts the calls to init and delegates everything to the wrapped one.
+   */
+  private class CountingCipher extends Cipher {
+    private final Cipher cipher;
+
+    private CountingCipher(Cipher cipher) {
+      this.cipher = cipher;
+    }
+
+    @Override
+    public void init(Key theKey, byte theMode) {
+      inits++;
+      cipher.init(theKey, theMode);
+    }
+
+    @Override
+    public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) {
+      inits++;
+      cipher.init(theKey, theMode, bArray, bOff, bLen);
+    }
+
+    @Override
+    public byte getAlgorithm() {
+      return cipher.getAlgorithm();
+    }
+
+    @Override
+    public byte getCipherAlgorithm() {
+      return cipher.getCipherAlgorithm();
+    }
+
+    @Override
+    public byte getPaddingAlgorithm() {
+      return cipher.getPaddingAlgorithm();
+    }
+
+    @Override
+    public short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+      return cipher.doFinal(inBuff, inOffset, inLength, outBuff, outOffset);
+    }
+
+    @Override
+    public short update(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+      return cipher.update(inBuff, inOffset, inLength, outBuff, outOffset);
+    }
+  }
+
+  /*
+   * A signature which counts the calls to init and delegates everything to the wrapped one.
+   */
+  private class CountingSignature extends Signature {
+    private final Signature signature;
+
+    private CountingSignature(Signature signature) {
+      this.signature = signature;
+    }
+
+    @Override
+    public void init(Key theKey, byte theMode) {
+      inits++;
+      signature.init(theKey, theMode);
+    }
+
+    @Override
+    public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) {
+      inits++;
+      signature.init(theKey, theMode, bArray, bOff, bLen);
+    }
+
+    @Override
+    public void setInitialDigest(byte[] state, short stateOffset, short stateLength, byte[] digestedMsgLen, short digestedMsgLenOffset, short digestedMsgLenLength) {
+      signature.setInitialDigest(state, stateOffset, stateLength, digestedMsgLen, digestedMsgLenOffset, digestedMsgLenLength);
+    }
+
+    @Override
+    public byte getAlgorithm() {
+      return signature.getAlgorithm();
+    }
+
+    @Override
+    public byte getMessageDigestAlgorithm() {
+      return signature.getMessageDigestAlgorithm();
+    }
+
+    @Override
+    public byte getCipherAlgorithm() {
+      return signature.getCipherAlgorithm();
+    }
+
+    @Override
+    public byte getPaddingAlgorithm() {
+      return signature.getPaddingAlgorithm();
+    }
+
+    @Override
+    public short getLength() {
+      return signature.getLength();
+    }
+
+    @Override
+    public void update(byte[] inBuff, short inOffset, short inLength) {
+      signature.update(inBuff, inOffset, inLength);
+    }
+
+    @Override
+    public short sign(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset) {
+      return signature.sign(inBuff, inOffset, inLength, sigBuff, sigOffset);
+    }
+
+    @Override
+    public short signPreComputedHash(byte[] hashBuff, short hashOff, short hashLength, byte[] sigBuff, short sigOffset) {
+      return signature.signPreComputedHash(hashBuff, hashOff, hashLength, sigBuff, sigOffset);
+    }
+
+    @Override
+    public boolean verify(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset, short sigLength) {
+      return signature.verify(inBuff, inOffset, inLength, sigBuff, sigOffset, sigLength);
+    }
+
+    @Override
+    public boolean verifyPreComputedHash(byte[] hashBuff, short hashOff, short hashLength, byte[] sigBuff, short sigOffset, short sigLength) {
+      return signature.verifyPreComputedHash(hashBuff, hashOff, hashLength, sigBuff, sigOffset, sigLength);
+    }
+  }
+
+  /*
+   * A reference held by a field, compared by identity.
+   */
+  private static class Reference {
+    private final Object target;
+
+    private Reference(Object target) {
+      this.target = target;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return (o instanceof Reference) && (((Reference) o).target == target);
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(target);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package im.status.wallet;
+
+import javacard.security.CryptoException;
+import javacard.security.RandomData;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.prng.DigestRandomGenerator;
+
+import java.security.SecureRandom;
+
+/**
+ * A SecureRandom which always returns the same sequence for the same seed, for reproducible runs on jCardSim. It must
+ * never be used with a real card. The same generator can be used on the card side with toRandomData, to replace the
+ * RandomData of an applet.
+ */
+// SecureRandom is Serializable, but this generator is never serialized and its state is not serializable anyway
+@SuppressWarnings("serial")
+public class DeterministicRandom extends SecureRandom {
+  private final DigestRandomGenerator generator;
+
+  /**
+   * Creates a generator with the given seed.
+   *
+   * @param seed the seed
+   */
+  public DeterministicRandom(long seed) {
+    generator = new DigestRandomGenerator(new SHA256Digest());
+    generator.addSeedMaterial(seed);
+  }
+
+  @Override
+  public void nextBytes(byte[] bytes) {
+    synchronized (generator) {
+      generator.nextBytes(bytes);
+    }
+  }
+
+  @Override
+  public byte[] generateSeed(int numBytes) {
+    byte[] seed = new byte[numBytes];
+    nextBytes(seed);
+    return seed;
+  }
+
+  @Override
+  public void setSeed(byte[] seed) {
+    synchronized (generator) {
+      generator.addSeedMaterial(seed);
+    }
+  }
+
+  @Override
+  public void setSeed(long seed) {
+    // Invoked by the superclass constructor, before the generator exists
+    if (generator != null) {
+      synchronized (generator) {
+        generator.addSeedMaterial(seed);
+      }
+    }
+  }
+
+  @Override
+  public String getAlgorithm() {
+    return "DeterministicSHA256";
+  }
+
+  /**
+   * Returns a JavaCard RandomData drawing from this generator.
+   *
+   * @return the RandomData
+   */
+  public RandomData toRandomData() {
+    return new CardRandomData(generator);
+  }
+
+  /*
+   * Only references the generator, which is not walked by CommandRecorder, so that the RandomData can replace the
+   * one of an applet without being mistaken for applet state.
+   */
+  private static class CardRandomData extends RandomData {
+    private final DigestRandomGenerator generator;
+
+    private CardRandomData(DigestRandomGenerator generator) {
+      this.generator = generator;
+    }
+
+    @Override
+    public void generateData(byte[] buffer, short offset, short length) throws CryptoException {
+      synchronized (generator) {
+        generator.nextBytes(buffer, offset, length);
+      }
+    }
+
+    public short nextBytes(byte[] buffer, short offset, short length) throws CryptoException {
+      generateData(buffer, offset, length);
+      return (short) (offset + length);
+    }
+
+    @Override
+    public void setSeed(byte[] buffer, short offset, short length) {
+      byte[] seed = new byte[length];
+      System.arraycopy(buffer, offset, seed, 0, length);
+
+      synchronized (generator) {
+        generator.addSeedMaterial(seed);
+      }
+    }
+
+    @Override
+    public byte getAlgorithm() {
+      return ALG_PSEUDO_RANDOM;
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package im.status.wallet;
+
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.spec.ECParameterSpec;
+import org.bouncycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * An extended public key, as defined by BIP32. Instances are obtained from the key template returned by the EXPORT KEY
+ * command with P2 set to EXPORT_KEY_P2_EXTENDED_PUBLIC and can be used to derive the public keys of all non-hardened
+ * descendants of the exported key (the CKDpub function of BIP32) without communicating with the card. Instances are
+ * immutable.
+ */
+public class ExtendedPublicKey {
+  private static final ECParameterSpec CURVE = ECNamedCurveTable.getParameterSpec("secp256k1");
+
+  private final ECPoint point;
+  private final byte[] chainCode;
+
+  /**
+   * Creates an extended public key from its components.
+   *
+   * @param point the public key
+   * @param chainCode the chain code
+   */
+  public ExtendedPublicKey(ECPoint point, byte[] chainCode) {
+    this.point = point.normalize();
+    this.chainCode = chainCode.clone();
+  }
+
+  /**
+   * Parses the key template returned by EXPORT KEY. The template must contain both the public key and the chain code.
+   *
+   * @param keyTemplate the key template
+   * @return the extended public key
+   */
+  public static ExtendedPublicKey fromKeyTemplate(byte[] keyTemplate) {
+    if (keyTemplate[0] != WalletApplet.TLV_KEY_TEMPLATE || keyTemplate[2] != WalletApplet.TLV_PUB_KEY) {
+      throw new IllegalArgumentException("Invalid key template");
+    }
+
+    int off = 4 + keyTemplate[3];
+    ECPoint point = CURVE.getCurve().decodePoint(Arrays.copyOfRange(keyTemplate, 4, off));
+
+    if (keyTemplate[off] != WalletApplet.TLV_CHAIN_CODE || keyTemplate[off + 1] != WalletApplet.CHAIN_CODE_SIZE) {
+      throw new IllegalArgumentException("No chain code in key template");
+    }
+
+    off += 2;
+    return new ExtendedPublicKey(point, Arrays.copyOfRange(keyTemplate, off, off + WalletApplet.CHAIN_CODE_SIZE));
+  }
+
+  /**
+   * Derives the child with the given index. Only non-hardened derivation is possible.
+   *
+   * @param index the index of the child
+   * @return the child extended public key
+   * @throws IllegalArgumentException if the index is hardened or, as BIP32 mandates, if the index generates an invalid
+   *                                  key, in which case the next index should be used instead
+   */
+  public ExtendedPublicKey derive(int index) {
+    if (index < 0) {
+      throw new IllegalArgumentException("Hardened derivation requires the private key");
+    }
+
+    byte[] data = Arrays.copyOf(getPublicKey(true), 37);
+    data[33] = (byte) (index >>> 24);
+    data[34] = (byte) (index >>> 16);
+    data[35] = (byte) (index >>> 8);
+    data[36] = (byte) index;
+
+    HMac hmac = new HMac(new SHA512Digest());
+    hmac.init(new KeyParameter(chainCode));
+    hmac.update(data, 0, data.length);
+    byte[] i = new byte[64];
+    hmac.doFinal(i, 0);
+
+    BigInteger il = new BigInteger(1, Arrays.copyOf(i, 32));
+
+    if (il.compareTo(CURVE.getN()) >= 0) {
+      throw new IllegalArgumentException("Invalid key for index " + index);
+    }
+
+    ECPoint child = CURVE.getG().multiply(il).add(point);
+
+    if (child.isInfinity()) {
+      throw new IllegalArgumentException("Invalid key for index " + index);
+    }
+
+    return new ExtendedPublicKey(child, Arrays.copyOfRange(i, 32, 64));
+  }
+
+  /**
+   * Derives the descendant with the given path, relative to this key. All indexes must be non-hardened.
+   *
+   * @param path the key path
+   * @return the descendant extended public key
+   */
+  public ExtendedPublicKey derive(int[] path) {
+    ExtendedPublicKey key = this;
+
+    for (int i : path) {
+      key = key.derive(i);
+    }
+
+    return key;
+  }
+
+  /**
+   * Returns the public key, encoded as a point.
+   *
+   * @param compressed whether the compressed or uncompressed encoding must be used
+   * @return the encoded public key
+   */
+  public byte[] getPublicKey(boolean compressed) {
+    return point.getEncoded(compressed);
+  }
+
+  /**
+   * Returns the chain code.
+   *
+   * @return the chain code
+   */
+  public byte[] getChainCode() {
+    return chainCode.clone();
+  }
+}
@@ -0,0 +1,166 @@
+package im.status.wallet;
+
+import java.io.PrintStream;
+
+/**
+ * A histogram of latencies with a fixed relative precision, in the style of HdrHistogram. Values are counted in
+ * buckets whose width doubles at each power of two, each split in SUB_BUCKETS linear sub-buckets, so that any value
+ * is reported with an error below 1 / SUB_BUCKETS, about 1.6%, whatever its magnitude, using a fixed amount of
+ * memory. Recording is a few arithmetic operations and an array increment.
+ *
+ * Histograms are not thread-safe. Each thread should record to its own histogram, and the histograms be added
+ * together at the end.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+  private static final double[] PERCENTILES = { 50, 75, 90, 99, 99.9, 99.99, 100 };
+
+  private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS];
+  private long totalCount;
+  private long min = Long.MAX_VALUE;
+  private long max;
+  private double sum;
+
+  /**
+   * Records a value.
+   *
+   * @param value the value, negative values are recorded as 0
+   */
+  public void record(long value) {
+    value = Math.max(0, value);
+    counts[index(value)]++;
+    totalCount++;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+    sum += value;
+  }
+
+  /**
+   * Adds all values recorded by another histogram to this one.
+   *
+   * @param other the other histogram
+   */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+
+    totalCount += other.totalCount;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+    sum += other.sum;
+  }
+
+  /**
+   * Returns the number of recorded values.
+   *
+   * @return the number of values
+   */
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  /**
+   * Returns the smallest recorded value.
+   *
+   * @return the smallest value, 0 if none recorded
+   */
+  public long getMin() {
+    return (totalCount == 0) ? 0 : min;
+  }
+
+  /**
+   * Returns the largest recorded value.
+   *
+   * @return the largest value, 0 if none recorded
+   */
+  public long getMax() {
+    return max;
+  }
+
+  /**
+   * Returns the mean of the recorded values.
+   *
+   * @return the mean, 0 if none recorded
+   */
+  public double getMean() {
+    return (totalCount == 0) ? 0 : (sum / totalCount);
+  }
+
+  /**
+   * Returns the value at the given percentile, that is the smallest value such that the given percentage of the
+   * recorded values are less than or equal to it, within the precision of the histogram.
+   *
+   * @param percentile the percentile, between 0 and 100
+   * @return the value, 0 if none recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+
+    long target = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * totalCount));
+    long count = 0;
+
+    for (int i = 0; i < counts.length; i++) {
+      count += counts[i];
+
+      if (count >= target) {
+        return Math.min(max, Math.max(min, highestEquivalentValue(i)));
+      }
+    }
+
+    return max;
+  }
+
+  /**
+   * Prints the count, mean and main percentiles of the recorded values on one line, scaled by the given ratio.
+   *
+   * @param out the stream to print to
+   * @param name the name to print at the beginning of the line
+   * @param scale the ratio by which values are divided before printing, for example 1000 to print microseconds as
+   *              milliseconds
+   */
+  public void printSummary(PrintStream out, String name, double scale) {
+    StringBuilder sb = new StringBuilder(String.format("%-16s count %8d  mean %9.3f", name, totalCount, getMean() / scale));
+
+    for (double p : PERCENTILES) {
+      sb.append(String.format("  p%s %9.3f", (p == Math.rint(p)) ? Long.toString((long) p) : Double.toString(p), getValueAtPercentile(p) / scale));
+    }
+
+    out.println(sb);
+  }
+
+  /**
+   * Returns the index of the bucket counting the given value. Values below 2 * SUB_BUCKETS have a bucket each, above
+   * that the value is shifted right until it has SUB_BUCKET_BITS significant bits and the shift selects the range.
+   *
+   * @param value the value, not negative
+   * @return the index
+   */
+  private static int index(long value) {
+    if (value < (SUB_BUCKETS << 1)) {
+      return (int) value;
+    }
+
+    int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift * SUB_BUCKETS) + (int) (value >>> shift);
+  }
+
+  /**
+   * Returns the largest value counted by the bucket with the given index.
+   *
+   * @param index the index
+   * @return the value
+   */
+  private static long highestEquivalentValue(int index) {
+    if (index < (SUB_BUCKETS << 1)) {
+      return index;
+    }
+
+    int shift = (index / SUB_BUCKETS) - 1;
+    long sub = index - (shift * SUB_BUCKETS);
+    return ((sub + 1) << shift) - 1;
+  }
+}
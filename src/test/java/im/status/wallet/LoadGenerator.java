@@ -0,0 +1,549 @@
+package im.status.wallet;
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import javacard.framework.AID;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.ResponseAPDU;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the sustained signing throughput of a set of cards shared by several client threads, as a signing service
+ * would use them. The given number of applets are installed on separate jCardSim instances, initialized with a seed
+ * and put in a WalletAppletPool. The client threads then lease cards from the pool and send a random mix of DERIVE
+ * KEY, SIGN, SIGN with a path derived on the fly and EXPORT KEY for a fixed time, after a warmup. Every few commands
+ * a thread reselects the card, so that the pool resumes or reopens the Secure Channel, as happens when a card is
+ * shared with other clients.
+ *
+ * The result reports the signatures per second and, for each kind of command, a LatencyHistogram of the time spent
+ * on the card, plus one of the time spent waiting for a lease. The times are those of jCardSim, so they are useful to
+ * compare configurations and applet builds and to find contention on the host side. For the throughput of real cards,
+ * the commands of each card can be recorded with a CommandRecorder and passed to a CardCostModel.
+ *
+ * Run with ./gradlew loadTest, see the main method for the parameters.
+ */
+public class LoadGenerator {
+  /** DERIVE KEY from the master key, changing the current key. */
+  public static final int DERIVE = 0;
+  /** SIGN with the current key. */
+  public static final int SIGN = 1;
+  /** SIGN with a key derived on the fly from the parent of the current key. */
+  public static final int SIGN_WITH_PATH = 2;
+  /** EXPORT KEY of the current public key. */
+  public static final int EXPORT = 3;
+  /** Reselection of the card, followed by resuming the Secure Channel and verifying the PIN. */
+  public static final int REOPEN = 4;
+
+  static final String[] OPERATION_NAMES = { "derive", "sign", "sign-with-path", "export", "reopen" };
+
+  private static final String PIN = "000000";
+  private static final String PUK = "123456789012";
+  private static final byte[] PAIRING_SECRET = new byte[SecureChannel.SC_SECRET_LENGTH];
+  private static final byte[] BIP44_ACCOUNT_PATH = {
+      (byte) 0x80, 0x00, 0x00, 0x2C, (byte) 0x80, 0x00, 0x00, 0x3C, (byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+  };
+
+  private final int cards;
+  private final int threads;
+  private final int[] weights = { 10, 60, 20, 10 };
+  private int reopenInterval = 50;
+  private long seed;
+  private boolean recordCommands;
+  private final List<CommandRecorder> recorders = new ArrayList<>();
+
+  /**
+   * Creates a load generator. No card is created until run is invoked.
+   *
+   * @param cards the number of cards
+   * @param threads the number of client threads
+   */
+  public LoadGenerator(int cards, int threads) {
+    this.cards = cards;
+    this.threads = threads;
+  }
+
+  /**
+   * Sets the relative frequency of each command. The default is 10% DERIVE KEY, 60% SIGN, 20% SIGN with path and 10%
+   * EXPORT KEY.
+   *
+   * @param derive the weight of DERIVE KEY
+   * @param sign the weight of SIGN with the current key
+   * @param signWithPath the weight of SIGN with a key derived on the fly
+   * @param export the weight of EXPORT KEY
+   */
+  public void setMix(int derive, int sign, int signWithPath, int export) {
+    if ((derive < 0) || (sign < 0) || (signWithPath < 0) || (export < 0) || (derive + sign + signWithPath + export == 0)) {
+      throw new IllegalArgumentException("Invalid mix");
+    }
+
+    weights[DERIVE] = derive;
+    weights[SIGN] = sign;
+    weights[SIGN_WITH_PATH] = signWithPath;
+    weights[EXPORT] = export;
+  }
+
+  /**
+   * Sets after how many commands each thread reselects the card it holds. The default is 50.
+   *
+   * @param reopenInterval the number of commands, 0 to never reselect
+   */
+  public void setReopenInterval(int reopenInterval) {
+    this.reopenInterval = reopenInterval;
+  }
+
+  /**
+   * Sets the seed of the random choices of the client threads, so that runs send the same sequence of commands from
+   * each thread. The interleaving of the threads still varies between runs.
+   *
+   * @param seed the seed
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * Sets whether the commands executed by each card during the measurement are recorded with a CommandRecorder. This
+   * allows estimating the throughput of real cards with a CardCostModel, but slows down every command considerably.
+   *
+   * @param recordCommands whether commands are recorded
+   */
+  public void setRecordCommands(boolean recordCommands) {
+    this.recordCommands = recordCommands;
+  }
+
+  /**
+   * Returns the recorders of the cards of the last run, one for each card, if recording was enabled. Commands sent
+   * before the measurement started are not included.
+   *
+   * @return the recorders
+   */
+  public List<CommandRecorder> getRecorders() {
+    return recorders;
+  }
+
+  /**
+   * Creates the cards and runs the load. The BouncyCastle provider must be registered.
+   *
+   * @param warmup the duration of the warmup, whose results are discarded
+   * @param duration the duration of the measurement
+   * @param unit the unit of the durations
+   * @return the result
+   * @throws Exception if the cards cannot be set up or a thread fails
+   */
+  public Result run(long warmup, long duration, TimeUnit unit) throws Exception {
+    List<CardChannel> channels = new ArrayList<>();
+    recorders.clear();
+
+    for (int i = 0; i < cards; i++) {
+      channels.add(createCard());
+    }
+
+    WalletAppletPool pool = new WalletAppletPool(channels, PAIRING_SECRET, PIN);
+    loadKeys(pool);
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    long start = System.nanoTime() + unit.toNanos(warmup);
+    long end = start + unit.toNanos(duration);
+    List<Future<Client>> futures = new ArrayList<>();
+
+    try {
+      for (int i = 0; i < threads; i++) {
+        Client client = new Client(pool, new Random(seed + i), start, end);
+        futures.add(executor.submit(() -> {
+          client.run();
+          return client;
+        }));
+      }
+
+      Result result = new Result(cards, threads, end - start);
+      TimeUnit.NANOSECONDS.sleep(start - System.nanoTime());
+
+      for (CommandRecorder recorder : recorders) {
+        recorder.clear();
+      }
+
+      for (Future<Client> future : futures) {
+        result.add(future.get());
+      }
+
+      return result;
+    } finally {
+      executor.shutdownNow();
+      pool.close();
+    }
+  }
+
+  /**
+   * Installs and initializes an applet on a new jCardSim instance.
+   *
+   * @return the channel to the card
+   * @throws CardException if the applet cannot be initialized
+   */
+  private CardChannel createCard() throws CardException {
+    CommandRecorder recorder = new CommandRecorder();
+    recorder.setEnabled(recordCommands);
+    CardSimulator simulator = new CardSimulator(recorder);
+
+    AID aid = AIDUtil.create(WalletAppletCommandSet.APPLET_AID);
+    byte[] params = new byte[WalletAppletCommandSet.APPLET_AID_BYTES.length + 3];
+    params[0] = (byte) WalletAppletCommandSet.APPLET_AID_BYTES.length;
+    System.arraycopy(WalletAppletCommandSet.APPLET_AID_BYTES, 0, params, 1, params[0]);
+    simulator.installApplet(aid, WalletApplet.class, params, (short) 0, (byte) params.length);
+    recorder.fixShortSecureChannelKeys();
+
+    if (recordCommands) {
+      recorders.add(recorder);
+    }
+
+    CardChannel channel = CardTerminalSimulator.terminal(simulator).connect("*").getBasicChannel();
+    WalletAppletCommandSet cmdSet = new WalletAppletCommandSet(channel);
+    byte[] data = cmdSet.select().getData();
+    cmdSet.setSecureChannel(new SecureChannelSession(Arrays.copyOfRange(data, 2, data.length)));
+
+    if (cmdSet.init(PIN, PUK, PAIRING_SECRET).getSW() != 0x9000) {
+      throw new CardException("INIT failed");
+    }
+
+    recorder.fixShortSecureChannelKeys();
+    return channel;
+  }
+
+  /**
+   * Loads a different seed on each card and derives the first account key, so that the parent of the current key can
+   * be used by SIGN with path. All cards are leased at once, so that each is leased exactly once.
+   *
+   * @param pool the pool
+   * @throws Exception if a card cannot be prepared
+   */
+  private void loadKeys(WalletAppletPool pool) throws Exception {
+    List<WalletAppletPool.Lease> leases = new ArrayList<>();
+    Random random = new Random(seed);
+
+    try {
+      for (int i = 0; i < cards; i++) {
+        WalletAppletPool.Lease lease = pool.acquire();
+        leases.add(lease);
+
+        byte[] keySeed = new byte[WalletApplet.BIP39_SEED_SIZE];
+        random.nextBytes(keySeed);
+        keySeed[0] = (byte) ((keySeed[0] & 0x7f) | 0x01);
+        check(lease.getCommandSet().loadKey(keySeed, WalletApplet.LOAD_KEY_P1_SEED), "LOAD KEY");
+        check(lease.getCommandSet().deriveKey(accountPath(0), WalletApplet.DERIVE_P1_SOURCE_MASTER), "DERIVE KEY");
+      }
+    } finally {
+      for (WalletAppletPool.Lease lease : leases) {
+        lease.close();
+      }
+    }
+  }
+
+  private static void check(ResponseAPDU response, String command) throws CardException {
+    if (response.getSW() != 0x9000) {
+      throw new CardException(command + " failed, SW " + Integer.toHexString(response.getSW()));
+    }
+  }
+
+  /**
+   * Returns the BIP44 path of the given address of the first Ethereum account.
+   *
+   * @param index the address index
+   * @return the path
+   */
+  private static byte[] accountPath(int index) {
+    byte[] path = Arrays.copyOf(BIP44_ACCOUNT_PATH, BIP44_ACCOUNT_PATH.length + 4);
+    path[path.length - 2] = (byte) (index >> 8);
+    path[path.length - 1] = (byte) index;
+    return path;
+  }
+
+  /**
+   * A client thread. Only accessed by its thread until it finishes.
+   */
+  private class Client {
+    private final WalletAppletPool pool;
+    private final Random random;
+    private final long start;
+    private final long end;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATION_NAMES.length];
+    private final LatencyHistogram leaseWait = new LatencyHistogram();
+    private final long[] errors = new long[OPERATION_NAMES.length];
+    private final ByteBuffer command = ByteBuffer.allocate(32 + BIP44_ACCOUNT_PATH.length + 4);
+    private final ByteBuffer response = ByteBuffer.allocate(SecureChannelSession.SHORT_APDU_BUFFER_SIZE);
+    private int sinceReopen;
+
+    private Client(WalletAppletPool pool, Random random, long start, long end) {
+      this.pool = pool;
+      this.random = random;
+      this.start = start;
+      this.end = end;
+
+      for (int i = 0; i < latencies.length; i++) {
+        latencies[i] = new LatencyHistogram();
+      }
+    }
+
+    /**
+     * Sends commands until the end of the measurement. Errors are counted and the session of the card where they
+     * happened is reopened.
+     *
+     * @throws Exception if interrupted or no card could be leased
+     */
+    private void run() throws Exception {
+      byte[] hash = new byte[32];
+
+      while (System.nanoTime() < end) {
+        long t0 = System.nanoTime();
+
+        try (WalletAppletPool.Lease lease = pool.acquire()) {
+          long t1 = System.nanoTime();
+          int operation = (reopenInterval > 0) && (++sinceReopen >= reopenInterval) ? REOPEN : nextOperation();
+          boolean ok;
+
+          try {
+            ok = execute(lease, operation, hash);
+          } catch (CardException e) {
+            ok = false;
+          }
+
+          long t2 = System.nanoTime();
+
+          if (!ok) {
+            lease.invalidate();
+          }
+
+          if (t0 >= start) {
+            leaseWait.record((t1 - t0) / 1000);
+
+            if (ok) {
+              latencies[operation].record((t2 - t1) / 1000);
+            } else {
+              errors[operation]++;
+            }
+          }
+        }
+      }
+    }
+
+    private int nextOperation() {
+      int total = weights[DERIVE] + weights[SIGN] + weights[SIGN_WITH_PATH] + weights[EXPORT];
+      int r = random.nextInt(total);
+
+      for (int i = 0; i < weights.length; i++) {
+        if (r < weights[i]) {
+          return i;
+        }
+
+        r -= weights[i];
+      }
+
+      return SIGN;
+    }
+
+    /**
+     * Executes an operation on the leased card. DERIVE KEY and SIGN are sent without allocating memory, using the
+     * buffers of the client.
+     *
+     * @param lease the lease
+     * @param operation the operation
+     * @param hash a buffer for the hash to sign
+     * @return whether the card responded with 0x9000
+     * @throws CardException communication error
+     */
+    private boolean execute(WalletAppletPool.Lease lease, int operation, byte[] hash) throws CardException {
+      WalletAppletCommandSet cmdSet = lease.getCommandSet();
+      command.clear();
+      response.clear();
+
+      switch (operation) {
+        case DERIVE:
+          command.put(BIP44_ACCOUNT_PATH).putInt(random.nextInt(1000)).flip();
+          return succeeded(cmdSet.deriveKey(command, WalletApplet.DERIVE_P1_SOURCE_MASTER, response));
+        case SIGN:
+          random.nextBytes(hash);
+          command.put(hash).flip();
+          return succeeded(cmdSet.sign(command, WalletApplet.SIGN_P2_PUB_KEY_UNCOMPRESSED, response));
+        case SIGN_WITH_PATH:
+          random.nextBytes(hash);
+          command.put(hash).putShort((short) 0).put((byte) random.nextInt(4)).put((byte) random.nextInt(256)).flip();
+          return succeeded(cmdSet.signWithPath(command, WalletApplet.DERIVE_P1_SOURCE_PARENT, WalletApplet.SIGN_P2_PUB_KEY_UNCOMPRESSED, response));
+        case EXPORT:
+          return cmdSet.exportKey(WalletApplet.EXPORT_KEY_P1_ANY, true).getSW() == 0x9000;
+        default:
+          sinceReopen = 0;
+          lease.reopen();
+          return true;
+      }
+    }
+
+    /**
+     * Returns whether the response written to the response buffer ends with the SW 0x9000.
+     *
+     * @param len the length of the response
+     * @return whether the command succeeded
+     */
+    private boolean succeeded(int len) {
+      return response.getShort(len - 2) == (short) 0x9000;
+    }
+  }
+
+  /**
+   * The result of a run.
+   */
+  public static class Result {
+    private final int cards;
+    private final int threads;
+    private final long durationNanos;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATION_NAMES.length];
+    private final LatencyHistogram leaseWait = new LatencyHistogram();
+    private final long[] errors = new long[OPERATION_NAMES.length];
+
+    private Result(int cards, int threads, long durationNanos) {
+      this.cards = cards;
+      this.threads = threads;
+      this.durationNanos = durationNanos;
+
+      for (int i = 0; i < latencies.length; i++) {
+        latencies[i] = new LatencyHistogram();
+      }
+    }
+
+    private void add(Client client) {
+      for (int i = 0; i < latencies.length; i++) {
+        latencies[i].add(client.latencies[i]);
+        errors[i] += client.errors[i];
+      }
+
+      leaseWait.add(client.leaseWait);
+    }
+
+    /**
+     * Returns the latencies of the given operation which succeeded, in microseconds.
+     *
+     * @param operation the operation, one of the constants of LoadGenerator
+     * @return the histogram
+     */
+    public LatencyHistogram getLatencies(int operation) {
+      return latencies[operation];
+    }
+
+    /**
+     * Returns the time spent waiting for a card to be leased before each operation, in microseconds.
+     *
+     * @return the histogram
+     */
+    public LatencyHistogram getLeaseWait() {
+      return leaseWait;
+    }
+
+    /**
+     * Returns the number of times the given operation failed, with an unexpected SW or a communication error.
+     *
+     * @param operation the operation, one of the constants of LoadGenerator
+     * @return the number of failures
+     */
+    public long getErrors(int operation) {
+      return errors[operation];
+    }
+
+    /**
+     * Returns the number of signatures made during the measurement, with and without path.
+     *
+     * @return the number of signatures
+     */
+    public long getSignatures() {
+      return latencies[SIGN].getTotalCount() + latencies[SIGN_WITH_PATH].getTotalCount();
+    }
+
+    /**
+     * Returns the number of signatures made per second during the measurement.
+     *
+     * @return the throughput
+     */
+    public double getSignaturesPerSecond() {
+      return getSignatures() * 1e9 / durationNanos;
+    }
+
+    /**
+     * Prints a summary of the run, with latencies in milliseconds.
+     *
+     * @param out the stream to print to
+     */
+    public void print(PrintStream out) {
+      out.println(String.format("%d cards, %d threads, %.1f s: %d signatures, %.1f signatures/s",
+          cards, threads, durationNanos / 1e9, getSignatures(), getSignaturesPerSecond()));
+
+      for (int i = 0; i < latencies.length; i++) {
+        latencies[i].printSummary(out, OPERATION_NAMES[i], 1000);
+
+        if (errors[i] != 0) {
+          out.println(String.format("%-16s errors %d", OPERATION_NAMES[i], errors[i]));
+        }
+      }
+
+      leaseWait.printSummary(out, "lease-wait", 1000);
+    }
+  }
+
+  /**
+   * Runs the load and prints the result. The parameters are read from system properties, all optional:
+   * <ul>
+   *   <li>im.status.wallet.load.cards: the number of cards, 4 by default</li>
+   *   <li>im.status.wallet.load.threads: the number of client threads, 8 by default</li>
+   *   <li>im.status.wallet.load.duration: the duration of the measurement in seconds, 30 by default</li>
+   *   <li>im.status.wallet.load.warmup: the duration of the warmup in seconds, 5 by default</li>
+   *   <li>im.status.wallet.load.mix: the weights of DERIVE KEY, SIGN, SIGN with path and EXPORT KEY, separated by
+   *   commas, 10,60,20,10 by default</li>
+   *   <li>im.status.wallet.load.reopen: the number of commands between reselections, 50 by default</li>
+   *   <li>im.status.wallet.load.record: whether to record the commands and estimate the throughput of real cards with
+   *   the CardCostModel given by im.status.wallet.test.cost_profile, false by default</li>
+   * </ul>
+   *
+   * @param args ignored
+   * @throws Exception if the run fails
+   */
+  public static void main(String[] args) throws Exception {
+    Security.addProvider(new BouncyCastleProvider());
+
+    LoadGenerator generator = new LoadGenerator(Integer.getInteger("im.status.wallet.load.cards", 4), Integer.getInteger("im.status.wallet.load.threads", 8));
+    String[] mix = System.getProperty("im.status.wallet.load.mix", "10,60,20,10").split(",");
+
+    if (mix.length != 4) {
+      throw new IllegalArgumentException("The mix must have 4 weights");
+    }
+
+    generator.setMix(Integer.parseInt(mix[0]), Integer.parseInt(mix[1]), Integer.parseInt(mix[2]), Integer.parseInt(mix[3]));
+    generator.setReopenInterval(Integer.getInteger("im.status.wallet.load.reopen", 50));
+    generator.setRecordCommands(Boolean.getBoolean("im.status.wallet.load.record"));
+
+    Result result = generator.run(Integer.getInteger("im.status.wallet.load.warmup", 5), Integer.getInteger("im.status.wallet.load.duration", 30), TimeUnit.SECONDS);
+    result.print(System.out);
+
+    if (!generator.getRecorders().isEmpty()) {
+      CardCostModel model = CardCostModel.fromSystemProperty();
+      double cardTime = 0;
+
+      for (CommandRecorder recorder : generator.getRecorders()) {
+        cardTime += model.estimate(recorder.getEntries());
+      }
+
+      // Assumes the cards are the bottleneck and equally loaded, which the FIFO pool ensures
+      double perSignature = cardTime / Math.max(1, result.getSignatures());
+      System.out.println(String.format("Estimated on cards: %.1f ms of card time per signature, %.2f signatures/s with %d cards",
+          perSignature / 1000, generator.cards * 1e6 / perSignature, generator.cards));
+    }
+  }
+}
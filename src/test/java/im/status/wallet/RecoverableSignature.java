@@ -0,0 +1,153 @@
+package im.status.wallet;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.spec.ECParameterSpec;
+import org.bouncycastle.math.ec.ECAlgorithms;
+import org.bouncycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * An ECDSA signature together with its recovery id, as needed by Ethereum transactions. Instances are obtained from the
+ * signature template returned by the SIGN command. The card cannot compute the recovery id itself, since the JavaCard
+ * API does not expose the R point generated during signing, so it is computed here from the signature, the hash and
+ * the public key. Instead of trying public key recovery with each candidate id, which costs up to two full
+ * recoveries, the R point is rebuilt with a single double-scalar multiplication as done by ECDSA verification and the
+ * recovery id is read from its coordinates. Instances are immutable.
+ */
+public class RecoverableSignature {
+  private static final ECParameterSpec CURVE = ECNamedCurveTable.getParameterSpec("secp256k1");
+
+  private final BigInteger r;
+  private final BigInteger s;
+  private final int recId;
+
+  /**
+   * Creates a recoverable signature from its components.
+   *
+   * @param r the R value
+   * @param s the S value
+   * @param recId the recovery id
+   */
+  public RecoverableSignature(BigInteger r, BigInteger s, int recId) {
+    this.r = r;
+    this.s = s;
+    this.recId = recId;
+  }
+
+  /**
+   * Parses the signature template returned by SIGN and computes the recovery id. The public key must be given when the
+   * template does not contain it, otherwise it can be null.
+   *
+   * @param sigTemplate the signature template
+   * @param hash the signed hash
+   * @param publicKey the public key, in any encoding, or null if the template contains it
+   * @return the recoverable signature
+   */
+  public static RecoverableSignature fromSignTemplate(byte[] sigTemplate, byte[] hash, byte[] publicKey) {
+    if (sigTemplate[0] != WalletApplet.TLV_SIGNATURE_TEMPLATE || sigTemplate[1] != (byte) 0x81) {
+      throw new IllegalArgumentException("Invalid signature template");
+    }
+
+    int off = 3;
+
+    if (sigTemplate[off] == WalletApplet.TLV_PUB_KEY) {
+      int pubLen = sigTemplate[off + 1];
+
+      if (publicKey == null) {
+        publicKey = Arrays.copyOfRange(sigTemplate, off + 2, off + 2 + pubLen);
+      }
+
+      off += 2 + pubLen;
+    }
+
+    if (publicKey == null) {
+      throw new IllegalArgumentException("No public key available");
+    }
+
+    if (sigTemplate[off] != 0x30 || sigTemplate[off + 2] != WalletApplet.TLV_INT) {
+      throw new IllegalArgumentException("Invalid signature");
+    }
+
+    off += 3;
+    BigInteger r = new BigInteger(1, Arrays.copyOfRange(sigTemplate, off + 1, off + 1 + sigTemplate[off]));
+    off += 1 + sigTemplate[off];
+
+    if (sigTemplate[off] != WalletApplet.TLV_INT) {
+      throw new IllegalArgumentException("Invalid signature");
+    }
+
+    off++;
+    BigInteger s = new BigInteger(1, Arrays.copyOfRange(sigTemplate, off + 1, off + 1 + sigTemplate[off]));
+
+    return new RecoverableSignature(r, s, recoveryId(r, s, hash, CURVE.getCurve().decodePoint(publicKey)));
+  }
+
+  /**
+   * Computes the recovery id. The R point is rebuilt as (e / s) * G + (r / s) * Q, where e is the hash and Q the public
+   * key. Bit 0 of the recovery id is the parity of the y coordinate of R, bit 1 is set if the x coordinate of R is not
+   * smaller than the curve order.
+   *
+   * @param r the R value
+   * @param s the S value
+   * @param hash the signed hash
+   * @param publicKey the public key
+   * @return the recovery id
+   */
+  private static int recoveryId(BigInteger r, BigInteger s, byte[] hash, ECPoint publicKey) {
+    BigInteger n = CURVE.getN();
+    BigInteger w = s.modInverse(n);
+    BigInteger e = new BigInteger(1, hash);
+
+    ECPoint point = ECAlgorithms.sumOfTwoMultiplies(CURVE.getG(), e.multiply(w).mod(n), publicKey, r.multiply(w).mod(n)).normalize();
+
+    if (point.isInfinity() || !point.getAffineXCoord().toBigInteger().mod(n).equals(r)) {
+      throw new IllegalArgumentException("Signature does not match the public key");
+    }
+
+    int recId = point.getAffineYCoord().toBigInteger().testBit(0) ? 1 : 0;
+
+    if (point.getAffineXCoord().toBigInteger().compareTo(n) >= 0) {
+      recId |= 2;
+    }
+
+    return recId;
+  }
+
+  /**
+   * Returns the R value.
+   *
+   * @return the R value
+   */
+  public BigInteger getR() {
+    return r;
+  }
+
+  /**
+   * Returns the S value.
+   *
+   * @return the S value
+   */
+  public BigInteger getS() {
+    return s;
+  }
+
+  /**
+   * Returns the recovery id, between 0 and 3.
+   *
+   * @return the recovery id
+   */
+  public int getRecId() {
+    return recId;
+  }
+
+  /**
+   * Returns the v value of an Ethereum signature, which is the recovery id plus 27.
+   *
+   * @return the v value
+   */
+  public byte getV() {
+    return (byte) (recId + 27);
+  }
+}
@@ -0,0 +1,287 @@
+package im.status.wallet;
+
+import javacard.framework.ISO7816;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.macs.CBCBlockCipherMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import javax.smartcardio.CardException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encrypts and MACs the APDUs of a Secure Channel session. All keys, engines and scratch buffers are set up once in
+ * the constructor and the APDUs are read from and written to caller-provided buffers, so that no allocation happens
+ * while the session is in use. CBC chaining and ISO7816-4 padding are done here on top of the raw AES block cipher,
+ * because the JCE Cipher needs a new IvParameterSpec for every message.
+ *
+ * Commands and responses must be processed in the same order they are exchanged with the card, since each MAC is the
+ * IV of the next message. Instances are not thread-safe.
+ */
+public class SecureChannelCodec {
+  private static final int BLOCK_SIZE = SecureChannel.SC_BLOCK_SIZE;
+  private static final int SHORT_HEADER_SIZE = ISO7816.OFFSET_CDATA;
+  private static final int EXTENDED_HEADER_SIZE = ISO7816.OFFSET_CDATA + 2;
+
+  private final AESEngine encEngine;
+  private final AESEngine decEngine;
+  private final CBCBlockCipherMac mac;
+
+  private final byte[] iv;
+  private final byte[] chain;
+  private final byte[] meta;
+  private final byte[] block;
+
+  /**
+   * Creates a codec for a session with the given keys.
+   *
+   * @param encKey the buffer containing the encryption key
+   * @param encOff the offset of the encryption key
+   * @param macKey the buffer containing the MAC key
+   * @param macOff the offset of the MAC key
+   * @param keyLength the length of each key
+   * @param iv the initial IV, as returned by OPEN SECURE CHANNEL
+   */
+  public SecureChannelCodec(byte[] encKey, int encOff, byte[] macKey, int macOff, int keyLength, byte[] iv) {
+    encEngine = new AESEngine();
+    encEngine.init(true, new KeyParameter(encKey, encOff, keyLength));
+    decEngine = new AESEngine();
+    decEngine.init(false, new KeyParameter(encKey, encOff, keyLength));
+    mac = new CBCBlockCipherMac(new AESEngine(), 128, null);
+    mac.init(new KeyParameter(macKey, macOff, keyLength));
+
+    this.iv = iv.clone();
+    chain = new byte[BLOCK_SIZE];
+    meta = new byte[BLOCK_SIZE];
+    block = new byte[BLOCK_SIZE];
+  }
+
+  /**
+   * Returns the length of the command APDU produced by encodeCommand for a payload of the given length.
+   *
+   * @param dataLength the length of the plaintext
+   * @param extended whether the APDU is an extended length one
+   * @return the length of the command APDU
+   */
+  public static int commandLength(int dataLength, boolean extended) {
+    int lc = BLOCK_SIZE + paddedLength(dataLength);
+    return extended ? (EXTENDED_HEADER_SIZE + lc + 2) : (SHORT_HEADER_SIZE + lc);
+  }
+
+  /**
+   * Writes a protected command APDU to the output buffer. The plaintext is read from the input buffer, between its
+   * position and limit. The APDU contains the header, the MAC and the ciphertext and, if extended, an Le of 0 requesting
+   * the maximum response length. The positions of both buffers are advanced.
+   *
+   * @param cla the CLA byte
+   * @param ins the INS byte
+   * @param p1 the P1 byte
+   * @param p2 the P2 byte
+   * @param data the plaintext
+   * @param out the output buffer, with at least commandLength bytes remaining
+   * @param extended whether an extended length APDU must be written
+   * @return the number of bytes written
+   */
+  public int encodeCommand(int cla, int ins, int p1, int p2, ByteBuffer data, ByteBuffer out, boolean extended) {
+    int start = out.position();
+    int lc = BLOCK_SIZE + paddedLength(data.remaining());
+
+    if (!extended && (lc > 0xff)) {
+      throw new IllegalArgumentException("Data too long for a short APDU");
+    }
+
+    clearMeta();
+    meta[ISO7816.OFFSET_CLA] = (byte) cla;
+    meta[ISO7816.OFFSET_INS] = (byte) ins;
+    meta[ISO7816.OFFSET_P1] = (byte) p1;
+    meta[ISO7816.OFFSET_P2] = (byte) p2;
+
+    int headerSize;
+
+    if (extended) {
+      meta[ISO7816.OFFSET_LC + 1] = (byte) (lc >> 8);
+      meta[ISO7816.OFFSET_LC + 2] = (byte) lc;
+      headerSize = EXTENDED_HEADER_SIZE;
+    } else {
+      meta[ISO7816.OFFSET_LC] = (byte) lc;
+      headerSize = SHORT_HEADER_SIZE;
+    }
+
+    out.put(meta, 0, headerSize);
+    int macPos = out.position();
+    out.position(macPos + BLOCK_SIZE);
+
+    mac.update(meta, 0, BLOCK_SIZE);
+    System.arraycopy(iv, 0, chain, 0, BLOCK_SIZE);
+
+    boolean padded = false;
+
+    while (!padded) {
+      int len = Math.min(BLOCK_SIZE, data.remaining());
+      data.get(block, 0, len);
+
+      if (len < BLOCK_SIZE) {
+        block[len] = (byte) 0x80;
+
+        for (int i = len + 1; i < BLOCK_SIZE; i++) {
+          block[i] = 0;
+        }
+
+        padded = true;
+      }
+
+      xor(block, chain);
+      encEngine.processBlock(block, 0, chain, 0);
+      mac.update(chain, 0, BLOCK_SIZE);
+      out.put(chain, 0, BLOCK_SIZE);
+    }
+
+    mac.doFinal(iv, 0);
+
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      out.put(macPos + i, iv[i]);
+    }
+
+    if (extended) {
+      out.put((byte) 0);
+      out.put((byte) 0);
+    }
+
+    return out.position() - start;
+  }
+
+  /**
+   * Verifies and decrypts a protected response. The input buffer must contain the response data followed by the SW,
+   * between its position and limit. The plaintext is written to the output buffer and is itself a response, with the
+   * actual SW as the last 2 bytes. The positions of both buffers are advanced. Nothing is written if the MAC is invalid.
+   *
+   * @param in the protected response
+   * @param out the output buffer, with at least as many bytes remaining as the input
+   * @param extended whether the command was sent as an extended length APDU
+   * @return the number of bytes written
+   * @throws CardException if the response is malformed or its MAC is invalid
+   */
+  public int decodeResponse(ByteBuffer in, ByteBuffer out, boolean extended) throws CardException {
+    int dataLength = in.remaining() - 2;
+
+    if ((dataLength < (BLOCK_SIZE * 2)) || ((dataLength % BLOCK_SIZE) != 0)) {
+      throw new CardException("Invalid MAC");
+    }
+
+    int macPos = in.position();
+    int cipherPos = macPos + BLOCK_SIZE;
+    int end = macPos + dataLength;
+
+    clearMeta();
+
+    if (extended) {
+      meta[1] = (byte) (dataLength >> 8);
+      meta[2] = (byte) dataLength;
+    } else {
+      meta[0] = (byte) dataLength;
+    }
+
+    System.arraycopy(iv, 0, chain, 0, BLOCK_SIZE);
+    mac.update(meta, 0, BLOCK_SIZE);
+
+    for (int pos = cipherPos; pos < end; pos += BLOCK_SIZE) {
+      readBlock(in, pos);
+      mac.update(block, 0, BLOCK_SIZE);
+    }
+
+    mac.doFinal(iv, 0);
+
+    int diff = 0;
+
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      diff |= iv[i] ^ in.get(macPos + i);
+    }
+
+    if (diff != 0) {
+      throw new CardException("Invalid MAC");
+    }
+
+    int start = out.position();
+
+    for (int pos = cipherPos; pos < end; pos += BLOCK_SIZE) {
+      readBlock(in, pos);
+      decEngine.processBlock(block, 0, meta, 0);
+      xor(meta, chain);
+      System.arraycopy(block, 0, chain, 0, BLOCK_SIZE);
+
+      int len = BLOCK_SIZE;
+
+      if ((pos + BLOCK_SIZE) == end) {
+        len = unpaddedLength(meta);
+      }
+
+      out.put(meta, 0, len);
+    }
+
+    in.position(end + 2);
+    return out.position() - start;
+  }
+
+  /**
+   * Returns the length of the ciphertext for a plaintext of the given length. Padding is always added.
+   *
+   * @param dataLength the length of the plaintext
+   * @return the length of the ciphertext
+   */
+  private static int paddedLength(int dataLength) {
+    return ((dataLength / BLOCK_SIZE) + 1) * BLOCK_SIZE;
+  }
+
+  /**
+   * Returns the length of the given plaintext block without its ISO7816-4 padding.
+   *
+   * @param plain the last plaintext block
+   * @return the length without padding
+   * @throws CardException if the padding is invalid
+   */
+  private static int unpaddedLength(byte[] plain) throws CardException {
+    int len = BLOCK_SIZE - 1;
+
+    while ((len > 0) && (plain[len] == 0)) {
+      len--;
+    }
+
+    if (plain[len] != (byte) 0x80) {
+      throw new CardException("Invalid padding");
+    }
+
+    return len;
+  }
+
+  /**
+   * Copies one block from the given absolute position of the buffer to the scratch block, without moving the position.
+   *
+   * @param in the buffer
+   * @param pos the position of the block
+   */
+  private void readBlock(ByteBuffer in, int pos) {
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      block[i] = in.get(pos + i);
+    }
+  }
+
+  /**
+   * Zeroes the metadata buffer.
+   */
+  private void clearMeta() {
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      meta[i] = 0;
+    }
+  }
+
+  /**
+   * XORs the second block into the first.
+   *
+   * @param dst the first block, modified in place
+   * @param src the second block
+   */
+  private static void xor(byte[] dst, byte[] src) {
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      dst[i] ^= src[i];
+    }
+  }
+}
@@ -1,8 +1,6 @@
 package im.status.wallet;
 
-import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.macs.CBCBlockCipherMac;
-import org.bouncycastle.crypto.params.KeyParameter;
+import javacard.framework.ISO7816;
 import org.bouncycastle.jce.ECNamedCurveTable;
 import org.bouncycastle.jce.interfaces.ECPublicKey;
 import org.bouncycastle.jce.spec.ECParameterSpec;
@@ -17,6 +15,8 @@ import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
@@ -26,18 +26,30 @@ import java.util.Arrays;
  */
 public class SecureChannelSession {
   public static final int PAYLOAD_MAX_SIZE = 223;
+  public static final int CHAIN_FRAGMENT_SIZE = 255;
+  public static final int APDU_BUFFER_SIZE = 65546;
+  public static final int SHORT_APDU_BUFFER_SIZE = 261;
+  public static final int CHAINED_APDU_BUFFER_SIZE = SecureChannel.SC_CHAIN_BUFFER_SIZE + 2;
 
   private byte[] secret;
   private byte[] publicKey;
   private byte[] pairingKey;
-  private byte[] iv;
+  private byte[] ticket;
+  private byte[] pendingTicket;
+  private boolean ticketRequested;
   private byte pairingIndex;
-  private Cipher sessionCipher;
-  private CBCBlockCipherMac sessionMac;
-  private SecretKeySpec sessionEncKey;
-  private KeyParameter sessionMacKey;
+  private SecureChannelCodec codec;
+  private ByteBuffer commandBuffer;
+  private ByteBuffer responseBuffer;
+  private ByteBuffer plainBuffer;
   private SecureRandom random;
   private boolean open;
+  private boolean extendedLength;
+  private boolean commandChaining;
+  private boolean implicitAuthentication;
+  private ApduTrace.Writer trace;
+  private CommandAPDU lastProtectedCommand;
+  private CommandAPDU lastPlainCommand;
 
   /**
    * Constructs a SecureChannel session on the client. The client should generate a fresh key pair for each session.
@@ -46,9 +58,38 @@ public class SecureChannelSession {
    * @param keyData the public key returned by the applet as response to the SELECT command
    */
   public SecureChannelSession(byte[] keyData) {
-      random = new SecureRandom();
-      generateSecret(keyData);
-      open = false;
+    this(keyData, new SecureRandom());
+  }
+
+  /**
+   * Constructs a SecureChannel session on the client, using the given source of randomness for the key pairs,
+   * challenges and IVs generated by the client. Only meant to make runs on the simulator reproducible.
+   *
+   * @param keyData the public key returned by the applet as response to the SELECT command
+   * @param random the source of randomness
+   */
+  public SecureChannelSession(byte[] keyData, SecureRandom random) {
+    this.random = random;
+    allocateBuffers();
+    generateSecret(keyData);
+    open = false;
+  }
+
+  /**
+   * Allocates the buffers used to build the protected commands and to unwrap the responses, sized for the largest APDU
+   * allowed by the current settings: a short APDU, a command assembled in the chain buffer of the card or an extended
+   * length APDU. The buffers are only replaced if their size changes.
+   */
+  private void allocateBuffers() {
+    int size = extendedLength ? APDU_BUFFER_SIZE : (commandChaining ? CHAINED_APDU_BUFFER_SIZE : SHORT_APDU_BUFFER_SIZE);
+
+    if ((commandBuffer != null) && (commandBuffer.capacity() == size)) {
+      return;
+    }
+
+    commandBuffer = ByteBuffer.allocate(size);
+    responseBuffer = ByteBuffer.allocate(size);
+    plainBuffer = ByteBuffer.allocate(size);
   }
 
   public void generateSecret(byte[] keyData) {
@@ -82,6 +123,49 @@ public class SecureChannelSession {
     return publicKey;
   }
 
+  /**
+   * Sets whether protected commands must be sent as extended length APDUs. Extended length APDUs can carry more than
+   * PAYLOAD_MAX_SIZE bytes of plaintext and allow responses longer than 256 bytes, but the card and the reader must
+   * both support them.
+   *
+   * @param extendedLength whether extended length APDUs must be used
+   */
+  public void setExtendedLength(boolean extendedLength) {
+    this.extendedLength = extendedLength;
+    allocateBuffers();
+  }
+
+  /**
+   * Sets whether protected commands must be sent using command chaining. This allows sending more than PAYLOAD_MAX_SIZE
+   * bytes of plaintext and receiving long responses without extended length APDUs. Each command is split in at least 2
+   * fragments, so that the card can tell it apart from a short APDU, and long responses are retrieved with GET RESPONSE.
+   *
+   * @param commandChaining whether command chaining must be used
+   */
+  public void setCommandChaining(boolean commandChaining) {
+    this.commandChaining = commandChaining;
+    allocateBuffers();
+  }
+
+  /**
+   * Sets whether the Secure Channel must be opened with implicit authentication. In this case MUTUALLY AUTHENTICATE is
+   * not sent and the first protected command authenticates both parties, saving one round trip per session.
+   *
+   * @param implicitAuthentication whether implicit authentication must be used
+   */
+  public void setImplicitAuthentication(boolean implicitAuthentication) {
+    this.implicitAuthentication = implicitAuthentication;
+  }
+
+  /**
+   * Records all commands sent through this session to the given trace. Protected commands are recorded in plaintext.
+   *
+   * @param trace the trace, or null to stop recording
+   */
+  public void setTrace(ApduTrace.Writer trace) {
+    this.trace = trace;
+  }
+
   /**
    * Returns the pairing index
    * @return the pairing index
@@ -99,7 +183,19 @@ public class SecureChannelSession {
    * @throws CardException communication error
    */
   public void autoOpenSecureChannel(CardChannel apduChannel) throws CardException {
-    ResponseAPDU response = openSecureChannel(apduChannel, pairingIndex, publicKey);
+    autoOpenSecureChannel(apduChannel, false);
+  }
+
+  /**
+   * Establishes a Secure Channel with the card, optionally requesting a resumption ticket for later use by
+   * autoResumeSecureChannel.
+   *
+   * @param apduChannel the apdu channel
+   * @param requestTicket whether the card must store a resumption ticket
+   * @throws CardException communication error
+   */
+  public void autoOpenSecureChannel(CardChannel apduChannel, boolean requestTicket) throws CardException {
+    ResponseAPDU response = openSecureChannel(apduChannel, pairingIndex, publicKey, requestTicket);
 
     if (response.getSW() != 0x9000) {
       throw new CardException("OPEN SECURE CHANNEL failed");
@@ -107,6 +203,48 @@ public class SecureChannelSession {
 
     processOpenSecureChannelResponse(response);
 
+    if (implicitAuthentication) {
+      return;
+    }
+
+    response = mutuallyAuthenticate(apduChannel);
+
+    if (response.getSW() != 0x9000) {
+      throw new CardException("MUTUALLY AUTHENTICATE failed");
+    }
+
+    if(!verifyMutuallyAuthenticateResponse(response)) {
+      throw new CardException("Invalid authentication data from the card");
+    }
+  }
+
+  /**
+   * Resumes the Secure Channel session using the resumption ticket of the last session. If no ticket is available or the
+   * card refuses it, a new session is established with autoOpenSecureChannel, requesting a new ticket.
+   *
+   * @param apduChannel the apdu channel
+   * @throws CardException communication error
+   */
+  public void autoResumeSecureChannel(CardChannel apduChannel) throws CardException {
+    if (ticket == null) {
+      autoOpenSecureChannel(apduChannel, true);
+      return;
+    }
+
+    ResponseAPDU response = resumeSecureChannel(apduChannel, pairingIndex);
+
+    if (response.getSW() != 0x9000) {
+      ticket = null;
+      autoOpenSecureChannel(apduChannel, true);
+      return;
+    }
+
+    processResumeSecureChannelResponse(response);
+
+    if (implicitAuthentication) {
+      return;
+    }
+
     response = mutuallyAuthenticate(apduChannel);
 
     if (response.getSW() != 0x9000) {
@@ -124,18 +262,38 @@ public class SecureChannelSession {
    * @param response the card response
    */
   public void processOpenSecureChannelResponse(ResponseAPDU response) {
+    deriveSessionKeys(secret, response);
+  }
+
+  /**
+   * Processes the response from OPEN SECURE CHANNEL sent to resume a session. The session keys are derived from the
+   * resumption ticket instead of the EC-DH secret. The ticket is kept, the card counts how many times it can still be
+   * used.
+   *
+   * @param response the card response
+   */
+  public void processResumeSecureChannelResponse(ResponseAPDU response) {
+    deriveSessionKeys(ticket, response);
+  }
+
+  /**
+   * Derives the session keys from the given shared secret, the pairing key and the salt returned by the card. If a
+   * ticket has been requested, it is derived as well and becomes usable once the MAC of the first response is verified.
+   *
+   * @param sharedSecret the shared secret
+   * @param response the card response
+   */
+  private void deriveSessionKeys(byte[] sharedSecret, ResponseAPDU response) {
     try {
       MessageDigest md = MessageDigest.getInstance("SHA512", "BC");
-      md.update(secret);
+      md.update(sharedSecret);
       md.update(pairingKey);
       byte[] data = response.getData();
       byte[] keyData = md.digest(Arrays.copyOf(data, SecureChannel.SC_SECRET_LENGTH));
-      iv = Arrays.copyOfRange(data, SecureChannel.SC_SECRET_LENGTH, data.length);
+      byte[] iv = Arrays.copyOfRange(data, SecureChannel.SC_SECRET_LENGTH, data.length);
+      pendingTicket = ticketRequested ? MessageDigest.getInstance("SHA256", "BC").digest(keyData) : null;
 
-      sessionEncKey = new SecretKeySpec(Arrays.copyOf(keyData, SecureChannel.SC_SECRET_LENGTH), "AES");
-      sessionMacKey = new KeyParameter(keyData, SecureChannel.SC_SECRET_LENGTH, SecureChannel.SC_SECRET_LENGTH);
-      sessionCipher = Cipher.getInstance("AES/CBC/ISO7816-4Padding", "BC");
-      sessionMac = new CBCBlockCipherMac(new AESEngine(), 128, null);
+      codec = new SecureChannelCodec(keyData, 0, keyData, SecureChannel.SC_SECRET_LENGTH, SecureChannel.SC_SECRET_LENGTH, iv);
       open = true;
     } catch(Exception e) {
       throw new RuntimeException("Is BouncyCastle in the classpath?", e);
@@ -200,6 +358,7 @@ public class SecureChannelSession {
     md.update(sharedSecret);
     pairingKey = md.digest(Arrays.copyOfRange(respData, 1, respData.length));
     pairingIndex = respData[0];
+    ticket = null;
   }
 
   /**
@@ -226,9 +385,52 @@ public class SecureChannelSession {
    * @throws CardException communication error
    */
   public ResponseAPDU openSecureChannel(CardChannel apduChannel, byte index, byte[] data) throws CardException {
+    return openSecureChannel(apduChannel, index, data, false);
+  }
+
+  /**
+   * Sends a OPEN SECURE CHANNEL APDU, optionally requesting a resumption ticket.
+   *
+   * @param apduChannel the apdu channel
+   * @param index the P1 parameter
+   * @param data the data
+   * @param requestTicket whether the card must store a resumption ticket
+   * @return the raw card response
+   * @throws CardException communication error
+   */
+  public ResponseAPDU openSecureChannel(CardChannel apduChannel, byte index, byte[] data, boolean requestTicket) throws CardException {
+    open = false;
+    ticketRequested = requestTicket;
+    byte p2 = requestTicket ? SecureChannel.OPEN_SECURE_CHANNEL_P2_TICKET : SecureChannel.OPEN_SECURE_CHANNEL_P2_FULL;
+    CommandAPDU openSecureChannel = new CommandAPDU(0x80, SecureChannel.INS_OPEN_SECURE_CHANNEL, index, openSecureChannelP2(p2), data);
+    long start = System.nanoTime();
+    return traced(openSecureChannel, apduChannel.transmit(openSecureChannel), start);
+  }
+
+  /**
+   * Sends a OPEN SECURE CHANNEL APDU to resume a session.
+   *
+   * @param apduChannel the apdu channel
+   * @param index the P1 parameter
+   * @return the raw card response
+   * @throws CardException communication error
+   */
+  public ResponseAPDU resumeSecureChannel(CardChannel apduChannel, byte index) throws CardException {
     open = false;
-    CommandAPDU openSecureChannel = new CommandAPDU(0x80, SecureChannel.INS_OPEN_SECURE_CHANNEL, index, 0, data);
-    return apduChannel.transmit(openSecureChannel);
+    ticketRequested = false;
+    CommandAPDU resumeSecureChannel = new CommandAPDU(0x80, SecureChannel.INS_OPEN_SECURE_CHANNEL, index, openSecureChannelP2(SecureChannel.OPEN_SECURE_CHANNEL_P2_RESUME));
+    long start = System.nanoTime();
+    return traced(resumeSecureChannel, apduChannel.transmit(resumeSecureChannel), start);
+  }
+
+  /**
+   * Returns the P2 of OPEN SECURE CHANNEL, adding the implicit authentication bit if needed.
+   *
+   * @param p2 the P2 without the implicit authentication bit
+   * @return the P2 to send
+   */
+  private int openSecureChannelP2(byte p2) {
+    return implicitAuthentication ? (p2 | SecureChannel.OPEN_SECURE_CHANNEL_P2_IMPLICIT_AUTH) : p2;
   }
 
   /**
@@ -286,104 +488,265 @@ public class SecureChannelSession {
   }
 
   /**
-   * Encrypts the plaintext data using the session key. The maximum plaintext size is 223 bytes. The returned ciphertext
-   * already includes the IV and padding and can be sent as-is in the APDU payload. If the input is an empty byte array
-   * the returned data will still contain the IV and padding.
+   * Returns a command APDU with MAC and encrypted data. If extended length APDUs or command chaining are enabled, an
+   * extended length APDU is returned. With command chaining, the APDU is split by the transmit method.
    *
-   * @param data the plaintext data
-   * @return the encrypted data
+   * @param cla the CLA byte
+   * @param ins the INS byte
+   * @param p1 the P1 byte
+   * @param p2 the P2 byte
+   * @param data the data, can be an empty array but not null
+   * @return the command APDU
+   * @throws IllegalArgumentException if the data is longer than PAYLOAD_MAX_SIZE and neither extended length APDUs nor
+   *         command chaining are enabled
    */
-  private byte[] encryptAPDU(byte[] data) {
-    assert data.length <= PAYLOAD_MAX_SIZE;
+  public CommandAPDU protectedCommand(int cla, int ins, int p1, int p2, byte[] data) {
+    if (!open) {
+      return new CommandAPDU(cla, ins, p1, p2, data);
+    }
 
-    try {
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
+    if (!extendedLength && !commandChaining && (data.length > PAYLOAD_MAX_SIZE)) {
+      throw new IllegalArgumentException("The data does not fit in a short APDU");
+    }
 
-      sessionCipher.init(Cipher.ENCRYPT_MODE, sessionEncKey, ivParameterSpec);
-      return sessionCipher.doFinal(data);
-    } catch(Exception e) {
-      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
+    commandBuffer.clear();
+    codec.encodeCommand(cla, ins, p1, p2, ByteBuffer.wrap(data), commandBuffer, extendedLength || commandChaining);
+    CommandAPDU apdu = new CommandAPDU(Arrays.copyOf(commandBuffer.array(), commandBuffer.position()));
+
+    if (trace != null) {
+      lastProtectedCommand = apdu;
+      lastPlainCommand = plainCommand(cla, ins, p1, p2, data);
     }
+
+    return apdu;
   }
 
   /**
-   * Decrypts the response from the card using the session key. The returned data is already stripped from IV and padding
-   * and can be potentially empty.
+   * Transmits a protected command APDU and unwraps the response data. The MAC is verified, the data decrypted and the
+   * SW read from the payload. A response without data means that the card has closed the session, so it is returned as
+   * is and the session is marked as closed. If command chaining is enabled, the command is sent in fragments and the whole response
+   * is retrieved with GET RESPONSE before being unwrapped.
    *
-   * @param data the ciphetext
-   * @return the plaintext
+   * @param apduChannel the APDU channel
+   * @param apdu the APDU to send
+   * @return the unwrapped response APDU
+   * @throws CardException transmission error
    */
-  private byte[] decryptAPDU(byte[] data) {
-    try {
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-      sessionCipher.init(Cipher.DECRYPT_MODE, sessionEncKey, ivParameterSpec);
-      return sessionCipher.doFinal(data);
-    } catch(Exception e) {
-      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
+  public ResponseAPDU transmit(CardChannel apduChannel, CommandAPDU apdu) throws CardException {
+    long start = System.nanoTime();
+    boolean extended = (apdu.getBytes().length > ISO7816.OFFSET_LC) && (apdu.getBytes()[ISO7816.OFFSET_LC] == 0);
+    ResponseAPDU resp;
+
+    if (open && commandChaining && extended) {
+      resp = transmitChained(apduChannel, apdu);
+    } else {
+      resp = apduChannel.transmit(apdu);
     }
+
+    if ((resp.getSW() == 0x6982) || (resp.getNr() == 0)) {
+      open = false;
+    }
+
+    if (!open) {
+      return traced(apdu, resp, start);
+    }
+
+    responseBuffer.clear();
+    responseBuffer.put(resp.getBytes());
+    responseBuffer.flip();
+    plainBuffer.clear();
+    decodeResponse(extended);
+
+    return traced(apdu, new ResponseAPDU(Arrays.copyOf(plainBuffer.array(), plainBuffer.position())), start);
+  }
+
+  /**
+   * Records the given exchange if a trace is set. A protected command is recorded as the plaintext it was built from.
+   *
+   * @param apdu the command APDU, as sent
+   * @param response the response APDU, unwrapped if protected
+   * @param start the value of System.nanoTime before sending the command
+   * @return the response
+   */
+  private ResponseAPDU traced(CommandAPDU apdu, ResponseAPDU response, long start) {
+    if (trace != null) {
+      boolean protectedCommand = apdu == lastProtectedCommand;
+      CommandAPDU recorded = protectedCommand ? lastPlainCommand : apdu;
+      trace.record(protectedCommand ? ApduTrace.PROTECTED : ApduTrace.RAW, recorded.getBytes(), response.getBytes(), start, System.nanoTime());
+    }
+
+    lastProtectedCommand = null;
+    lastPlainCommand = null;
+
+    return response;
   }
 
   /**
-   * Returns a command APDU with MAC and encrypted data.
+   * Returns the plaintext command APDU, as an extended length APDU if the data does not fit in a short one.
    *
    * @param cla the CLA byte
    * @param ins the INS byte
    * @param p1 the P1 byte
    * @param p2 the P2 byte
-   * @param data the data, can be an empty array but not null
+   * @param data the data
    * @return the command APDU
    */
-  public CommandAPDU protectedCommand(int cla, int ins, int p1, int p2, byte[] data) {
-    byte[] finalData;
+  private static CommandAPDU plainCommand(int cla, int ins, int p1, int p2, byte[] data) {
+    return (data.length > 0) ? new CommandAPDU(cla, ins, p1, p2, data) : new CommandAPDU(cla, ins, p1, p2);
+  }
+
+  /**
+   * Sends a protected command and unwraps the response without allocating memory, using the buffers of the session.
+   * The plaintext is read from the data buffer, between its position and limit, and the response, including its SW, is
+   * written to the response buffer. The positions of both buffers are advanced. Extended length APDUs are used if
+   * enabled, but command chaining is not supported by this method. If the Secure Channel is not open, the command is
+   * sent unprotected.
+   *
+   * @param apduChannel the APDU channel
+   * @param cla the CLA byte
+   * @param ins the INS byte
+   * @param p1 the P1 byte
+   * @param p2 the P2 byte
+   * @param data the plaintext data
+   * @param response the buffer receiving the unwrapped response
+   * @return the length of the response
+   * @throws CardException transmission error
+   * @throws IllegalArgumentException if the data does not fit in a short APDU and extended length APDUs are not enabled
+   */
+  public int transmit(CardChannel apduChannel, int cla, int ins, int p1, int p2, ByteBuffer data, ByteBuffer response) throws CardException {
+    long start = System.nanoTime();
+    ByteBuffer plainData = (trace != null) ? data.duplicate() : null;
+    boolean protectedCommand = open;
+    int responseStart = response.position();
+    commandBuffer.clear();
 
     if (open) {
-      data = encryptAPDU(data);
-      byte[] meta = new byte[]{(byte) cla, (byte) ins, (byte) p1, (byte) p2, (byte) (data.length + SecureChannel.SC_BLOCK_SIZE), 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-      updateIV(meta, data);
+      codec.encodeCommand(cla, ins, p1, p2, data, commandBuffer, extendedLength);
+    } else {
+      commandBuffer.put((byte) cla).put((byte) ins).put((byte) p1).put((byte) p2);
+
+      int lc = data.remaining();
+
+      if (lc > 0xff) {
+        if (!extendedLength) {
+          throw new IllegalArgumentException("Data too long for a short APDU");
+        }
+
+        commandBuffer.put((byte) 0).putShort((short) lc).put(data);
+      } else if (lc > 0) {
+        commandBuffer.put((byte) lc).put(data);
+      }
+    }
+
+    commandBuffer.flip();
+    responseBuffer.clear();
+    apduChannel.transmit(commandBuffer, responseBuffer);
+    responseBuffer.flip();
+
+    int sw = responseBuffer.getShort(responseBuffer.limit() - 2) & 0xffff;
+
+    if ((sw == 0x6982) || (responseBuffer.remaining() == 2)) {
+      open = false;
+    }
 
-      finalData = Arrays.copyOf(iv, iv.length + data.length);
-      System.arraycopy(data, 0, finalData, iv.length, data.length);
+    int len;
+
+    if (!open) {
+      len = responseBuffer.remaining();
+      response.put(responseBuffer);
     } else {
-      finalData = data;
+      plainBuffer.clear();
+      len = decodeResponse(extendedLength);
+      plainBuffer.flip();
+      response.put(plainBuffer);
     }
 
-    return new CommandAPDU(cla, ins, p1, p2, finalData);
+    if (plainData != null) {
+      byte[] plain = new byte[plainData.remaining()];
+      plainData.get(plain);
+      byte[] resp = new byte[len];
+      ((ByteBuffer) response.duplicate().position(responseStart)).get(resp);
+      trace.record(protectedCommand ? ApduTrace.PROTECTED : ApduTrace.RAW, plainCommand(cla, ins, p1, p2, plain).getBytes(), resp, start, System.nanoTime());
+    }
+
+    return len;
   }
 
   /**
-   * Transmits a protected command APDU and unwraps the response data. The MAC is verified, the data decrypted and the
-   * SW read from the payload.
+   * Unwraps the protected response in the response buffer into the plain buffer and promotes the pending resumption
+   * ticket.
+   *
+   * @param extended whether the command was sent as an extended length APDU
+   * @return the length of the plaintext
+   * @throws CardException if the MAC is invalid
+   */
+  private int decodeResponse(boolean extended) throws CardException {
+    int len = codec.decodeResponse(responseBuffer, plainBuffer, extended);
+
+    if (pendingTicket != null) {
+      ticket = pendingTicket;
+      pendingTicket = null;
+    }
+
+    return len;
+  }
+
+  /**
+   * Sends the given command using command chaining and retrieves the whole response with GET RESPONSE. The data is
+   * split in fragments of at most CHAIN_FRAGMENT_SIZE bytes and the last block always goes in a separate fragment, so
+   * that there are at least 2 fragments. If a fragment is rejected, its response is returned as is.
    *
    * @param apduChannel the APDU channel
    * @param apdu the APDU to send
-   * @return the unwrapped response APDU
+   * @return the raw response, with the data of all response blocks
    * @throws CardException transmission error
    */
-  public ResponseAPDU transmit(CardChannel apduChannel, CommandAPDU apdu) throws CardException {
-    ResponseAPDU resp = apduChannel.transmit(apdu);
+  private ResponseAPDU transmitChained(CardChannel apduChannel, CommandAPDU apdu) throws CardException {
+    byte[] data = apdu.getData();
+    int off = 0;
+    ResponseAPDU resp;
 
-    if (resp.getSW() == 0x6982) {
-      open = false;
-    }
+    while (off < data.length) {
+      int len = Math.min(CHAIN_FRAGMENT_SIZE, data.length - off);
 
-    if (open) {
-      byte[] data = resp.getData();
-      byte[] meta = new byte[]{(byte) data.length, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-      byte[] mac = Arrays.copyOf(data, iv.length);
-      data = Arrays.copyOfRange(data, iv.length, data.length);
+      if ((off == 0) && (len == data.length)) {
+        len -= SecureChannel.SC_BLOCK_SIZE;
+      }
 
-      byte[] plainData = decryptAPDU(data);
+      boolean last = (off + len) == data.length;
+      int cla = last ? apdu.getCLA() : (apdu.getCLA() | SecureChannel.CLA_CHAINING);
+      resp = apduChannel.transmit(new CommandAPDU(cla, apdu.getINS(), apdu.getP1(), apdu.getP2(), Arrays.copyOfRange(data, off, off + len)));
+      off += len;
 
-      updateIV(meta, data);
+      if (last) {
+        ByteArrayOutputStream respData = new ByteArrayOutputStream();
 
-      if (!Arrays.equals(iv, mac)) {
-        throw new CardException("Invalid MAC");
-      }
+        while (resp.getSW1() == 0x61) {
+          respData.write(resp.getData(), 0, resp.getData().length);
+          resp = apduChannel.transmit(new CommandAPDU(ISO7816.CLA_ISO7816, WalletApplet.INS_GET_RESPONSE, 0, 0, (resp.getSW2() == 0) ? 256 : resp.getSW2()));
+        }
 
-      return new ResponseAPDU(plainData);
-    } else {
-      return resp;
+        respData.write(resp.getData(), 0, resp.getData().length);
+        respData.write(resp.getSW1());
+        respData.write(resp.getSW2());
+
+        return new ResponseAPDU(respData.toByteArray());
+      } else if (resp.getSW() != 0x9000) {
+        return resp;
+      }
     }
+
+    throw new IllegalStateException("Empty command data");
+  }
+
+  /**
+   * Returns whether the Secure Channel is open. The channel is closed by a new SELECT or when the card reports a MAC
+   * error.
+   *
+   * @return whether the Secure Channel is open
+   */
+  public boolean isOpen() {
+    return open;
   }
 
   /**
@@ -401,13 +764,11 @@ public class SecureChannelSession {
    */
   public byte[] oneShotEncrypt(byte[] initData) {
     try {
-      iv = new byte[SecureChannel.SC_BLOCK_SIZE];
+      byte[] iv = new byte[SecureChannel.SC_BLOCK_SIZE];
       random.nextBytes(iv);
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-      sessionEncKey = new SecretKeySpec(secret, "AES");
-      sessionCipher = Cipher.getInstance("AES/CBC/ISO7816-4Padding", "BC");
-      sessionCipher.init(Cipher.ENCRYPT_MODE, sessionEncKey, ivParameterSpec);
-      initData = sessionCipher.doFinal(initData);
+      Cipher cipher = Cipher.getInstance("AES/CBC/ISO7816-4Padding", "BC");
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(iv));
+      initData = cipher.doFinal(initData);
       byte[] encrypted = new byte[1 + publicKey.length + iv.length + initData.length];
       encrypted[0] = (byte) publicKey.length;
       System.arraycopy(publicKey, 0, encrypted, 1, publicKey.length);
@@ -427,21 +788,4 @@ public class SecureChannelSession {
   void setOpen() {
     open = true;
   }
-
-  /**
-   * Calculates a CMAC from the metadata and data provided and sets it as the IV for the next message.
-   *
-   * @param meta metadata
-   * @param data data
-   */
-  private void updateIV(byte[] meta, byte[] data) {
-    try {
-      sessionMac.init(sessionMacKey);
-      sessionMac.update(meta, 0, meta.length);
-      sessionMac.update(data, 0, data.length);
-      sessionMac.doFinal(iv, 0);
-    } catch (Exception e) {
-      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
-    }
-  }
 }
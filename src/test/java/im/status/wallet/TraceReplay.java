@@ -0,0 +1,447 @@
+package im.status.wallet;
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import javacard.framework.AID;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.jce.spec.ECParameterSpec;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.math.BigInteger;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Replays a trace recorded with ApduTrace on a freshly installed applet running on jCardSim. The host nonces and the
+ * RandomData of the applet are replaced by DeterministicRandom, so that replaying the same trace with the same seed
+ * sends the same commands and produces the same random output, such as mnemonics, on every run. Key pairs generated
+ * by jCardSim itself, for the Secure Channel and by GENERATE KEY, are not covered. This allows comparing different
+ * builds of the applet, or different CardCostModel profiles, on the traffic of real clients.
+ *
+ * The replay card has its own PIN, PUK, pairing secret and keys, since these are redacted from traces. The commands
+ * which depend on them are therefore translated rather than resent:
+ * <ul>
+ *   <li>INIT is skipped, the card is initialized before the replay starts</li>
+ *   <li>PAIR is replayed as a full pairing when the last step is met, creating a new session for the pairing index
+ *   recorded in the trace. OPEN SECURE CHANNEL for a pairing index not seen before also pairs first</li>
+ *   <li>OPEN SECURE CHANNEL opens or resumes the session of the recorded pairing index, including MUTUALLY
+ *   AUTHENTICATE, so recorded MUTUALLY AUTHENTICATE commands are skipped</li>
+ *   <li>UNPAIR removes the pairing mapped to the recorded index</li>
+ *   <li>VERIFY PIN and UNBLOCK PIN send the correct values if the recorded command succeeded and wrong ones otherwise,
+ *   CHANGE PIN sets the current value again</li>
+ *   <li>LOAD KEY loads a key or seed of the recorded type, generated from the seed of the replay</li>
+ * </ul>
+ * All other commands are resent as recorded, in plaintext over the Secure Channel if open. Commands recorded as failed
+ * before the Secure Channel was opened are skipped. The SW of each response is compared with the recorded one and
+ * mismatches are counted, since they mean the replay diverged from the trace.
+ *
+ * Run with ./gradlew replayTrace -Pim.status.wallet.trace=/path/to/trace, optionally with a cost profile as for the
+ * tests.
+ */
+public class TraceReplay {
+  static final String PIN = "000000";
+  static final String PUK = "123456789012";
+  static final byte[] PAIRING_SECRET = new byte[SecureChannel.SC_SECRET_LENGTH];
+
+  private static final String WRONG_PIN = "999999";
+  private static final String WRONG_PUK = "999999999999";
+  private static final ResponseAPDU OK = new ResponseAPDU(new byte[] { (byte) 0x90, 0x00 });
+
+  private final CommandRecorder recorder;
+  private final CardChannel channel;
+  private final WalletAppletCommandSet cmdSet;
+  private final DeterministicRandom random;
+  private final Map<Integer, SecureChannelSession> sessions = new HashMap<>();
+  private final List<String> mismatches = new ArrayList<>();
+  private SecureChannelSession current;
+  private byte[] cardKey;
+  private int skipped;
+
+  /**
+   * Installs and initializes a new applet on jCardSim. The BouncyCastle provider must be registered.
+   *
+   * @param seed the seed of the host and card randomness
+   * @throws CardException if the applet cannot be initialized
+   */
+  public TraceReplay(long seed) throws CardException {
+    random = new DeterministicRandom(seed);
+    recorder = new CommandRecorder();
+
+    CardSimulator simulator = new CardSimulator(recorder);
+    AID aid = AIDUtil.create(WalletAppletCommandSet.APPLET_AID);
+    byte[] params = new byte[WalletAppletCommandSet.APPLET_AID_BYTES.length + 3];
+    params[0] = (byte) WalletAppletCommandSet.APPLET_AID_BYTES.length;
+    System.arraycopy(WalletAppletCommandSet.APPLET_AID_BYTES, 0, params, 1, params[0]);
+    simulator.installApplet(aid, WalletApplet.class, params, (short) 0, (byte) params.length);
+    recorder.fixShortSecureChannelKeys();
+
+    // The card gets a sequence of its own, so that the host and the card do not depend on each other's consumption
+    DeterministicRandom cardRandom = new DeterministicRandom(~seed);
+
+    for (WalletApplet applet : recorder.getWalletApplets()) {
+      try {
+        Field f = WalletApplet.class.getDeclaredField("crypto");
+        f.setAccessible(true);
+        ((Crypto) f.get(applet)).random = cardRandom.toRandomData();
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    channel = CardTerminalSimulator.terminal(simulator).connect("*").getBasicChannel();
+    cmdSet = new WalletAppletCommandSet(channel);
+    select();
+    current = new SecureChannelSession(cardKey, random);
+    cmdSet.setSecureChannel(current);
+
+    if (cmdSet.init(PIN, PUK, PAIRING_SECRET).getSW() != 0x9000) {
+      throw new CardException("INIT failed");
+    }
+
+    recorder.fixShortSecureChannelKeys();
+    select();
+    current = null;
+    recorder.clear();
+  }
+
+  /**
+   * Returns the recorder of the commands executed by the card during the replay, including the additional commands
+   * needed to translate PAIR and OPEN SECURE CHANNEL.
+   *
+   * @return the recorder
+   */
+  public CommandRecorder getRecorder() {
+    return recorder;
+  }
+
+  /**
+   * Returns the number of records which were skipped.
+   *
+   * @return the number of skipped records
+   */
+  public int getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * Returns a description of each record whose replay returned a different SW than the recorded one.
+   *
+   * @return the mismatches
+   */
+  public List<String> getMismatches() {
+    return mismatches;
+  }
+
+  /**
+   * Reads all records of a trace.
+   *
+   * @param reader the trace
+   * @return the records
+   * @throws IOException if the trace cannot be read
+   */
+  public static List<ApduTrace.Record> readAll(ApduTrace.Reader reader) throws IOException {
+    List<ApduTrace.Record> records = new ArrayList<>();
+    ApduTrace.Record record;
+
+    while ((record = reader.next()) != null) {
+      records.add(record);
+    }
+
+    return records;
+  }
+
+  /**
+   * Replays the given records.
+   *
+   * @param records the records
+   * @return the response to each record, in order, or null for skipped records
+   * @throws CardException communication error
+   */
+  public List<ResponseAPDU> replay(List<ApduTrace.Record> records) throws CardException {
+    List<ResponseAPDU> responses = new ArrayList<>(records.size());
+
+    for (ApduTrace.Record record : records) {
+      ResponseAPDU response = replay(record);
+
+      if (response == null) {
+        skipped++;
+      } else if (response.getSW() != record.getSW()) {
+        mismatches.add(String.format("#%d INS %02X: SW %04X, recorded %04X", responses.size(), record.getIns(), response.getSW(), record.getSW()));
+      }
+
+      responses.add(response);
+    }
+
+    return responses;
+  }
+
+  /**
+   * Replays a single record.
+   *
+   * @param record the record
+   * @return the response, or null if the record was skipped
+   * @throws CardException communication error
+   */
+  public ResponseAPDU replay(ApduTrace.Record record) throws CardException {
+    byte[] command = record.getCommand();
+    int p1 = command[2] & 0xff;
+
+    if ((command[0] == 0x00) && (command[1] == (byte) 0xA4)) {
+      return select();
+    }
+
+    switch (record.getIns()) {
+      case WalletApplet.INS_INIT:
+      case SecureChannel.INS_MUTUALLY_AUTHENTICATE:
+        return null;
+      case SecureChannel.INS_OPEN_SECURE_CHANNEL:
+        return (record.getSW() == 0x9000) ? openSecureChannel(p1, command[3]) : null;
+      case SecureChannel.INS_PAIR:
+        if ((p1 != SecureChannel.PAIR_P1_LAST_STEP) || (record.getSW() != 0x9000)) {
+          return null;
+        }
+
+        sessions.remove(record.getResponse()[0] & 0xff);
+        pair(record.getResponse()[0] & 0xff);
+        return OK;
+      case SecureChannel.INS_UNPAIR:
+        SecureChannelSession unpaired = sessions.get(p1);
+
+        if (unpaired == null) {
+          return null;
+        }
+
+        ResponseAPDU response = send(record, unpaired.getPairingIndex(), record.getCommandData());
+
+        if (response.getSW() == 0x9000) {
+          sessions.remove(p1);
+        }
+
+        return response;
+      case WalletApplet.INS_VERIFY_PIN:
+        return cmdSet.verifyPIN((record.getSW() == 0x9000) ? PIN : WRONG_PIN);
+      case WalletApplet.INS_UNBLOCK_PIN:
+        return cmdSet.unblockPIN((record.getSW() == 0x9000) ? PUK : WRONG_PUK, PIN);
+      case WalletApplet.INS_CHANGE_PIN:
+        switch (p1) {
+          case WalletApplet.CHANGE_PIN_P1_USER_PIN:
+            return cmdSet.changePIN(p1, PIN);
+          case WalletApplet.CHANGE_PIN_P1_PUK:
+            return cmdSet.changePIN(p1, PUK);
+          default:
+            return cmdSet.changePIN(p1, PAIRING_SECRET);
+        }
+      case WalletApplet.INS_LOAD_KEY:
+        return loadKey((byte) p1);
+      default:
+        if ((current == null) && (record.getType() == ApduTrace.PROTECTED)) {
+          return null;
+        }
+
+        return send(record, p1, record.getCommandData());
+    }
+  }
+
+  /**
+   * Selects the applet and updates the public key used to open new sessions.
+   *
+   * @return the response
+   * @throws CardException communication error
+   */
+  private ResponseAPDU select() throws CardException {
+    ResponseAPDU response = cmdSet.select();
+    byte[] data = response.getData();
+
+    if ((data.length > 22) && (data[0] == WalletApplet.TLV_APPLICATION_INFO_TEMPLATE)) {
+      cardKey = Arrays.copyOfRange(data, 22, 22 + data[21]);
+    } else if ((data.length > 2) && (data[0] == WalletApplet.TLV_PUB_KEY)) {
+      cardKey = Arrays.copyOfRange(data, 2, data.length);
+    }
+
+    current = null;
+    return response;
+  }
+
+  /**
+   * Opens or resumes the session of the given recorded pairing index, pairing first if needed.
+   *
+   * @param index the recorded pairing index
+   * @param p2 the recorded P2
+   * @return the response
+   * @throws CardException if the session cannot be opened
+   */
+  private ResponseAPDU openSecureChannel(int index, byte p2) throws CardException {
+    SecureChannelSession session = sessions.get(index);
+
+    if (session == null) {
+      session = pair(index);
+    }
+
+    session.generateSecret(cardKey);
+    session.setImplicitAuthentication((p2 & SecureChannel.OPEN_SECURE_CHANNEL_P2_IMPLICIT_AUTH) != 0);
+    cmdSet.setSecureChannel(session);
+    current = session;
+
+    if ((p2 & SecureChannel.OPEN_SECURE_CHANNEL_P2_RESUME) != 0) {
+      session.autoResumeSecureChannel(channel);
+    } else {
+      session.autoOpenSecureChannel(channel, (p2 & SecureChannel.OPEN_SECURE_CHANNEL_P2_TICKET) != 0);
+    }
+
+    return OK;
+  }
+
+  /**
+   * Pairs a new session for the given recorded pairing index. The applet is selected again first, since pairing is not
+   * possible with a Secure Channel open.
+   *
+   * @param index the recorded pairing index
+   * @return the session
+   * @throws CardException if pairing fails
+   */
+  private SecureChannelSession pair(int index) throws CardException {
+    select();
+    SecureChannelSession session = new SecureChannelSession(cardKey, random);
+    cmdSet.setSecureChannel(session);
+    session.autoPair(channel, PAIRING_SECRET);
+    sessions.put(index, session);
+
+    return session;
+  }
+
+  /**
+   * Sends LOAD KEY with a key of the given type generated from the seed of the replay.
+   *
+   * @param p1 the recorded P1
+   * @return the response
+   * @throws CardException communication error
+   */
+  private ResponseAPDU loadKey(byte p1) throws CardException {
+    if (p1 == WalletApplet.LOAD_KEY_P1_SEED) {
+      return cmdSet.loadKey(nonZeroLeading(WalletApplet.BIP39_SEED_SIZE), p1);
+    }
+
+    ECParameterSpec ecSpec = ECNamedCurveTable.getParameterSpec("secp256k1");
+    byte[] privateKey = nonZeroLeading(32);
+    byte[] publicKey = ecSpec.getG().multiply(new BigInteger(1, privateKey)).normalize().getEncoded(false);
+    byte[] chainCode = null;
+
+    if (p1 == WalletApplet.LOAD_KEY_P1_EXT_EC) {
+      chainCode = new byte[32];
+      random.nextBytes(chainCode);
+    }
+
+    return cmdSet.loadKey(publicKey, privateKey, chainCode);
+  }
+
+  /**
+   * Returns random bytes whose first byte is between 0x01 and 0x7f. Used for keys, so that their length is always the
+   * same and they are always smaller than the order of the curve.
+   *
+   * @param len the number of bytes
+   * @return the bytes
+   */
+  private byte[] nonZeroLeading(int len) {
+    byte[] data = new byte[len];
+    random.nextBytes(data);
+    data[0] = (byte) ((data[0] & 0x7f) | 0x01);
+    return data;
+  }
+
+  /**
+   * Resends a recorded command with the given P1 and data, over the Secure Channel if open.
+   *
+   * @param record the record
+   * @param p1 the P1 to send
+   * @param data the data to send
+   * @return the response
+   * @throws CardException communication error
+   */
+  private ResponseAPDU send(ApduTrace.Record record, int p1, byte[] data) throws CardException {
+    byte[] command = record.getCommand();
+
+    if (current == null) {
+      return channel.transmit((data.length > 0) ? new CommandAPDU(command[0], command[1], p1, command[3], data) : new CommandAPDU(command[0], command[1], p1, command[3]));
+    }
+
+    boolean extended = data.length > SecureChannelSession.PAYLOAD_MAX_SIZE;
+    current.setExtendedLength(extended);
+
+    try {
+      return current.transmit(channel, current.protectedCommand(command[0], command[1], p1, command[3], data));
+    } finally {
+      current.setExtendedLength(false);
+    }
+  }
+
+  /**
+   * Replays the trace given as first argument, with the seed given as optional second argument, and prints the number
+   * of commands of each INS, the time taken on the simulator, the time recorded in the trace and the time estimated
+   * for a card by CardCostModel.
+   *
+   * @param args the path of the trace and optionally the seed
+   * @throws Exception if the replay fails
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: TraceReplay <trace> [seed]");
+      System.exit(1);
+    }
+
+    Security.addProvider(new BouncyCastleProvider());
+    long seed = (args.length > 1) ? Long.parseLong(args[1]) : 0;
+    List<ApduTrace.Record> records;
+
+    try (InputStream in = new FileInputStream(args[0]); ApduTrace.Reader reader = new ApduTrace.Reader(in)) {
+      records = readAll(reader);
+    }
+
+    TraceReplay replay = new TraceReplay(seed);
+    long start = System.nanoTime();
+    replay.replay(records);
+    long end = System.nanoTime();
+
+    CardCostModel model = CardCostModel.fromSystemProperty();
+    Map<Integer, double[]> stats = new TreeMap<>();
+
+    for (ApduTrace.Record r : records) {
+      double[] s = stats.computeIfAbsent(r.getIns() & 0xff, k -> new double[4]);
+      s[0]++;
+      s[1] += r.getDurationMicros();
+    }
+
+    for (CommandRecorder.Entry e : replay.getRecorder().getEntries()) {
+      double[] s = stats.computeIfAbsent(e.getIns() & 0xff, k -> new double[4]);
+      s[2]++;
+      s[3] += model.estimate(e);
+    }
+
+    System.out.println("INS  recorded  recorded ms  replayed  estimated ms");
+
+    for (Map.Entry<Integer, double[]> e : stats.entrySet()) {
+      double[] s = e.getValue();
+      System.out.println(String.format("%02X   %8d  %11.1f  %8d  %12.1f", e.getKey(), (long) s[0], s[1] / 1000, (long) s[2], s[3] / 1000));
+    }
+
+    System.out.println(String.format("Simulator time: %.1f ms, estimated card time: %.1f ms, skipped: %d, SW mismatches: %d",
+        (end - start) / 1e6, model.estimate(replay.getRecorder().getEntries()) / 1000, replay.getSkipped(), replay.getMismatches().size()));
+
+    for (String m : replay.getMismatches()) {
+      System.out.println(m);
+    }
+  }
+}
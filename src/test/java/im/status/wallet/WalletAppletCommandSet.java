@@ -11,6 +11,7 @@ import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.util.Arrays;
@@ -23,9 +24,11 @@ import java.util.Arrays;
 public class WalletAppletCommandSet {
   public static final String APPLET_AID = "53746174757357616C6C6574417070";
   public static final byte[] APPLET_AID_BYTES = Hex.decode(APPLET_AID);
+  private static final ByteBuffer EMPTY_DATA = ByteBuffer.allocate(0).asReadOnlyBuffer();
 
   private final CardChannel apduChannel;
   private SecureChannelSession secureChannel;
+  private ApduTrace.Writer trace;
 
   public WalletAppletCommandSet(CardChannel apduChannel) {
     this.apduChannel = apduChannel;
@@ -33,6 +36,44 @@ public class WalletAppletCommandSet {
 
   public void setSecureChannel(SecureChannelSession secureChannel) {
     this.secureChannel = secureChannel;
+
+    if (secureChannel != null) {
+      secureChannel.setTrace(trace);
+    }
+  }
+
+  /**
+   * Records all commands sent from now on, including those sent through the SecureChannel, to the given trace. Commands
+   * sent by calling the SecureChannelSession directly are recorded as well.
+   *
+   * @param trace the trace, or null to stop recording
+   */
+  public void setTrace(ApduTrace.Writer trace) {
+    this.trace = trace;
+
+    if (secureChannel != null) {
+      secureChannel.setTrace(trace);
+    }
+  }
+
+  /**
+   * Sets whether protected commands must be sent as extended length APDUs. Calls the corresponding method of the
+   * SecureChannel class.
+   *
+   * @param extendedLength whether extended length APDUs must be used
+   */
+  public void setExtendedLength(boolean extendedLength) {
+    secureChannel.setExtendedLength(extendedLength);
+  }
+
+  /**
+   * Sets whether protected commands must be sent using command chaining. Calls the corresponding method of the
+   * SecureChannel class.
+   *
+   * @param commandChaining whether command chaining must be used
+   */
+  public void setCommandChaining(boolean commandChaining) {
+    secureChannel.setCommandChaining(commandChaining);
   }
 
   /**
@@ -48,7 +89,7 @@ public class WalletAppletCommandSet {
     }
 
     CommandAPDU selectApplet = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_SELECT, 4, 0, APPLET_AID_BYTES);
-    return apduChannel.transmit(selectApplet);
+    return transmitRaw(selectApplet);
   }
 
   /**
@@ -61,6 +102,34 @@ public class WalletAppletCommandSet {
     secureChannel.autoOpenSecureChannel(apduChannel);
   }
 
+  /**
+   * Opens the secure channel, optionally requesting a resumption ticket. Calls the corresponding method of the
+   * SecureChannel class.
+   *
+   * @param requestTicket whether the card must store a resumption ticket
+   * @throws CardException communication error
+   */
+  public void autoOpenSecureChannel(boolean requestTicket) throws CardException {
+    secureChannel.autoOpenSecureChannel(apduChannel, requestTicket);
+  }
+
+  /**
+   * Resumes the secure channel, or opens a new one if resumption is not possible. Calls the corresponding method of the
+   * SecureChannel class.
+   *
+   * @throws CardException communication error
+   */
+  public void autoResumeSecureChannel() throws CardException {
+    secureChannel.autoResumeSecureChannel(apduChannel);
+  }
+
+  /**
+   * Sends a OPEN SECURE CHANNEL APDU to resume a session. Calls the corresponding method of the SecureChannel class.
+   */
+  public ResponseAPDU resumeSecureChannel(byte index) throws CardException {
+    return secureChannel.resumeSecureChannel(apduChannel, index);
+  }
+
   /**
    * Automatically pairs. Calls the corresponding method of the SecureChannel class.
    *
@@ -107,6 +176,17 @@ public class WalletAppletCommandSet {
     return secureChannel.pair(apduChannel, p1, data);
   }
 
+  /**
+   * Sends a PREPARE NEXT KEY APDU.
+   *
+   * @return the raw card response
+   * @throws CardException communication error
+   */
+  public ResponseAPDU prepareNextKey() throws CardException {
+    CommandAPDU prepareNextKey = secureChannel.protectedCommand(0x80, SecureChannel.INS_PREPARE_NEXT_KEY, 0, 0, new byte[0]);
+    return secureChannel.transmit(apduChannel, prepareNextKey);
+  }
+
   /**
    * Sends a UNPAIR APDU. Calls the corresponding method of the SecureChannel class.
    */
@@ -127,6 +207,31 @@ public class WalletAppletCommandSet {
     return secureChannel.transmit(apduChannel, getStatus);
   }
 
+  /**
+   * Sends a GET STATUS APDU without allocating memory. The response, including the SW, is written to the given buffer.
+   *
+   * @param info the P1 of the APDU
+   * @param response the buffer receiving the response
+   * @return the length of the response
+   * @throws CardException communication error
+   */
+  public int getStatus(byte info, ByteBuffer response) throws CardException {
+    return secureChannel.transmit(apduChannel, 0x80, WalletApplet.INS_GET_STATUS, info, 0, EMPTY_DATA, response);
+  }
+
+  /**
+   * Sends a GET STATUS APDU to retrieve the performance counters.
+   *
+   * @param session true for the counters since selection, false for the counters since installation
+   * @return the raw card response
+   * @throws CardException communication error
+   */
+  public ResponseAPDU getCounters(boolean session) throws CardException {
+    byte p2 = session ? WalletApplet.GET_STATUS_P2_COUNTERS_SESSION : WalletApplet.GET_STATUS_P2_COUNTERS_TOTAL;
+    CommandAPDU getStatus = secureChannel.protectedCommand(0x80, WalletApplet.INS_GET_STATUS, WalletApplet.GET_STATUS_P1_COUNTERS, p2, new byte[0]);
+    return secureChannel.transmit(apduChannel, getStatus);
+  }
+
   /**
    * Sends a GET STATUS APDU to retrieve the APPLICATION STATUS template and reads the byte indicating key initialization
    * status
@@ -401,10 +506,126 @@ public class WalletAppletCommandSet {
    * @throws CardException communication error
    */
   public ResponseAPDU sign(byte[] data) throws CardException {
-    CommandAPDU sign = secureChannel.protectedCommand(0x80, WalletApplet.INS_SIGN, 0x00, 0x00, data);
+    return sign(data, WalletApplet.SIGN_P2_PUB_KEY_UNCOMPRESSED);
+  }
+
+  /**
+   * Sends a SIGN APDU. This signs a precomputed hash so the input must be exactly 32-bytes long. The public key is
+   * returned in the given format.
+   *
+   * @param data the data to sign
+   * @param pubFormat the format of the public key, as defined by the SIGN_P2_PUB_KEY_* constants
+   * @return the raw card response
+   * @throws CardException communication error
+   */
+  public ResponseAPDU sign(byte[] data, byte pubFormat) throws CardException {
+    CommandAPDU sign = secureChannel.protectedCommand(0x80, WalletApplet.INS_SIGN, WalletApplet.SIGN_P1_PRECOMPUTED_HASH, pubFormat, data);
     return secureChannel.transmit(apduChannel, sign);
   }
 
+  /**
+   * Sends a SIGN APDU without allocating memory. The hash is read from the data buffer, between its position and limit,
+   * and the response, including the SW, is written to the given buffer.
+   *
+   * @param data the hash to sign
+   * @param pubFormat the format of the public key, as defined by the SIGN_P2_PUB_KEY_* constants
+   * @param response the buffer receiving the response
+   * @return the length of the response
+   * @throws CardException communication error
+   */
+  public int sign(ByteBuffer data, byte pubFormat, ByteBuffer response) throws CardException {
+    return secureChannel.transmit(apduChannel, 0x80, WalletApplet.INS_SIGN, WalletApplet.SIGN_P1_PRECOMPUTED_HASH, pubFormat, data, response);
+  }
+
+  /**
+   * Sends a SIGN APDU in batch mode. The data is a concatenation of precomputed hashes, each exactly 32-bytes long.
+   *
+   * @param data the hashes to sign
+   * @return the raw card response
+   * @throws CardException communication error
+   */
+  public ResponseAPDU signBatch(byte[] data) throws CardException {
+    return signBatch(data, WalletApplet.SIGN_P2_PUB_KEY_UNCOMPRESSED);
+  }
+
+  /**
+   * Sends a SIGN APDU in batch mode. The data is a concatenation of precomputed hashes, each exactly 32-bytes long. The
+   * public key is returned in the given format.
+   *
+   * @param data the hashes to sign
+   * @param pubFormat the format of the public key, as defined by the SIGN_P2_PUB_KEY_* constants
+   * @return the raw card response
+   * @throws CardException communication error
+   */
+  public ResponseAPDU signBatch(byte[] data, byte pubFormat) throws CardException {
+    CommandAPDU sign = secureChannel.protectedCommand(0x80, WalletApplet.INS_SIGN, WalletApplet.SIGN_P1_BATCH, pubFormat, data);
+    return secureChannel.transmit(apduChannel, sign);
+  }
+
+  /**
+   * Sends a SIGN APDU in batch mode without allocating memory. The concatenated hashes are read from the data buffer,
+   * between its position and limit, and the response, including the SW, is written to the given buffer.
+   *
+   * @param data the hashes to sign
+   * @param pubFormat the format of the public key, as defined by the SIGN_P2_PUB_KEY_* constants
+   * @param response the buffer receiving the response
+   * @return the length of the response
+   * @throws CardException communication error
+   */
+  public int signBatch(ByteBuffer data, byte pubFormat, ByteBuffer response) throws CardException {
+    return secureChannel.transmit(apduChannel, 0x80, WalletApplet.INS_SIGN, WalletApplet.SIGN_P1_BATCH, pubFormat, data, response);
+  }
+
+  /**
+   * Sends a SIGN APDU which derives the key from the given path and signs the hash with it. The current key is not
+   * changed.
+   *
+   * @param hash the hash to sign, must be exactly 32-bytes long
+   * @param path the raw key path
+   * @param source the source to start derivation, as for DERIVE KEY
+   * @return the raw card response
+   * @throws CardException communication error
+   */
+  public ResponseAPDU signWithPath(byte[] hash, byte[] path, int source) throws CardException {
+    return signWithPath(hash, path, source, WalletApplet.SIGN_P2_PUB_KEY_UNCOMPRESSED);
+  }
+
+  /**
+   * Sends a SIGN APDU which derives the key from the given path and signs the hash with it. The current key is not
+   * changed. The public key is returned in the given format.
+   *
+   * @param hash the hash to sign, must be exactly 32-bytes long
+   * @param path the raw key path
+   * @param source the source to start derivation, as for DERIVE KEY
+   * @param pubFormat the format of the public key, as defined by the SIGN_P2_PUB_KEY_* constants
+   * @return the raw card response
+   * @throws CardException communication error
+   */
+  public ResponseAPDU signWithPath(byte[] hash, byte[] path, int source, byte pubFormat) throws CardException {
+    byte[] data = new byte[hash.length + path.length];
+    System.arraycopy(hash, 0, data, 0, hash.length);
+    System.arraycopy(path, 0, data, hash.length, path.length);
+
+    CommandAPDU sign = secureChannel.protectedCommand(0x80, WalletApplet.INS_SIGN, WalletApplet.SIGN_P1_DERIVE | source, pubFormat, data);
+    return secureChannel.transmit(apduChannel, sign);
+  }
+
+  /**
+   * Sends a SIGN APDU which derives the key from the given path and signs the hash with it, without allocating memory.
+   * The data buffer contains, between its position and limit, the 32-byte hash followed by the raw key path. The
+   * response, including the SW, is written to the given buffer.
+   *
+   * @param data the hash followed by the key path
+   * @param source the source to start derivation, as for DERIVE KEY
+   * @param pubFormat the format of the public key, as defined by the SIGN_P2_PUB_KEY_* constants
+   * @param response the buffer receiving the response
+   * @return the length of the response
+   * @throws CardException communication error
+   */
+  public int signWithPath(ByteBuffer data, int source, byte pubFormat, ByteBuffer response) throws CardException {
+    return secureChannel.transmit(apduChannel, 0x80, WalletApplet.INS_SIGN, WalletApplet.SIGN_P1_DERIVE | source, pubFormat, data, response);
+  }
+
   /**
    * Sends a DERIVE KEY APDU. The data is encrypted and sent as-is. The P1 is forced to 0, meaning that the derivation
    * starts from the master key.
@@ -430,6 +651,20 @@ public class WalletAppletCommandSet {
     return secureChannel.transmit(apduChannel, deriveKey);
   }
 
+  /**
+   * Sends a DERIVE KEY APDU without allocating memory. The key path is read from the data buffer, between its position
+   * and limit, and the response, including the SW, is written to the given buffer.
+   *
+   * @param data the raw key path or a public key
+   * @param source the source to start derivation
+   * @param response the buffer receiving the response
+   * @return the length of the response
+   * @throws CardException communication error
+   */
+  public int deriveKey(ByteBuffer data, int source, ByteBuffer response) throws CardException {
+    return secureChannel.transmit(apduChannel, 0x80, WalletApplet.INS_DERIVE_KEY, source, 0, data, response);
+  }
+
   /**
    * Sends a SET PINLESS PATH APDU. The data is encrypted and sent as-is.
    *
@@ -456,6 +691,43 @@ public class WalletAppletCommandSet {
     return secureChannel.transmit(apduChannel, exportKey);
   }
 
+  /**
+   * Sends an EXPORT KEY APDU with P2 set to EXPORT_KEY_P2_EXTENDED_PUBLIC, exporting the public key along with the
+   * chain code. The response data can be parsed with ExtendedPublicKey.fromKeyTemplate.
+   *
+   * @param keyPathIndex the P1 parameter
+   * @return the raw card response
+   * @throws CardException communication error
+   */
+  public ResponseAPDU exportExtendedPublicKey(byte keyPathIndex) throws CardException {
+    CommandAPDU exportKey = secureChannel.protectedCommand(0x80, WalletApplet.INS_EXPORT_KEY, keyPathIndex, WalletApplet.EXPORT_KEY_P2_EXTENDED_PUBLIC, new byte[0]);
+    return secureChannel.transmit(apduChannel, exportKey);
+  }
+
+  /**
+   * Sends an EXPORT KEY APDU with P2 set to EXPORT_KEY_P2_PUBLIC_RANGE, exporting the compressed public keys of the
+   * children of the given parent key. The response can contain fewer public keys than requested, in which case the
+   * remaining ones must be requested with another command starting at the next index.
+   *
+   * @param parentPath the key path of the parent key, relative to the master key
+   * @param start the index of the first child
+   * @param count the number of children
+   * @return the raw card response
+   * @throws CardException communication error
+   */
+  public ResponseAPDU exportPublicKeyRange(byte[] parentPath, int start, int count) throws CardException {
+    byte[] data = new byte[WalletApplet.EXPORT_KEY_RANGE_HEADER_SIZE + parentPath.length];
+    data[0] = (byte) (start >>> 24);
+    data[1] = (byte) (start >>> 16);
+    data[2] = (byte) (start >>> 8);
+    data[3] = (byte) start;
+    data[4] = (byte) count;
+    System.arraycopy(parentPath, 0, data, WalletApplet.EXPORT_KEY_RANGE_HEADER_SIZE, parentPath.length);
+
+    CommandAPDU exportKey = secureChannel.protectedCommand(0x80, WalletApplet.INS_EXPORT_KEY, WalletApplet.EXPORT_KEY_P1_ANY, WalletApplet.EXPORT_KEY_P2_PUBLIC_RANGE, data);
+    return secureChannel.transmit(apduChannel, exportKey);
+  }
+
   /**
    * Sends the INIT command to the card.
    *
@@ -466,10 +738,47 @@ public class WalletAppletCommandSet {
    * @throws CardException communication error
    */
   public ResponseAPDU init(String pin, String puk, byte[] sharedSecret) throws CardException {
-    byte[] initData = Arrays.copyOf(pin.getBytes(), pin.length() + puk.length() + sharedSecret.length);
+    return init(pin, puk, sharedSecret, new byte[0]);
+  }
+
+  /**
+   * Sends the INIT command to the card, also setting the interval between rotations of the secure channel key pair.
+   *
+   * @param pin the PIN
+   * @param puk the PUK
+   * @param sharedSecret the shared secret for pairing
+   * @param keyRotationInterval the number of SELECT commands between rotations
+   * @return the raw card response
+   * @throws CardException communication error
+   */
+  public ResponseAPDU init(String pin, String puk, byte[] sharedSecret, short keyRotationInterval) throws CardException {
+    return init(pin, puk, sharedSecret, new byte[] {(byte) (keyRotationInterval >> 8), (byte) keyRotationInterval});
+  }
+
+  private ResponseAPDU init(String pin, String puk, byte[] sharedSecret, byte[] options) throws CardException {
+    byte[] initData = Arrays.copyOf(pin.getBytes(), pin.length() + puk.length() + sharedSecret.length + options.length);
     System.arraycopy(puk.getBytes(), 0, initData, pin.length(), puk.length());
     System.arraycopy(sharedSecret, 0, initData, pin.length() + puk.length(), sharedSecret.length);
+    System.arraycopy(options, 0, initData, pin.length() + puk.length() + sharedSecret.length, options.length);
     CommandAPDU init = new CommandAPDU(0x80, WalletApplet.INS_INIT, 0, 0, secureChannel.oneShotEncrypt(initData));
-    return apduChannel.transmit(init);
+    return transmitRaw(init);
+  }
+
+  /**
+   * Sends a command as is, recording it if a trace is set.
+   *
+   * @param apdu the command APDU
+   * @return the raw card response
+   * @throws CardException communication error
+   */
+  private ResponseAPDU transmitRaw(CommandAPDU apdu) throws CardException {
+    long start = System.nanoTime();
+    ResponseAPDU response = apduChannel.transmit(apdu);
+
+    if (trace != null) {
+      trace.record(ApduTrace.RAW, apdu.getBytes(), response.getBytes(), start, System.nanoTime());
+    }
+
+    return response;
   }
 }
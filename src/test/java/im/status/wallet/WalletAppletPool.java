@@ -0,0 +1,361 @@
+package im.status.wallet;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of cards running the wallet applet, each reachable through its own CardChannel. Callers lease a card for the
+ * duration of one or more commands and get a WalletAppletCommandSet with the Secure Channel already open and, if a PIN
+ * has been given, already verified. The cards are handed out in FIFO order, so that load is balanced between them, and
+ * callers wait in FIFO order when all cards are leased.
+ *
+ * Cards are paired lazily, when leased for the first time. Before being handed out, a card whose session is not open
+ * anymore is selected again and its session resumed or reopened. If the card rejects the pairing index, because the
+ * pairing has been removed, it is paired again. Other errors leave the pairing alone, so that a card which fails
+ * transiently does not use up its pairing slots. A card where PIN verification fails is removed from the pool, so that its PIN is never blocked by
+ * repeated attempts. Cards are not otherwise removed, so a card which cannot be reached is retried on later leases.
+ *
+ * The pool is thread-safe, the command sets of leased cards must only be used by the thread holding the lease.
+ */
+public class WalletAppletPool implements AutoCloseable {
+  private final List<Member> members;
+  private final BlockingQueue<Member> idle;
+  private final byte[] pairingSecret;
+  private final String pin;
+  private volatile boolean closed;
+
+  /**
+   * Creates a pool over the given channels. No communication happens until the first lease.
+   *
+   * @param channels the channels, one for each card
+   * @param pairingSecret the pairing secret, which must be the same for all cards
+   * @param pin the PIN to verify after opening the Secure Channel, or null to leave the PIN unverified
+   */
+  public WalletAppletPool(List<CardChannel> channels, byte[] pairingSecret, String pin) {
+    this.pairingSecret = pairingSecret.clone();
+    this.pin = pin;
+
+    List<Member> list = new ArrayList<>(channels.size());
+
+    for (CardChannel channel : channels) {
+      list.add(new Member(channel));
+    }
+
+    members = Collections.unmodifiableList(list);
+    idle = new ArrayBlockingQueue<>(Math.max(1, members.size()), true, members);
+  }
+
+  /**
+   * Returns the number of cards in the pool, including leased and disabled ones.
+   *
+   * @return the number of cards
+   */
+  public int size() {
+    return members.size();
+  }
+
+  /**
+   * Leases a card, waiting until one is available.
+   *
+   * @return the lease
+   * @throws InterruptedException if interrupted while waiting
+   * @throws CardException if no card in the pool could be prepared
+   */
+  public Lease acquire() throws InterruptedException, CardException {
+    return acquire(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Leases a card, waiting at most the given time until one is available. Cards which cannot be prepared are put back
+   * in the pool and the next one is tried, up to the number of cards in the pool.
+   *
+   * @param timeout the maximum time to wait
+   * @param unit the unit of the timeout
+   * @return the lease or null if the timeout expired
+   * @throws InterruptedException if interrupted while waiting
+   * @throws CardException if no card in the pool could be prepared
+   */
+  public Lease acquire(long timeout, TimeUnit unit) throws InterruptedException, CardException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    CardException lastError = null;
+
+    for (int attempt = 0; attempt < members.size(); attempt++) {
+      if (closed) {
+        throw new IllegalStateException("Pool is closed");
+      }
+
+      Member member = idle.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+      if (member == null) {
+        return null;
+      }
+
+      try {
+        member.prepare();
+        return new Lease(member);
+      } catch (CardException e) {
+        lastError = e;
+        idle.add(member);
+      } catch (RuntimeException e) {
+        idle.add(member);
+        throw e;
+      }
+    }
+
+    throw new CardException("No card available", lastError);
+  }
+
+  /**
+   * Checks all idle cards by sending GET STATUS over their session. Cards whose session is broken are prepared again.
+   * Leased cards are not checked.
+   *
+   * @return the number of idle cards ready to be leased
+   */
+  public int checkHealth() {
+    int healthy = 0;
+
+    for (int i = idle.size(); i > 0; i--) {
+      Member member = idle.poll();
+
+      if (member == null) {
+        break;
+      }
+
+      try {
+        member.check();
+        healthy++;
+      } catch (CardException e) {
+        member.invalidate();
+      } finally {
+        idle.add(member);
+      }
+    }
+
+    return healthy;
+  }
+
+  /**
+   * Closes the pool. Waits for all leases to be released and unpairs the cards which have a verified PIN, since
+   * UNPAIR requires it. Errors while unpairing are ignored. If the thread is interrupted while waiting, the cards still
+   * leased are left paired and the interrupt flag is set again.
+   */
+  @Override
+  public void close() {
+    closed = true;
+
+    for (int i = 0; i < members.size(); i++) {
+      Member member;
+
+      try {
+        member = idle.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+
+      if ((pin != null) && member.paired && !member.disabled) {
+        try {
+          member.prepare();
+          member.cmdSet.autoUnpair();
+        } catch (CardException e) {
+          // The pairing slot stays used, it can be freed from another client
+        }
+      }
+    }
+  }
+
+  /**
+   * A card leased from the pool. Closing the lease returns the card to the pool.
+   */
+  public class Lease implements AutoCloseable {
+    private Member member;
+
+    private Lease(Member member) {
+      this.member = member;
+    }
+
+    /**
+     * Returns the command set of the leased card.
+     *
+     * @return the command set
+     */
+    public WalletAppletCommandSet getCommandSet() {
+      if (member == null) {
+        throw new IllegalStateException("Lease already released");
+      }
+
+      return member.cmdSet;
+    }
+
+    /**
+     * Marks the session of the leased card as broken, for example after an unexpected SW, so that it is reopened
+     * before the card is leased again.
+     */
+    public void invalidate() {
+      if (member != null) {
+        member.invalidate();
+      }
+    }
+
+    /**
+     * Selects the leased card again and resumes or reopens its session, verifying the PIN, as done when a card is
+     * leased after its session was closed.
+     *
+     * @throws CardException if the card cannot be prepared
+     */
+    public void reopen() throws CardException {
+      if (member == null) {
+        throw new IllegalStateException("Lease already released");
+      }
+
+      member.invalidate();
+      member.prepare();
+    }
+
+    /**
+     * Returns the card to the pool. Does nothing if already called.
+     */
+    @Override
+    public void close() {
+      if (member != null) {
+        idle.add(member);
+        member = null;
+      }
+    }
+  }
+
+  /**
+   * A card of the pool, together with its command set and session. Only accessed by the thread which took it from the
+   * idle queue.
+   */
+  private class Member {
+    private final WalletAppletCommandSet cmdSet;
+    private final ByteBuffer response = ByteBuffer.allocate(SecureChannelSession.SHORT_APDU_BUFFER_SIZE);
+    private SecureChannelSession session;
+    private boolean paired;
+    private boolean ready;
+    private boolean disabled;
+
+    private Member(CardChannel channel) {
+      this.cmdSet = new WalletAppletCommandSet(channel);
+    }
+
+    /**
+     * Makes sure that the Secure Channel is open and the PIN verified, doing only the steps which are needed.
+     *
+     * @throws CardException if the card cannot be prepared
+     */
+    private void prepare() throws CardException {
+      if (disabled) {
+        throw new CardException("Card disabled after PIN verification failure");
+      }
+
+      if (ready && session.isOpen()) {
+        return;
+      }
+
+      ready = false;
+      byte[] keyData = select();
+
+      if (session == null) {
+        session = new SecureChannelSession(keyData);
+        cmdSet.setSecureChannel(session);
+      } else {
+        session.generateSecret(keyData);
+      }
+
+      if (!paired) {
+        cmdSet.autoPair(pairingSecret);
+        paired = true;
+      }
+
+      try {
+        cmdSet.autoResumeSecureChannel();
+      } catch (CardException e) {
+        if (!isPairingRejected()) {
+          invalidate();
+          throw e;
+        }
+
+        // The pairing has been removed by another client
+        paired = false;
+        cmdSet.autoPair(pairingSecret);
+        paired = true;
+        cmdSet.autoResumeSecureChannel();
+      }
+
+      if (pin != null) {
+        ResponseAPDU response = cmdSet.verifyPIN(pin);
+
+        if (response.getSW() != 0x9000) {
+          disabled = true;
+          throw new CardException("PIN verification failed, SW " + Integer.toHexString(response.getSW()));
+        }
+      }
+
+      ready = true;
+    }
+
+    /**
+     * Selects the applet and returns the public key to use for the Secure Channel.
+     *
+     * @return the public key of the card
+     * @throws CardException if the applet cannot be selected or is not initialized
+     */
+    private byte[] select() throws CardException {
+      ResponseAPDU response = cmdSet.select();
+
+      if (response.getSW() != 0x9000) {
+        throw new CardException("SELECT failed, SW " + Integer.toHexString(response.getSW()));
+      }
+
+      byte[] data = response.getData();
+
+      if ((data.length < 22) || (data[0] != WalletApplet.TLV_APPLICATION_INFO_TEMPLATE) || (data[20] != WalletApplet.TLV_PUB_KEY)) {
+        throw new CardException("Applet not initialized");
+      }
+
+      return Arrays.copyOfRange(data, 22, 22 + data[21]);
+    }
+
+    /**
+     * Returns whether the card rejects the pairing index of the session with SW 0x6A86. A resuming OPEN SECURE CHANNEL is
+     * used, since the card checks the pairing index before anything else and it does not require an EC-DH exchange.
+     *
+     * @return whether the pairing index is rejected
+     * @throws CardException communication error
+     */
+    private boolean isPairingRejected() throws CardException {
+      return cmdSet.resumeSecureChannel(session.getPairingIndex()).getSW() == 0x6A86;
+    }
+
+    /**
+     * Sends GET STATUS to check that the session works, preparing the card first if needed.
+     *
+     * @throws CardException if the card does not respond correctly
+     */
+    private void check() throws CardException {
+      prepare();
+
+      response.clear();
+      int len = cmdSet.getStatus(WalletApplet.GET_STATUS_P1_APPLICATION, response);
+
+      if (response.getShort(len - 2) != (short) 0x9000) {
+        throw new CardException("GET STATUS failed");
+      }
+    }
+
+    private void invalidate() {
+      ready = false;
+    }
+  }
+}
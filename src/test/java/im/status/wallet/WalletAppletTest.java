@@ -4,6 +4,7 @@ import com.licel.jcardsim.smartcardio.CardSimulator;
 import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
 import com.licel.jcardsim.utils.AIDUtil;
 import javacard.framework.AID;
+import javacard.framework.ISO7816;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.crypto.ChildNumber;
 import org.bitcoinj.crypto.DeterministicKey;
@@ -23,8 +24,8 @@ import org.web3j.utils.Convert;
 import org.web3j.utils.Numeric;
 
 import javax.smartcardio.*;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.math.BigInteger;
@@ -35,8 +36,18 @@ import java.security.KeyPairGenerator;
 import java.security.Security;
 import java.security.Signature;
 import org.bouncycastle.jce.interfaces.ECPublicKey;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.apache.commons.codec.digest.DigestUtils.sha256;
 import static org.junit.jupiter.api.Assertions.*;
@@ -48,6 +59,7 @@ public class WalletAppletTest {
   private static CardTerminal cardTerminal;
   private static CardChannel apduChannel;
   private static CardSimulator simulator;
+  private static CommandRecorder commandRecorder;
 
   private SecureChannelSession secureChannel;
   private WalletAppletCommandSet cmdSet;
@@ -63,9 +75,11 @@ public class WalletAppletTest {
     Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
 
     if (USE_SIMULATOR) {
-      simulator = new CardSimulator();
+      commandRecorder = new CommandRecorder();
+      simulator = new CardSimulator(commandRecorder);
       AID appletAID = AIDUtil.create(WalletAppletCommandSet.APPLET_AID);
-      simulator.installApplet(appletAID, WalletApplet.class);
+      // Command chaining is disabled by default, but several tests use it
+      installApplet(appletAID, WalletApplet.PAIRING_DEFAULT_CLIENT_COUNT, WalletApplet.INSTALL_OPT_COMMAND_CHAINING);
       cardTerminal = CardTerminalSimulator.terminal(simulator);
     } else {
       TerminalFactory tf = TerminalFactory.getDefault();
@@ -84,6 +98,17 @@ public class WalletAppletTest {
     initIfNeeded();
   }
 
+  private static void installApplet(AID aid, byte... appParams) {
+    byte[] aidBytes = new byte[16];
+    byte aidLen = aid.getBytes(aidBytes, (short) 0);
+    byte[] params = new byte[aidLen + appParams.length + 3];
+    params[0] = aidLen;
+    System.arraycopy(aidBytes, 0, params, 1, aidLen);
+    params[aidLen + 2] = (byte) appParams.length;
+    System.arraycopy(appParams, 0, params, aidLen + 3, appParams.length);
+    simulator.installApplet(aid, WalletApplet.class, params, (short) 0, (byte) params.length);
+  }
+
   private static void initIfNeeded() throws CardException {
     WalletAppletCommandSet cmdSet = new WalletAppletCommandSet(apduChannel);
     byte[] data = cmdSet.select().getData();
@@ -91,7 +116,7 @@ public class WalletAppletTest {
 
     SecureChannelSession secureChannel = new SecureChannelSession(Arrays.copyOfRange(data, 2, data.length));
     cmdSet.setSecureChannel(secureChannel);
-    assertEquals(0x9000, cmdSet.init("000000", "123456789012", SHARED_SECRET).getSW());
+    assertEquals(0x9000, cmdSet.init("000000", "123456789012", SHARED_SECRET, SecureChannel.SC_COUNTER_MAX).getSW());
   }
 
   @BeforeEach
@@ -164,6 +189,86 @@ public class WalletAppletTest {
     response = cmdSet.getStatus(WalletApplet.GET_STATUS_P1_APPLICATION);
     assertEquals(0x9000, response.getSW());
 
+    // Wrong P2
+    response = apduChannel.transmit(new CommandAPDU(0x80, SecureChannel.INS_OPEN_SECURE_CHANNEL, secureChannel.getPairingIndex(), 0x08, secureChannel.getPublicKey()));
+    assertEquals(0x6A86, response.getSW());
+    response = apduChannel.transmit(new CommandAPDU(0x80, SecureChannel.INS_OPEN_SECURE_CHANNEL, secureChannel.getPairingIndex(), SecureChannel.OPEN_SECURE_CHANNEL_P2_RESUME | SecureChannel.OPEN_SECURE_CHANNEL_P2_TICKET));
+    assertEquals(0x6A86, response.getSW());
+
+    // No ticket is stored unless requested
+    cmdSet.select();
+    response = cmdSet.resumeSecureChannel(secureChannel.getPairingIndex());
+    assertEquals(0x6985, response.getSW());
+
+    // Resume the session after a new SELECT
+    cmdSet.autoOpenSecureChannel(true);
+    cmdSet.select();
+    response = cmdSet.resumeSecureChannel(secureChannel.getPairingIndex());
+    assertEquals(0x9000, response.getSW());
+    assertEquals(SecureChannel.SC_SECRET_LENGTH + SecureChannel.SC_BLOCK_SIZE, response.getData().length);
+    secureChannel.processResumeSecureChannelResponse(response);
+    response = cmdSet.mutuallyAuthenticate();
+    assertEquals(0x9000, response.getSW());
+    assertTrue(secureChannel.verifyMutuallyAuthenticateResponse(response));
+    response = cmdSet.getStatus(WalletApplet.GET_STATUS_P1_APPLICATION);
+    assertEquals(0x9000, response.getSW());
+
+    // A session which is not established does not consume the ticket
+    cmdSet.select();
+
+    for (int i = 0; i < (SecureChannel.SC_RESUME_MAX * 2); i++) {
+      response = cmdSet.resumeSecureChannel(secureChannel.getPairingIndex());
+      assertEquals(0x9000, response.getSW());
+    }
+
+    secureChannel.processResumeSecureChannelResponse(response);
+    response = cmdSet.mutuallyAuthenticate();
+    assertEquals(0x9000, response.getSW());
+
+    // The number of consecutive resumptions is limited
+    cmdSet.autoOpenSecureChannel(true);
+
+    for (int i = 0; i < SecureChannel.SC_RESUME_MAX; i++) {
+      cmdSet.select();
+      cmdSet.autoResumeSecureChannel();
+      response = cmdSet.getStatus(WalletApplet.GET_STATUS_P1_APPLICATION);
+      assertEquals(0x9000, response.getSW());
+    }
+
+    response = cmdSet.resumeSecureChannel(secureChannel.getPairingIndex());
+    assertEquals(0x6985, response.getSW());
+
+    // Falls back to a full OPEN SECURE CHANNEL
+    cmdSet.autoResumeSecureChannel();
+    response = cmdSet.getStatus(WalletApplet.GET_STATUS_P1_APPLICATION);
+    assertEquals(0x9000, response.getSW());
+
+    // Implicit authentication: the first command authenticates the client
+    secureChannel.setImplicitAuthentication(true);
+    cmdSet.select();
+    cmdSet.autoOpenSecureChannel();
+    response = cmdSet.getStatus(WalletApplet.GET_STATUS_P1_APPLICATION);
+    assertEquals(0x9000, response.getSW());
+
+    // Implicit authentication also works when resuming
+    cmdSet.select();
+    response = cmdSet.resumeSecureChannel(secureChannel.getPairingIndex());
+    assertEquals(0x9000, response.getSW());
+    secureChannel.processResumeSecureChannelResponse(response);
+    response = cmdSet.getStatus(WalletApplet.GET_STATUS_P1_APPLICATION);
+    assertEquals(0x9000, response.getSW());
+
+    // A wrong MAC closes the secure channel instead of opening it
+    cmdSet.select();
+    cmdSet.autoOpenSecureChannel();
+    response = apduChannel.transmit(new CommandAPDU(0x80, WalletApplet.INS_GET_STATUS, 0, 0, new byte[32]));
+    assertEquals(0x6982, response.getSW());
+    secureChannel.reset();
+    response = cmdSet.getStatus(WalletApplet.GET_STATUS_P1_APPLICATION);
+    assertEquals(0x6985, response.getSW());
+    secureChannel.setImplicitAuthentication(false);
+    cmdSet.autoOpenSecureChannel();
+
     // Verify that the keys are changed correctly. Since we do not know the internal counter we just iterate until that
     // happens for a maximum of SC_COUNTER_MAX times
     byte[] initialKey = extractPublicKeyFromSelect(cmdSet.select().getData());
@@ -174,9 +279,27 @@ public class WalletAppletTest {
       if (!Arrays.equals(initialKey, otherKey)) {
         secureChannel.generateSecret(otherKey);
         cmdSet.autoOpenSecureChannel();
+        initialKey = otherKey;
         break;
       }
     }
+
+    // The next key pair can be prepared in advance, the rotation then happens after exactly SC_COUNTER_MAX selections
+    response = cmdSet.prepareNextKey();
+    assertEquals(0x9000, response.getSW());
+
+    for (int i = 0; i < SecureChannel.SC_COUNTER_MAX; i++) {
+      assertArrayEquals(initialKey, extractPublicKeyFromSelect(cmdSet.select().getData()));
+    }
+
+    byte[] otherKey = extractPublicKeyFromSelect(cmdSet.select().getData());
+    assertFalse(Arrays.equals(initialKey, otherKey));
+    secureChannel.generateSecret(otherKey);
+
+    // PREPARE NEXT KEY requires an open secure channel
+    response = cmdSet.prepareNextKey();
+    assertEquals(0x6985, response.getSW());
+    cmdSet.autoOpenSecureChannel();
   }
 
   @Test
@@ -305,6 +428,8 @@ public class WalletAppletTest {
     assertEquals(0x9000, response.getSW());
     response = cmdSet.unpair((byte) 5);
     assertEquals(0x6A86, response.getSW());
+    response = cmdSet.unpair((byte) 0x80);
+    assertEquals(0x6A86, response.getSW());
 
     // Unpair spare keyset
     response = cmdSet.unpair(sparePairingIndex);
@@ -315,6 +440,81 @@ public class WalletAppletTest {
     assertEquals(0x6A86, response.getSW());
   }
 
+  @Test
+  @DisplayName("Installation parameters")
+  void installParametersTest() throws Exception {
+    Assumptions.assumeTrue(USE_SIMULATOR);
+
+    // jCardSim does not allow reusing the AID of a failed installation, so each installation uses a different one
+    byte[] aidBytes = Arrays.copyOf(WalletAppletCommandSet.APPLET_AID_BYTES, WalletAppletCommandSet.APPLET_AID_BYTES.length + 1);
+
+    // Invalid number of pairing slots or options
+    aidBytes[aidBytes.length - 1] = 1;
+    AID invalidCount = AIDUtil.create(aidBytes);
+    assertThrows(Exception.class, () -> installApplet(invalidCount, (byte) 0));
+    aidBytes[aidBytes.length - 1] = 2;
+    AID tooManySlots = AIDUtil.create(aidBytes);
+    assertThrows(Exception.class, () -> installApplet(tooManySlots, (byte) (SecureChannel.PAIRING_MAX_CLIENT_COUNT + 1)));
+    aidBytes[aidBytes.length - 1] = 3;
+    AID invalidOptions = AIDUtil.create(aidBytes);
+    assertThrows(Exception.class, () -> installApplet(invalidOptions, (byte) 2, (byte) 0x02));
+    aidBytes[aidBytes.length - 1] = 5;
+    AID tooManyEntries = AIDUtil.create(aidBytes);
+    assertThrows(Exception.class, () -> installApplet(tooManyEntries, (byte) 2, (byte) 0, (byte) (DerivationCache.MAX_ENTRY_COUNT + 1)));
+
+    // 2 pairing slots, no command chaining, no derivation cache
+    aidBytes[aidBytes.length - 1] = 4;
+    installApplet(AIDUtil.create(aidBytes), (byte) 2, (byte) 0, (byte) 0);
+    commandRecorder.fixShortSecureChannelKeys();
+    CommandAPDU select = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_SELECT, 4, 0, aidBytes);
+    byte[] data = apduChannel.transmit(select).getData();
+    WalletAppletCommandSet otherCmdSet = new WalletAppletCommandSet(apduChannel);
+    otherCmdSet.setSecureChannel(new SecureChannelSession(Arrays.copyOfRange(data, 2, data.length)));
+    assertEquals(0x9000, otherCmdSet.init("000000", "123456789012", SHARED_SECRET).getSW());
+    commandRecorder.fixShortSecureChannelKeys();
+
+    byte[] keyData = extractPublicKeyFromSelect(apduChannel.transmit(select).getData());
+    ResponseAPDU response = apduChannel.transmit(new CommandAPDU(0x80 | SecureChannel.CLA_CHAINING, WalletApplet.INS_SIGN, 0, 0, new byte[32]));
+    assertEquals(0x6884, response.getSW());
+
+    // Keys are derived and exported as with the cache
+    otherCmdSet.setSecureChannel(new SecureChannelSession(keyData));
+    otherCmdSet.autoPair(SHARED_SECRET);
+    otherCmdSet.autoOpenSecureChannel();
+    assertEquals(0x9000, otherCmdSet.verifyPIN("000000").getSW());
+    KeyPair keyPair = keypairGenerator().generateKeyPair();
+    byte[] chainCode = new byte[32];
+    new Random().nextBytes(chainCode);
+    assertEquals(0x9000, otherCmdSet.loadKey(keyPair, false, chainCode).getSW());
+
+    byte[] hash = sha256(new byte[8]);
+    byte[] accountPath = new byte[] { (byte) 0x80, 0x00, 0x00, 0x2c, (byte) 0x80, 0x00, 0x00, 0x3c, (byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
+    assertEquals(0x9000, otherCmdSet.deriveKey(accountPath, WalletApplet.DERIVE_P1_SOURCE_MASTER).getSW());
+    DeterministicKey account = deriveKey(keyPair, chainCode, new int[] { 0x8000002C, 0x8000003C, 0x80000000, 0 });
+    verifySignResponse(otherCmdSet.sign(hash), hash, account);
+    assertEquals(0x9000, otherCmdSet.deriveKey(new byte[] { 0x00, 0x00, 0x00, 0x01 }, WalletApplet.DERIVE_P1_SOURCE_MASTER).getSW());
+    verifySignResponse(otherCmdSet.sign(hash), hash, deriveKey(keyPair, chainCode, new int[] { 1 }));
+
+    otherCmdSet.setExtendedLength(true);
+    response = otherCmdSet.exportPublicKeyRange(accountPath, 3, 20);
+    assertEquals(0x9000, response.getSW());
+    byte[] rangeKeys = response.getData();
+    assertEquals(20 * 33, rangeKeys.length);
+
+    for (int i = 0; i < 20; i++) {
+      assertArrayEquals(HDKeyDerivation.deriveChildKey(account, new ChildNumber(3 + i)).getPubKey(), Arrays.copyOfRange(rangeKeys, i * 33, (i + 1) * 33));
+    }
+
+    otherCmdSet.autoUnpair();
+    apduChannel.transmit(select);
+
+    for (int i = 0; i < 2; i++) {
+      new SecureChannelSession(keyData).autoPair(apduChannel, SHARED_SECRET);
+    }
+
+    assertThrows(CardException.class, () -> new SecureChannelSession(keyData).autoPair(apduChannel, SHARED_SECRET));
+  }
+
   @Test
   @DisplayName("GET STATUS command")
   void getStatusTest() throws CardException {
@@ -349,6 +549,53 @@ public class WalletAppletTest {
     assertEquals(0x9000, response.getSW());
     data = response.getData();
     assertEquals(0, data.length);
+
+    // Same responses without allocation, with short and extended APDUs
+    ByteBuffer buffer = ByteBuffer.allocate(SecureChannelSession.APDU_BUFFER_SIZE);
+    response = cmdSet.getStatus(WalletApplet.GET_STATUS_P1_APPLICATION);
+
+    for (boolean extended : new boolean[] { false, true }) {
+      cmdSet.setExtendedLength(extended);
+      buffer.clear();
+      assertEquals(response.getBytes().length, cmdSet.getStatus(WalletApplet.GET_STATUS_P1_APPLICATION, buffer));
+      assertArrayEquals(response.getBytes(), Arrays.copyOf(buffer.array(), buffer.position()));
+    }
+
+    cmdSet.setExtendedLength(false);
+
+    // Performance counters. Since selection: 1 SELECT, 1 OPEN SECURE CHANNEL, 1 MUTUALLY AUTHENTICATE, 9 GET STATUS
+    // (including this one), 2 VERIFY PIN and 1 handshake. The counters since installation include those of the other tests.
+    response = cmdSet.getCounters(true);
+    assertEquals(0x9000, response.getSW());
+    data = response.getData();
+    assertEquals(Counters.SIZE, data.length);
+    assertEquals(1, counter(data, Counters.CMD_SELECT));
+    assertEquals(1, counter(data, Counters.CMD_OPEN_SECURE_CHANNEL));
+    assertEquals(1, counter(data, Counters.CMD_MUTUALLY_AUTHENTICATE));
+    assertEquals(9, counter(data, Counters.CMD_GET_STATUS));
+    assertEquals(2, counter(data, Counters.CMD_VERIFY_PIN));
+    assertEquals(0, counter(data, Counters.CMD_SIGN));
+    assertEquals(0, counter(data, Counters.SIGNATURES));
+    assertEquals(1, counter(data, Counters.SC_HANDSHAKES));
+    assertTrue(counter(data, Counters.SC_BYTES_IN) > 0);
+    assertTrue(counter(data, Counters.SC_BYTES_OUT) > 0);
+
+    response = cmdSet.getCounters(false);
+    assertEquals(0x9000, response.getSW());
+    byte[] totals = response.getData();
+    assertEquals(Counters.SIZE, totals.length);
+
+    for (byte i = 0; i < Counters.COUNT; i++) {
+      assertTrue(counter(totals, i) >= counter(data, i));
+    }
+
+    // Commands are counted whether they succeed or not
+    cmdSet.sign(new byte[32]);
+    response = cmdSet.getCounters(true);
+    assertEquals(0x9000, response.getSW());
+    data = response.getData();
+    assertEquals(1, counter(data, Counters.CMD_SIGN));
+    assertEquals(11, counter(data, Counters.CMD_GET_STATUS));
   }
 
   @Test
@@ -360,6 +607,14 @@ public class WalletAppletTest {
 
     cmdSet.autoOpenSecureChannel();
 
+    // Wrong length, including a correct PIN followed by 256 more bytes, without using a try
+    response = cmdSet.verifyPIN("00000");
+    assertEquals(0x6A80, response.getSW());
+    cmdSet.setExtendedLength(true);
+    response = cmdSet.verifyPIN("000000" + new String(new char[256]).replace('\0', '0'));
+    assertEquals(0x6A80, response.getSW());
+    cmdSet.setExtendedLength(false);
+
     // Wrong PIN
     response = cmdSet.verifyPIN("123456");
     assertEquals(0x63C2, response.getSW());
@@ -416,6 +671,11 @@ public class WalletAppletTest {
     response = cmdSet.changePIN(WalletApplet.CHANGE_PIN_P1_USER_PIN, "7654321");
     assertEquals(0x6A80, response.getSW());
 
+    cmdSet.setExtendedLength(true);
+    response = cmdSet.changePIN(WalletApplet.CHANGE_PIN_P1_USER_PIN, "654321" + new String(new char[256]).replace('\0', '0'));
+    assertEquals(0x6A80, response.getSW());
+    cmdSet.setExtendedLength(false);
+
     // Test wrong PUK formats
     response = cmdSet.changePIN(WalletApplet.CHANGE_PIN_P1_PUK, "210987654a21");
     assertEquals(0x6A80, response.getSW());
@@ -780,6 +1040,38 @@ public class WalletAppletTest {
     assertEquals(0x9000, response.getSW());
     verifyKeyDerivation(keyPair, chainCode, new int[]{1, 0x80000000, 2});
 
+    // 5 levels with mixed hardened and non-hardened keys, then 2 more levels and back to parent
+    response = cmdSet.deriveKey(new byte[]{(byte) 0x80, 0x00, 0x00, 0x2C, (byte) 0x80, 0x00, 0x00, 0x3C, (byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00}, WalletApplet.DERIVE_P1_SOURCE_MASTER);
+    assertEquals(0x9000, response.getSW());
+    verifyKeyDerivation(keyPair, chainCode, new int[]{0x8000002C, 0x8000003C, 0x80000000, 0, 0});
+    response = cmdSet.deriveKey(new byte[]{0x00, 0x00, 0x00, 0x01, (byte) 0x80, 0x00, 0x00, 0x01}, WalletApplet.DERIVE_P1_SOURCE_CURRENT);
+    assertEquals(0x9000, response.getSW());
+    verifyKeyDerivation(keyPair, chainCode, new int[]{0x8000002C, 0x8000003C, 0x80000000, 0, 0, 1, 0x80000001});
+    response = cmdSet.deriveKey(new byte[0], WalletApplet.DERIVE_P1_SOURCE_PARENT);
+    assertEquals(0x9000, response.getSW());
+    verifyKeyDerivation(keyPair, chainCode, new int[]{0x8000002C, 0x8000003C, 0x80000000, 0, 0, 1});
+
+    // Sibling keys from master, reusing cached nodes, with more accounts than cache entries to force evictions
+    byte[] path = new byte[]{(byte) 0x80, 0x00, 0x00, 0x2C, (byte) 0x80, 0x00, 0x00, 0x3C, (byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+
+    for (int i = 0; i < ((DerivationCache.DEFAULT_ENTRY_COUNT + 2) * 2); i++) {
+      int account = (i / 2) % (DerivationCache.DEFAULT_ENTRY_COUNT + 1);
+      path[11] = (byte) account;
+      path[19] = (byte) i;
+      response = cmdSet.deriveKey(path, WalletApplet.DERIVE_P1_SOURCE_MASTER);
+      assertEquals(0x9000, response.getSW());
+      verifyKeyDerivation(keyPair, chainCode, new int[]{0x8000002C, 0x8000003C, 0x80000000 | account, 0, i});
+    }
+
+    // Cached nodes are not reused after loading a new key
+    keyPair = g.generateKeyPair();
+    new Random().nextBytes(chainCode);
+    response = cmdSet.loadKey(keyPair, false, chainCode);
+    assertEquals(0x9000, response.getSW());
+    response = cmdSet.deriveKey(path, WalletApplet.DERIVE_P1_SOURCE_MASTER);
+    assertEquals(0x9000, response.getSW());
+    verifyKeyDerivation(keyPair, chainCode, new int[]{0x8000002C, 0x8000003C, 0x80000000, 0, 9});
+
     // Reset master key
     response = cmdSet.deriveKey(new byte[0]);
     assertEquals(0x9000, response.getSW());
@@ -796,6 +1088,10 @@ public class WalletAppletTest {
     ResponseAPDU response = cmdSet.sign(hash);
     assertEquals(0x6985, response.getSW());
 
+    // Unprotected data which does not fit in a short APDU is rejected before sending
+    ByteBuffer buffer = ByteBuffer.allocate(SecureChannelSession.SHORT_APDU_BUFFER_SIZE);
+    assertThrows(IllegalArgumentException.class, () -> cmdSet.signBatch(ByteBuffer.allocate(320), WalletApplet.SIGN_P2_PUB_KEY_OMITTED, buffer));
+
     cmdSet.autoOpenSecureChannel();
 
     // Security condition violation: PIN not verified
@@ -826,6 +1122,176 @@ public class WalletAppletTest {
     signature.update(data);
     assertTrue(signature.verify(sig));
     assertFalse(isMalleable(sig));
+
+    // Sign returning the compressed public key or no public key at all
+    byte[] compressedKey = ECKey.fromPublicOnly(keyData).getPubKeyPoint().getEncoded(true);
+    response = cmdSet.sign(hash, WalletApplet.SIGN_P2_PUB_KEY_COMPRESSED);
+    assertEquals(0x9000, response.getSW());
+    sig = response.getData();
+    assertArrayEquals(compressedKey, extractPublicKeyFromSignature(sig));
+    signature.update(data);
+    assertTrue(signature.verify(extractSignature(sig)));
+
+    // Same without allocation
+    buffer.clear();
+    response = new ResponseAPDU(Arrays.copyOf(buffer.array(), cmdSet.sign(ByteBuffer.wrap(hash), WalletApplet.SIGN_P2_PUB_KEY_COMPRESSED, buffer)));
+    assertEquals(0x9000, response.getSW());
+    sig = response.getData();
+    assertArrayEquals(compressedKey, extractPublicKeyFromSignature(sig));
+    signature.update(data);
+    assertTrue(signature.verify(extractSignature(sig)));
+
+    response = cmdSet.sign(hash, WalletApplet.SIGN_P2_PUB_KEY_OMITTED);
+    assertEquals(0x9000, response.getSW());
+    sig = response.getData();
+    assertEquals(WalletApplet.TLV_SIGNATURE_TEMPLATE, sig[0]);
+    assertEquals(sig.length - 3, sig[2]);
+    signature.update(data);
+    assertTrue(signature.verify(Arrays.copyOfRange(sig, 3, sig.length)));
+
+    response = cmdSet.sign(hash, (byte) (WalletApplet.SIGN_P2_PUB_KEY_OMITTED + 1));
+    assertEquals(0x6A86, response.getSW());
+
+    // Recovery id computed on the host, with the public key taken from the template or supplied separately
+    Sign.SignatureData sigData = signMessage(data);
+    assertEquals(new BigInteger(1, Arrays.copyOfRange(keyData, 1, keyData.length)), Sign.signedMessageToKey(data, sigData));
+
+    byte[] messageHash = Hash.sha3(data);
+    response = cmdSet.sign(messageHash, WalletApplet.SIGN_P2_PUB_KEY_OMITTED);
+    assertEquals(0x9000, response.getSW());
+    RecoverableSignature recSig = RecoverableSignature.fromSignTemplate(response.getData(), messageHash, compressedKey);
+    sigData = new Sign.SignatureData(recSig.getV(), Numeric.toBytesPadded(recSig.getR(), 32), Numeric.toBytesPadded(recSig.getS(), 32));
+    assertEquals(new BigInteger(1, Arrays.copyOfRange(keyData, 1, keyData.length)), Sign.signedMessageToKey(data, sigData));
+
+    // Batch signing: wrong data length
+    response = cmdSet.signBatch(new byte[0]);
+    assertEquals(0x6A80, response.getSW());
+    response = cmdSet.signBatch(Arrays.copyOf(hash, 33));
+    assertEquals(0x6A80, response.getSW());
+
+    // Batch signing: too many hashes for a short response, 2 fit with the public key and 3 without
+    response = cmdSet.signBatch(new byte[3 * 32]);
+    assertEquals(0x6A80, response.getSW());
+    response = cmdSet.signBatch(new byte[3 * 32], WalletApplet.SIGN_P2_PUB_KEY_COMPRESSED);
+    assertEquals(0x6A80, response.getSW());
+    response = cmdSet.signBatch(new byte[4 * 32], WalletApplet.SIGN_P2_PUB_KEY_OMITTED);
+    assertEquals(0x6A80, response.getSW());
+
+    // Correctly sign a batch of hashes
+    byte[][] batchData = new byte[2][];
+    byte[] batch = new byte[batchData.length * 32];
+
+    for (int i = 0; i < batchData.length; i++) {
+      batchData[i] = ("batch data " + i).getBytes();
+      System.arraycopy(sha256(batchData[i]), 0, batch, i * 32, 32);
+    }
+
+    response = cmdSet.signBatch(batch);
+    assertEquals(0x9000, response.getSW());
+    byte[] batchResponse = response.getData();
+    assertEquals(WalletApplet.TLV_PUB_KEY, batchResponse[0]);
+    assertArrayEquals(keyData, Arrays.copyOfRange(batchResponse, 2, 2 + batchResponse[1]));
+
+    int off = 2 + batchResponse[1];
+
+    for (byte[] batchDatum : batchData) {
+      assertEquals(WalletApplet.TLV_SIGNATURE_TEMPLATE, batchResponse[off]);
+      sig = Arrays.copyOfRange(batchResponse, off + 2, off + 2 + batchResponse[off + 1]);
+      signature.update(batchDatum);
+      assertTrue(signature.verify(sig));
+      assertFalse(isMalleable(sig));
+      off += 2 + batchResponse[off + 1];
+    }
+
+    assertEquals(batchResponse.length, off);
+
+    response = cmdSet.signBatch(batch, WalletApplet.SIGN_P2_PUB_KEY_COMPRESSED);
+    verifyBatchSignResponse(response, compressedKey, batchData, signature);
+    response = cmdSet.signBatch(batch, WalletApplet.SIGN_P2_PUB_KEY_OMITTED);
+    verifyBatchSignResponse(response, null, batchData, signature);
+
+    batchData = Arrays.copyOf(batchData, 3);
+    batchData[2] = "batch data 2".getBytes();
+    batch = Arrays.copyOf(batch, batchData.length * 32);
+    System.arraycopy(sha256(batchData[2]), 0, batch, 64, 32);
+    response = cmdSet.signBatch(batch, WalletApplet.SIGN_P2_PUB_KEY_OMITTED);
+    verifyBatchSignResponse(response, null, batchData, signature);
+
+    // With extended length APDUs the batch can be larger than a short APDU allows
+    byte[] largeBatch = new byte[20 * 32];
+    assertThrows(IllegalArgumentException.class, () -> cmdSet.signBatch(largeBatch));
+    cmdSet.setExtendedLength(true);
+    batchData = new byte[20][];
+    batch = new byte[batchData.length * 32];
+
+    for (int i = 0; i < batchData.length; i++) {
+      batchData[i] = ("extended batch data " + i).getBytes();
+      System.arraycopy(sha256(batchData[i]), 0, batch, i * 32, 32);
+    }
+
+    response = cmdSet.signBatch(batch);
+    verifyBatchSignResponse(response, keyData, batchData, signature);
+    cmdSet.setExtendedLength(false);
+
+    // With command chaining the batch is limited by the size of the chain buffer
+    cmdSet.setCommandChaining(true);
+    batchData = new byte[(SecureChannel.SC_CHAIN_BUFFER_SIZE - (SecureChannel.SC_OUT_OFFSET + WalletApplet.EC_PUB_KEY_SIZE + 2 + SecureChannel.SC_BLOCK_SIZE)) / (WalletApplet.SIGN_TEMPLATE_MAX_SIZE + 32)][];
+    batch = new byte[batchData.length * 32];
+
+    for (int i = 0; i < batchData.length; i++) {
+      batchData[i] = ("chained batch data " + i).getBytes();
+      System.arraycopy(sha256(batchData[i]), 0, batch, i * 32, 32);
+    }
+
+    response = cmdSet.signBatch(batch);
+    verifyBatchSignResponse(response, keyData, batchData, signature);
+    response = cmdSet.signBatch(batch, WalletApplet.SIGN_P2_PUB_KEY_OMITTED);
+    verifyBatchSignResponse(response, null, batchData, signature);
+    response = cmdSet.signBatch(Arrays.copyOf(batch, batch.length + 32));
+    assertEquals(0x6A80, response.getSW());
+    response = cmdSet.sign(hash);
+    assertEquals(0x9000, response.getSW());
+    cmdSet.setCommandChaining(false);
+
+    // Command chaining errors
+    response = apduChannel.transmit(new CommandAPDU(0x80 | SecureChannel.CLA_CHAINING, WalletApplet.INS_SIGN, WalletApplet.SIGN_P1_BATCH, 0, batch));
+    assertEquals(0x9000, response.getSW());
+    response = apduChannel.transmit(new CommandAPDU(0x80, WalletApplet.INS_GET_STATUS, 0, 0, batch));
+    assertEquals(0x6883, response.getSW());
+    response = apduChannel.transmit(new CommandAPDU(ISO7816.CLA_ISO7816, WalletApplet.INS_GET_RESPONSE, 0, 0, 256));
+    assertEquals(0x6985, response.getSW());
+    response = cmdSet.sign(hash);
+    assertEquals(0x9000, response.getSW());
+
+    // Sign with a derived key, without changing the current key
+    byte[] chainCode = new byte[32];
+    new Random().nextBytes(chainCode);
+    response = cmdSet.loadKey(keyPair, false, chainCode);
+    assertEquals(0x9000, response.getSW());
+    response = cmdSet.deriveKey(new byte[] {0x00, 0x00, 0x00, 0x01});
+    assertEquals(0x9000, response.getSW());
+
+    response = cmdSet.signWithPath(Arrays.copyOf(hash, 31), new byte[0], WalletApplet.DERIVE_P1_SOURCE_MASTER);
+    assertEquals(0x6A80, response.getSW());
+    response = cmdSet.signWithPath(hash, new byte[] {0x00, 0x00, 0x02}, WalletApplet.DERIVE_P1_SOURCE_MASTER);
+    assertEquals(0x6A80, response.getSW());
+    response = cmdSet.signWithPath(hash, new byte[WalletApplet.KEY_PATH_MAX_DEPTH * 4], WalletApplet.DERIVE_P1_SOURCE_CURRENT);
+    assertEquals(0x6A80, response.getSW());
+    response = cmdSet.signWithPath(hash, new byte[] {0x00, 0x00, 0x00, 0x02}, WalletApplet.DERIVE_P1_SOURCE_MASK);
+    assertEquals(0x6A86, response.getSW());
+
+    response = cmdSet.signWithPath(hash, new byte[] {0x00, 0x00, 0x00, 0x01, (byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x02}, WalletApplet.DERIVE_P1_SOURCE_MASTER);
+    verifySignResponse(response, hash, deriveKey(keyPair, chainCode, new int[] {1, 0x80000000, 2}));
+    response = cmdSet.signWithPath(hash, new byte[] {0x00, 0x00, 0x00, 0x02}, WalletApplet.DERIVE_P1_SOURCE_CURRENT);
+    verifySignResponse(response, hash, deriveKey(keyPair, chainCode, new int[] {1, 2}));
+    response = cmdSet.signWithPath(hash, new byte[] {0x00, 0x00, 0x00, 0x02}, WalletApplet.DERIVE_P1_SOURCE_CURRENT, WalletApplet.SIGN_P2_PUB_KEY_COMPRESSED);
+    assertEquals(0x9000, response.getSW());
+    assertArrayEquals(deriveKey(keyPair, chainCode, new int[] {1, 2}).getPubKey(), extractPublicKeyFromSignature(response.getData()));
+    response = cmdSet.signWithPath(hash, new byte[] {0x00, 0x00, 0x00, 0x03}, WalletApplet.DERIVE_P1_SOURCE_PARENT);
+    verifySignResponse(response, hash, deriveKey(keyPair, chainCode, new int[] {3}));
+    response = cmdSet.signWithPath(hash, new byte[0], WalletApplet.DERIVE_P1_SOURCE_MASTER);
+    verifySignResponse(response, hash, deriveKey(keyPair, chainCode, new int[0]));
+    verifyKeyDerivation(keyPair, chainCode, new int[] {1});
   }
 
   @Test
@@ -877,6 +1343,16 @@ public class WalletAppletTest {
     response = cmdSet.sign(hash);
     assertEquals(0x9000, response.getSW());
 
+    // Verify that signing with a derived key follows the same rules
+    response = cmdSet.signWithPath(hash, new byte[] {0x00, 0x00, 0x00, 0x02, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x03}, WalletApplet.DERIVE_P1_SOURCE_MASTER);
+    assertEquals(0x6985, response.getSW());
+    response = cmdSet.signWithPath(hash, new byte[] {0x00, 0x00, 0x00, 0x02}, WalletApplet.DERIVE_P1_SOURCE_CURRENT);
+    assertEquals(0x6985, response.getSW());
+    response = cmdSet.signWithPath(hash, new byte[] {0x00, 0x00, 0x00, 0x02}, WalletApplet.DERIVE_P1_SOURCE_PARENT);
+    assertEquals(0x9000, response.getSW());
+    response = cmdSet.signWithPath(hash, new byte[] {0x00, 0x00, 0x00, 0x02, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x02}, WalletApplet.DERIVE_P1_SOURCE_MASTER);
+    assertEquals(0x9000, response.getSW());
+
     // Verify changing path
     response = cmdSet.verifyPIN("000000");
     assertEquals(0x9000, response.getSW());
@@ -958,6 +1434,96 @@ public class WalletAppletTest {
     byte[] keyTemplate = response.getData();
     verifyExportedKey(keyTemplate, keyPair, chainCode, new int[] { 0x8000002c, 0x8000003c, 0x80000000, 0x00000000 }, true);
 
+    // Export current extended public key and derive receive addresses on the host
+    response = cmdSet.exportExtendedPublicKey(WalletApplet.EXPORT_KEY_P1_ANY);
+    assertEquals(0x9000, response.getSW());
+    keyTemplate = response.getData();
+    assertEquals(65 + 2 + WalletApplet.CHAIN_CODE_SIZE + 2, keyTemplate[1]);
+    ExtendedPublicKey xpub = ExtendedPublicKey.fromKeyTemplate(keyTemplate);
+    DeterministicKey account = deriveKey(keyPair, chainCode, new int[] { 0x8000002c, 0x8000003c, 0x80000000, 0x00000000 });
+    assertArrayEquals(account.getPubKeyPoint().getEncoded(false), xpub.getPublicKey(false));
+    assertArrayEquals(account.getChainCode(), xpub.getChainCode());
+
+    for (int i = 0; i < 20; i++) {
+      assertArrayEquals(HDKeyDerivation.deriveChildKey(account, new ChildNumber(i)).getPubKey(), xpub.derive(i).getPublicKey(true));
+    }
+
+    assertArrayEquals(HDKeyDerivation.deriveChildKey(HDKeyDerivation.deriveChildKey(account, new ChildNumber(7)), new ChildNumber(3)).getPubKey(), xpub.derive(new int[] { 7, 3 }).getPublicKey(true));
+    assertThrows(IllegalArgumentException.class, () -> xpub.derive(0x80000000));
+
+    // Export a range of public keys: wrong data
+    byte[] accountPath = new byte[] { (byte) 0x80, 0x00, 0x00, 0x2c, (byte) 0x80, 0x00, 0x00, 0x3c, (byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
+    response = cmdSet.exportPublicKeyRange(accountPath, 0, 0);
+    assertEquals(0x6A80, response.getSW());
+    response = cmdSet.exportPublicKeyRange(Arrays.copyOf(accountPath, 15), 0, 1);
+    assertEquals(0x6A80, response.getSW());
+    response = cmdSet.exportPublicKeyRange(accountPath, 0x7FFFFFFF, 2);
+    assertEquals(0x6A80, response.getSW());
+
+    // Export a range of public keys spanning several commands
+    int rangeStart = 3;
+    int rangeCount = 20;
+    ByteArrayOutputStream range = new ByteArrayOutputStream();
+
+    while (range.size() < (rangeCount * 33)) {
+      int done = range.size() / 33;
+      response = cmdSet.exportPublicKeyRange(accountPath, rangeStart + done, rangeCount - done);
+      assertEquals(0x9000, response.getSW());
+      assertTrue(response.getData().length > 0);
+      assertTrue(response.getData().length <= SecureChannel.SC_MAX_PLAIN_LENGTH);
+      range.write(response.getData());
+    }
+
+    byte[] rangeKeys = range.toByteArray();
+    assertEquals(rangeCount * 33, rangeKeys.length);
+
+    for (int i = 0; i < rangeCount; i++) {
+      assertArrayEquals(xpub.derive(rangeStart + i).getPublicKey(true), Arrays.copyOfRange(rangeKeys, i * 33, (i + 1) * 33));
+    }
+
+    // With extended length APDUs the whole range is sent in a single response
+    cmdSet.setExtendedLength(true);
+    rangeCount = 40;
+    response = cmdSet.exportPublicKeyRange(accountPath, rangeStart, rangeCount);
+    assertEquals(0x9000, response.getSW());
+    rangeKeys = response.getData();
+    assertEquals(rangeCount * 33, rangeKeys.length);
+
+    for (int i = 0; i < rangeCount; i++) {
+      assertArrayEquals(xpub.derive(rangeStart + i).getPublicKey(true), Arrays.copyOfRange(rangeKeys, i * 33, (i + 1) * 33));
+    }
+
+    // With command chaining the response is limited by the chain buffer and retrieved with GET RESPONSE
+    cmdSet.setCommandChaining(true);
+    int chainedCount = (SecureChannel.SC_CHAIN_BUFFER_SIZE - (SecureChannel.SC_OUT_OFFSET + 65)) / 33 + 1;
+    response = cmdSet.exportPublicKeyRange(accountPath, rangeStart, rangeCount);
+    assertEquals(0x9000, response.getSW());
+    rangeKeys = response.getData();
+    assertEquals(chainedCount * 33, rangeKeys.length);
+    assertTrue(rangeKeys.length > 256);
+
+    for (int i = 0; i < chainedCount; i++) {
+      assertArrayEquals(xpub.derive(rangeStart + i).getPublicKey(true), Arrays.copyOfRange(rangeKeys, i * 33, (i + 1) * 33));
+    }
+
+    cmdSet.setCommandChaining(false);
+
+    // Hardened range of children of the master key
+    response = cmdSet.exportPublicKeyRange(new byte[0], 0x80000000, 3);
+    assertEquals(0x9000, response.getSW());
+    assertEquals(3 * 33, response.getData().length);
+
+    for (int i = 0; i < 3; i++) {
+      assertArrayEquals(deriveKey(keyPair, chainCode, new int[] { 0x80000000 + i }).getPubKey(), Arrays.copyOfRange(response.getData(), i * 33, (i + 1) * 33));
+    }
+
+    cmdSet.setExtendedLength(false);
+
+    // The current key has not changed
+    response = cmdSet.exportKey(WalletApplet.EXPORT_KEY_P1_ANY, true);
+    assertEquals(0x9000, response.getSW());
+    verifyExportedKey(response.getData(), keyPair, chainCode, new int[] { 0x8000002c, 0x8000003c, 0x80000000, 0x00000000 }, true);
+
     response = cmdSet.deriveKey(new byte[] {(byte) 0xC0, 0x00, 0x00, 0x01}, WalletApplet.DERIVE_P1_SOURCE_CURRENT);
     assertEquals(0x9000, response.getSW());
 
@@ -982,6 +1548,12 @@ public class WalletAppletTest {
     assertEquals(0x9000, response.getSW());
     response = cmdSet.exportKey(WalletApplet.EXPORT_KEY_P1_HIGH, false);
     assertEquals(0x6985, response.getSW());
+
+    // Security condition violation: extended public key of a non-extended key
+    response = cmdSet.loadKey(keyPair);
+    assertEquals(0x9000, response.getSW());
+    response = cmdSet.exportExtendedPublicKey(WalletApplet.EXPORT_KEY_P1_ANY);
+    assertEquals(0x6985, response.getSW());
   }
 
   @Test
@@ -1030,11 +1602,306 @@ public class WalletAppletTest {
     assertFalse(ethSendTransaction.hasError());
   }
 
+  @Test
+  @DisplayName("Session pool")
+  void sessionPoolTest() throws Exception {
+    WalletAppletPool pool = new WalletAppletPool(Collections.singletonList(apduChannel), SHARED_SECRET, "000000");
+
+    // Concurrent leases are served one at a time
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<Integer>> results = new ArrayList<>();
+
+    for (int i = 0; i < 8; i++) {
+      results.add(executor.submit(() -> {
+        try (WalletAppletPool.Lease lease = pool.acquire()) {
+          return lease.getCommandSet().getStatus(WalletApplet.GET_STATUS_P1_APPLICATION).getSW();
+        }
+      }));
+    }
+
+    for (Future<Integer> result : results) {
+      assertEquals(0x9000, (int) result.get());
+    }
+
+    executor.shutdown();
+
+    // Session closed by another client, detected by the health check and reopened
+    cmdSet.select();
+    assertEquals(0, pool.checkHealth());
+    assertEquals(1, pool.checkHealth());
+
+    // Session closed by another client, invalidated by the lease holder
+    cmdSet.select();
+
+    try (WalletAppletPool.Lease lease = pool.acquire()) {
+      assertEquals(0x6985, lease.getCommandSet().getStatus(WalletApplet.GET_STATUS_P1_APPLICATION).getSW());
+      lease.invalidate();
+    }
+
+    try (WalletAppletPool.Lease lease = pool.acquire()) {
+      assertEquals(0x9000, lease.getCommandSet().getStatus(WalletApplet.GET_STATUS_P1_APPLICATION).getSW());
+    }
+
+    // Pairing removed by another client, the card is paired again
+    cmdSet.select();
+    cmdSet.autoOpenSecureChannel();
+    assertEquals(0x9000, cmdSet.verifyPIN("000000").getSW());
+
+    for (byte i = 0; i < 5; i++) {
+      if (i != secureChannel.getPairingIndex()) {
+        assertEquals(0x9000, cmdSet.unpair(i).getSW());
+      }
+    }
+
+    assertEquals(0, pool.checkHealth());
+
+    try (WalletAppletPool.Lease lease = pool.acquire()) {
+      assertEquals(0x9000, lease.getCommandSet().getStatus(WalletApplet.GET_STATUS_P1_APPLICATION).getSW());
+    }
+
+    // Closing the pool frees its pairing slot
+    pool.close();
+    byte[] data = cmdSet.select().getData();
+    assertEquals(4, data[28 + data[21]]);
+  }
+
+  @Test
+  @DisplayName("Pipelined commands")
+  void pipelinedCommandsTest() throws Exception {
+    cmdSet.autoOpenSecureChannel();
+    assertEquals(0x9000, cmdSet.verifyPIN("000000").getSW());
+    KeyPair keyPair = keypairGenerator().generateKeyPair();
+    assertEquals(0x9000, cmdSet.loadKey(keyPair).getSW());
+    byte[] publicKey = ((ECPublicKey) keyPair.getPublic()).getQ().getEncoded(false);
+
+    try (AsyncWalletAppletCommandSet async = new AsyncWalletAppletCommandSet(cmdSet)) {
+      // Each hash is computed while the previous ones are being signed, the recovery ids while the next ones are
+      List<CompletableFuture<RecoverableSignature>> signatures = new ArrayList<>();
+
+      for (int i = 0; i < 8; i++) {
+        byte[] hash = sha256(("message " + i).getBytes());
+        signatures.add(async.sign(hash, WalletApplet.SIGN_P2_PUB_KEY_OMITTED).thenApplyAsync(response -> {
+          assertEquals(0x9000, response.getSW());
+          return RecoverableSignature.fromSignTemplate(response.getData(), hash, publicKey);
+        }));
+      }
+
+      for (CompletableFuture<RecoverableSignature> signature : signatures) {
+        assertTrue(signature.get().getRecId() < 4);
+      }
+
+      // Errors are reported through the future
+      ExecutionException e = assertThrows(ExecutionException.class, () -> async.submit(c -> {
+        throw new CardException("Card removed");
+      }).get());
+      assertTrue(e.getCause() instanceof CardException);
+
+      // Commands run in submission order
+      async.submit(c -> c.verifyPIN("123456"));
+      assertEquals(0x63C1, async.verifyPIN("123456").get().getSW());
+      assertEquals(0x9000, async.verifyPIN("000000").get().getSW());
+    }
+  }
+
+  @Test
+  @DisplayName("EEPROM writes")
+  void eepromWritesTest() throws Exception {
+    Assumptions.assumeTrue(USE_SIMULATOR);
+
+    cmdSet.autoOpenSecureChannel();
+    assertEquals(0x9000, cmdSet.verifyPIN("000000").getSW());
+    commandRecorder.clear();
+
+    cmdSet.autoUnpair();
+    cmdSet.select();
+    cmdSet.autoPair(SHARED_SECRET);
+    cmdSet.autoOpenSecureChannel();
+    assertEquals(0x9000, cmdSet.verifyPIN("000000").getSW());
+
+    byte[] chainCode = new byte[32];
+    KeyPair keyPair = keypairGenerator().generateKeyPair();
+    assertEquals(0x9000, cmdSet.loadKey(keyPair, false, chainCode).getSW());
+    assertEquals(0x9000, cmdSet.loadKey(new byte[WalletApplet.BIP39_SEED_SIZE], WalletApplet.LOAD_KEY_P1_SEED).getSW());
+    byte[] path = new byte[] { (byte) 0x80, 0x00, 0x00, 0x2C, (byte) 0x80, 0x00, 0x00, 0x3C, (byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
+    assertEquals(0x9000, cmdSet.deriveKey(path, WalletApplet.DERIVE_P1_SOURCE_MASTER).getSW());
+    assertEquals(0x9000, cmdSet.setPinlessPath(path).getSW());
+    assertEquals(0x9000, cmdSet.sign(new byte[32]).getSW());
+    assertEquals(0x9000, cmdSet.removeKey().getSW());
+
+    // Budgets are the current values. Any command can also flush the performance counters.
+    int flush = Counters.SIZE;
+    commandRecorder.assertWithinBudget(SecureChannel.INS_UNPAIR, 68 + flush, 0, 1);
+    commandRecorder.assertWithinBudget(SecureChannel.INS_PAIR, 37 + flush, 0, 1);
+    commandRecorder.assertWithinBudget(SecureChannel.INS_OPEN_SECURE_CHANNEL, flush, 0, 0);
+    commandRecorder.assertWithinBudget(SecureChannel.INS_MUTUALLY_AUTHENTICATE, flush, 0, 0);
+    commandRecorder.assertWithinBudget(WalletApplet.INS_VERIFY_PIN, flush, 0, 0);
+    commandRecorder.assertWithinBudget(WalletApplet.INS_LOAD_KEY, 288 + flush, 4, 1);
+    commandRecorder.assertWithinBudget(WalletApplet.INS_DERIVE_KEY, 449 + flush, 5, 1);
+    commandRecorder.assertWithinBudget(WalletApplet.INS_SET_PINLESS_PATH, 7 + flush, 0, 1);
+    commandRecorder.assertWithinBudget(WalletApplet.INS_SIGN, flush, 0, 0);
+    commandRecorder.assertWithinBudget(WalletApplet.INS_REMOVE_KEY, 566 + flush, 7, 0);
+
+    // A requested resumption ticket is written once, resuming only updates its counter
+    commandRecorder.clear();
+    cmdSet.select();
+    cmdSet.autoOpenSecureChannel(true);
+    commandRecorder.assertWithinBudget(SecureChannel.INS_MUTUALLY_AUTHENTICATE, 33 + flush, 0, 0);
+    commandRecorder.clear();
+    cmdSet.select();
+    cmdSet.autoResumeSecureChannel();
+    commandRecorder.assertWithinBudget(SecureChannel.INS_OPEN_SECURE_CHANNEL, flush, 0, 0);
+    commandRecorder.assertWithinBudget(SecureChannel.INS_MUTUALLY_AUTHENTICATE, 1 + flush, 0, 0);
+  }
+
+  @Test
+  @DisplayName("Card timing estimate")
+  void cardTimingEstimateTest() throws Exception {
+    Assumptions.assumeTrue(USE_SIMULATOR);
+
+    // The ciphers and the MAC are initialized once by the handshake and never by the protected commands
+    commandRecorder.clear();
+    cmdSet.autoOpenSecureChannel();
+    assertEquals(0x9000, cmdSet.verifyPIN("000000").getSW());
+
+    for (CommandRecorder.Entry e : commandRecorder.getEntries()) {
+      assertEquals(e.getIns() == SecureChannel.INS_OPEN_SECURE_CHANNEL ? 3 : 0, e.getCryptoInits());
+    }
+
+    assertEquals(0x9000, cmdSet.loadKey(keypairGenerator().generateKeyPair(), false, new byte[32]).getSW());
+    byte[] path = new byte[] { (byte) 0x80, 0x00, 0x00, 0x2C, (byte) 0x80, 0x00, 0x00, 0x3C, (byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
+    assertEquals(0x9000, cmdSet.deriveKey(path, WalletApplet.DERIVE_P1_SOURCE_MASTER).getSW());
+
+    commandRecorder.clear();
+    assertEquals(0x9000, cmdSet.sign(new byte[32]).getSW());
+    List<CommandRecorder.Entry> sign = commandRecorder.getEntries();
+    assertEquals(1, sign.size());
+    assertEquals(1, sign.get(0).getOperations(Counters.SIGNATURES));
+    assertEquals(0, sign.get(0).getOperations(Counters.CKD_STEPS));
+    assertEquals(0, sign.get(0).getCryptoInits());
+
+    commandRecorder.clear();
+    assertEquals(0x9000, cmdSet.signWithPath(new byte[32], new byte[] { 0x00, 0x00, 0x00, 0x01 }, WalletApplet.DERIVE_P1_SOURCE_PARENT).getSW());
+    List<CommandRecorder.Entry> signWithPath = commandRecorder.getEntries();
+    assertEquals(1, signWithPath.get(0).getOperations(Counters.SIGNATURES));
+    assertEquals(1, signWithPath.get(0).getOperations(Counters.CKD_STEPS));
+
+    // Deriving on the fly costs at least one HMAC more than signing with the current key
+    CardCostModel model = CardCostModel.fromSystemProperty();
+    double hmac = model.getCost(model.getCost(CardCostModel.NATIVE_HMAC_SHA512) != 0 ? CardCostModel.HMAC_SHA512 : CardCostModel.HMAC_SHA512_SOFTWARE);
+    double signTime = model.estimate(sign);
+    assertTrue(signTime >= model.getCost(CardCostModel.APDU) + model.getCost(CardCostModel.SIGNATURE));
+    assertTrue(model.estimate(signWithPath) >= signTime + hmac);
+
+    // Profiles override the defaults
+    model = new CardCostModel();
+    Properties profile = new Properties();
+    profile.setProperty(CardCostModel.NATIVE_HMAC_SHA512, "1");
+    profile.setProperty(CardCostModel.INS_PREFIX + "C0", "1000");
+    CardCostModel nativeModel = new CardCostModel(profile);
+    double delta = model.getCost(CardCostModel.HMAC_SHA512_SOFTWARE) - model.getCost(CardCostModel.HMAC_SHA512) - 1000;
+    assertEquals(model.estimate(signWithPath) - delta, nativeModel.estimate(signWithPath), 0.001);
+  }
+
+  @Test
+  @DisplayName("Trace replay")
+  void traceReplayTest() throws Exception {
+    Assumptions.assumeTrue(USE_SIMULATOR);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ApduTrace.Writer trace = new ApduTrace.Writer(out);
+    cmdSet.setTrace(trace);
+
+    byte[] path = new byte[] { (byte) 0x80, 0x00, 0x00, 0x2C, (byte) 0x80, 0x00, 0x00, 0x3C, (byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
+    cmdSet.select();
+    cmdSet.autoOpenSecureChannel();
+    assertEquals(0x63C2, cmdSet.verifyPIN("123456").getSW());
+    assertEquals(0x9000, cmdSet.verifyPIN("000000").getSW());
+    assertEquals(0x9000, cmdSet.generateMnemonic(4).getSW());
+    assertEquals(0x9000, cmdSet.loadKey(keypairGenerator().generateKeyPair(), false, new byte[32]).getSW());
+    assertEquals(0x9000, cmdSet.loadKey(new byte[WalletApplet.BIP39_SEED_SIZE], WalletApplet.LOAD_KEY_P1_SEED).getSW());
+    assertEquals(0x9000, cmdSet.deriveKey(path, WalletApplet.DERIVE_P1_SOURCE_MASTER).getSW());
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0x9000, cmdSet.sign(new byte[32]).getSW());
+    }
+
+    assertEquals(0x9000, cmdSet.exportKey(WalletApplet.EXPORT_KEY_P1_ANY, true).getSW());
+    cmdSet.select();
+    cmdSet.autoResumeSecureChannel();
+    assertEquals(0x9000, cmdSet.getStatus(WalletApplet.GET_STATUS_P1_APPLICATION).getSW());
+
+    cmdSet.setTrace(null);
+    trace.close();
+
+    List<ApduTrace.Record> records = TraceReplay.readAll(new ApduTrace.Reader(new ByteArrayInputStream(out.toByteArray())));
+    assertEquals(17, records.size());
+    assertEquals(ApduTrace.RAW, records.get(0).getType());
+    assertEquals(ApduTrace.PROTECTED, records.get(3).getType());
+
+    // PINs and mnemonics are redacted, the lengths are kept
+    assertEquals(WalletApplet.INS_VERIFY_PIN, records.get(4).getIns());
+    assertArrayEquals(new byte[6], records.get(4).getCommandData());
+    assertEquals(WalletApplet.INS_GENERATE_MNEMONIC, records.get(5).getIns());
+    assertArrayEquals(new byte[24], records.get(5).getResponseData());
+
+    // Replaying with the same seed gives the same random output, replaying with another one does not
+    List<ResponseAPDU> first = replay(records, 42);
+    List<ResponseAPDU> second = replay(records, 42);
+    List<ResponseAPDU> other = replay(records, 43);
+    assertArrayEquals(first.get(5).getData(), second.get(5).getData());
+    assertFalse(Arrays.equals(first.get(5).getData(), other.get(5).getData()));
+  }
+
+  @Test
+  @DisplayName("Load generator")
+  void loadGeneratorTest() throws Exception {
+    Assumptions.assumeTrue(USE_SIMULATOR);
+
+    // Values are reported within the precision of the histogram
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    for (int i = 1; i <= 100000; i++) {
+      histogram.record(i);
+    }
+
+    assertEquals(100000, histogram.getTotalCount());
+    assertEquals(1, histogram.getMin());
+    assertEquals(100000, histogram.getMax());
+    assertEquals(50000.5, histogram.getMean(), 0.001);
+    assertEquals(50000, histogram.getValueAtPercentile(50), 50000 / 64);
+    assertEquals(99000, histogram.getValueAtPercentile(99), 99000 / 64);
+    assertEquals(100000, histogram.getValueAtPercentile(100));
+
+    LoadGenerator generator = new LoadGenerator(2, 3);
+    generator.setReopenInterval(5);
+    generator.setRecordCommands(true);
+    LoadGenerator.Result result = generator.run(200, 1000, TimeUnit.MILLISECONDS);
+
+    assertTrue(result.getSignatures() > 0);
+    assertTrue(result.getSignaturesPerSecond() > 0);
+    assertTrue(result.getLatencies(LoadGenerator.REOPEN).getTotalCount() > 0);
+
+    for (int i = LoadGenerator.DERIVE; i <= LoadGenerator.REOPEN; i++) {
+      assertEquals(0, result.getErrors(i));
+    }
+
+    // Only the commands of the measurement are recorded, except those of threads waiting for a card when it started
+    long signatures = 0;
+
+    for (CommandRecorder recorder : generator.getRecorders()) {
+      for (CommandRecorder.Entry e : recorder.getEntries()) {
+        signatures += e.getOperations(Counters.SIGNATURES);
+      }
+    }
+
+    assertEquals(result.getSignatures(), signatures, 3);
+  }
+
   @Test
   @DisplayName("Performance Test")
   @Tag("manual")
   void performanceTest() throws Exception {
-    long time, deriveAccount = 0, deriveParent = 0, deriveParentHardened = 0;
+    long time, deriveAccount = 0, deriveParent = 0, deriveParentHardened = 0, protectedCommand = 0;
     final long SAMPLE_COUNT = 10;
 
     System.out.println("Measuring key derivation performance. All times are expressed in milliseconds");
@@ -1082,6 +1949,20 @@ public class WalletAppletTest {
     System.out.println("Time to derive m/44'/60'/0'/0/0: " + deriveAccount);
     System.out.println("Time to switch m/44'/60'/0'/0/0': " + deriveParentHardened);
     System.out.println("Time to switch back to m/44'/60'/0'/0/0: " + deriveParent);
+
+    // The secure channel overhead is best seen on a command which does almost nothing on its own
+    final long PROTECTED_SAMPLE_COUNT = SAMPLE_COUNT * 100;
+
+    for (int i = 0; i < PROTECTED_SAMPLE_COUNT; i++) {
+      time = System.nanoTime();
+      response = cmdSet.getStatus(WalletApplet.GET_STATUS_P1_APPLICATION);
+      protectedCommand += System.nanoTime() - time;
+      assertEquals(0x9000, response.getSW());
+    }
+
+    protectedCommand /= PROTECTED_SAMPLE_COUNT;
+
+    System.out.println("Time to send a protected GET STATUS (microseconds): " + (protectedCommand / 1000));
   }
 
   private KeyPairGenerator keypairGenerator() throws Exception {
@@ -1113,6 +1994,18 @@ public class WalletAppletTest {
     return Arrays.copyOfRange(select, 22, 22 + select[21]);
   }
 
+  private List<ResponseAPDU> replay(List<ApduTrace.Record> records, long seed) throws CardException {
+    TraceReplay replay = new TraceReplay(seed);
+    List<ResponseAPDU> responses = replay.replay(records);
+    assertEquals(Collections.emptyList(), replay.getMismatches());
+    assertEquals(2, replay.getSkipped());
+    return responses;
+  }
+
+  private long counter(byte[] counters, byte index) {
+    return ByteBuffer.wrap(counters, index * 4, 4).getInt() & 0xffffffffL;
+  }
+
   private void reset() {
     if (USE_SIMULATOR) {
       simulator.reset();
@@ -1162,13 +2055,7 @@ public class WalletAppletTest {
 
     byte[] hash = Hash.sha3(new byte[8]);
     ResponseAPDU resp = cmdSet.sign(hash);
-    assertEquals(0x9000, resp.getSW());
-    byte[] sig = resp.getData();
-    byte[] publicKey = extractPublicKeyFromSignature(sig);
-    sig = extractSignature(sig);
-
-    assertTrue(key.verify(hash, sig));
-    assertArrayEquals(key.getPubKeyPoint().getEncoded(false), publicKey);
+    verifySignResponse(resp, hash, key);
 
     resp = cmdSet.getStatus(WalletApplet.GET_STATUS_P1_KEY_PATH);
     assertEquals(0x9000, resp.getSW());
@@ -1183,6 +2070,38 @@ public class WalletAppletTest {
     }
   }
 
+  private void verifyBatchSignResponse(ResponseAPDU response, byte[] keyData, byte[][] batchData, Signature signature) throws Exception {
+    assertEquals(0x9000, response.getSW());
+    byte[] batchResponse = response.getData();
+    int off = 0;
+
+    if (keyData != null) {
+      assertEquals(WalletApplet.TLV_PUB_KEY, batchResponse[0]);
+      assertArrayEquals(keyData, Arrays.copyOfRange(batchResponse, 2, 2 + batchResponse[1]));
+      off = 2 + batchResponse[1];
+    }
+
+    for (byte[] batchDatum : batchData) {
+      assertEquals(WalletApplet.TLV_SIGNATURE_TEMPLATE, batchResponse[off]);
+      byte[] sig = Arrays.copyOfRange(batchResponse, off + 2, off + 2 + batchResponse[off + 1]);
+      signature.update(batchDatum);
+      assertTrue(signature.verify(sig));
+      off += 2 + batchResponse[off + 1];
+    }
+
+    assertEquals(batchResponse.length, off);
+  }
+
+  private void verifySignResponse(ResponseAPDU resp, byte[] hash, DeterministicKey key) {
+    assertEquals(0x9000, resp.getSW());
+    byte[] sig = resp.getData();
+    byte[] publicKey = extractPublicKeyFromSignature(sig);
+    sig = extractSignature(sig);
+
+    assertTrue(key.verify(hash, sig));
+    assertArrayEquals(key.getPubKeyPoint().getEncoded(false), publicKey);
+  }
+
   private void verifyExportedKey(byte[] keyTemplate, KeyPair keyPair, byte[] chainCode, int[] path, boolean publicOnly) {
     ECKey key = deriveKey(keyPair, chainCode, path).decompress();
     assertEquals(WalletApplet.TLV_KEY_TEMPLATE, keyTemplate[0]);
@@ -1236,7 +2155,7 @@ public class WalletAppletTest {
    * 2) A SIGN command is sent to the card to sign the precomputed hash
    * 3) The returned data is the public key and the signature
    * 4) The signature and public key can be used to generate the v value. The v value allows to recover the public key
-   *    from the signature. Here we use the web3j implementation through reflection
+   *    from the signature. Here we use the RecoverableSignature class
    * 5) v, r and s are the final signature to append to the transaction
    *
    * @param message the raw transaction
@@ -1247,57 +2166,13 @@ public class WalletAppletTest {
 
     ResponseAPDU response = cmdSet.sign(messageHash);
     assertEquals(0x9000, response.getSW());
-    byte[] respData = response.getData();
-    byte[] rawSig = extractSignature(respData);
-
-    int rLen = rawSig[3];
-    int sOff = 6 + rLen;
-    int sLen = rawSig.length - rLen - 6;
-
-    BigInteger r = new BigInteger(Arrays.copyOfRange(rawSig, 4, 4 + rLen));
-    BigInteger s = new BigInteger(Arrays.copyOfRange(rawSig, sOff, sOff + sLen));
-
-    Class<?> ecdsaSignature = Class.forName("org.web3j.crypto.Sign$ECDSASignature");
-    Constructor ecdsaSignatureConstructor = ecdsaSignature.getDeclaredConstructor(BigInteger.class, BigInteger.class);
-    ecdsaSignatureConstructor.setAccessible(true);
-    Object sig = ecdsaSignatureConstructor.newInstance(r, s);
-    Method m = ecdsaSignature.getMethod("toCanonicalised");
-    m.setAccessible(true);
-    sig = m.invoke(sig);
-
-    Method recoverFromSignature = Sign.class.getDeclaredMethod("recoverFromSignature", int.class, ecdsaSignature, byte[].class);
-    recoverFromSignature.setAccessible(true);
-
-    byte[] pubData = extractPublicKeyFromSignature(respData);
-    BigInteger publicKey = new BigInteger(Arrays.copyOfRange(pubData, 1, pubData.length));
-
-    int recId = -1;
-    for (int i = 0; i < 4; i++) {
-      BigInteger k = (BigInteger) recoverFromSignature.invoke(null, i, sig, messageHash);
-      if (k != null && k.equals(publicKey)) {
-        recId = i;
-        break;
-      }
-    }
-    if (recId == -1) {
-      throw new RuntimeException("Could not construct a recoverable key. This should never happen.");
-    }
-
-    int headerByte = recId + 27;
-
-    Field rF = ecdsaSignature.getDeclaredField("r");
-    rF.setAccessible(true);
-    Field sF = ecdsaSignature.getDeclaredField("s");
-    sF.setAccessible(true);
-    r = (BigInteger) rF.get(sig);
-    s = (BigInteger) sF.get(sig);
+    RecoverableSignature sig = RecoverableSignature.fromSignTemplate(response.getData(), messageHash, null);
 
     // 1 header + 32 bytes for R + 32 bytes for S
-    byte v = (byte) headerByte;
-    byte[] rB = Numeric.toBytesPadded(r, 32);
-    byte[] sB = Numeric.toBytesPadded(s, 32);
+    byte[] rB = Numeric.toBytesPadded(sig.getR(), 32);
+    byte[] sB = Numeric.toBytesPadded(sig.getS(), 32);
 
-    return new Sign.SignatureData(v, rB, sB);
+    return new Sign.SignatureData(sig.getV(), rB, sB);
   }
 
   private void verifyKeyUID(byte[] keyUID, ECPublicKey pubKey) {